@@ -0,0 +1,37 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.jpa.benchmark;
+
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs every benchmark at each of the thread counts given as arguments, by default 1, 4 and 16 threads. To run
+ * benchmarks selectively or with other options use the JMH launcher, <code>org.openjdk.jmh.Main</code>, instead.
+ */
+public class BenchmarkRunner {
+	public static void main(String[] args) throws RunnerException {
+		String[] threadCounts = args.length == 0 ? new String[] { "1", "4", "16" } : args;
+		for (String threadCount : threadCounts) {
+			Options options = new OptionsBuilder().include(BenchmarkRunner.class.getPackage().getName() + ".*").threads(Integer.parseInt(threadCount)).build();
+			new Runner(options).run();
+		}
+	}
+}
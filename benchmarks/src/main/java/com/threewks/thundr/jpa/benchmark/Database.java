@@ -0,0 +1,81 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.jpa.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.threewks.thundr.jpa.JpaTemplate;
+import com.threewks.thundr.jpa.PersistenceManagerImpl;
+import com.threewks.thundr.jpa.cache.QueryCache;
+
+/**
+ * An in memory database seeded with {@link #Items} items in {@link #Categories} categories, shared by all benchmark
+ * threads. The entity manager pool and query cache sizes can be varied with <code>-p</code> to measure their effect.
+ */
+@State(Scope.Benchmark)
+public class Database {
+	public static final String PersistenceUnit = "benchmark";
+	public static final int Items = 1000;
+	public static final int Categories = 100;
+
+	@Param({ "0" })
+	public int entityManagerPoolSize;
+
+	@Param({ "0" })
+	public int queryCacheSize;
+
+	private PersistenceManagerImpl persistenceManager;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		persistenceManager = new PersistenceManagerImpl(PersistenceUnit);
+		persistenceManager.setEntityManagerPoolSize(entityManagerPoolSize);
+		if (queryCacheSize > 0) {
+			persistenceManager.setQueryCache(new QueryCache(queryCacheSize));
+		}
+
+		List<Item> items = new ArrayList<Item>(Items);
+		for (int i = 0; i < Items; i++) {
+			items.add(new Item(i, "Item " + i, i % Categories));
+		}
+		try {
+			persistenceManager.beginTransaction();
+			new JpaTemplate<Item>(persistenceManager, Item.class).persistAll(items);
+			persistenceManager.commit();
+		} finally {
+			persistenceManager.closeEntityManager();
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		persistenceManager.destroy();
+	}
+
+	public PersistenceManagerImpl getPersistenceManager() {
+		return persistenceManager;
+	}
+}
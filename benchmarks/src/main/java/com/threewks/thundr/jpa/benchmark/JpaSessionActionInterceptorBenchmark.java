@@ -0,0 +1,109 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.jpa.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.threewks.thundr.jpa.JpaTemplate;
+import com.threewks.thundr.jpa.PersistenceManagerRegistry;
+import com.threewks.thundr.jpa.PersistenceManagerRegistryImpl;
+import com.threewks.thundr.jpa.intercept.JpaSession;
+import com.threewks.thundr.jpa.intercept.JpaSessionActionInterceptor;
+
+/**
+ * Measures a full request cycle through the {@link JpaSessionActionInterceptor}, from beginning the session through a
+ * lookup to committing and closing it.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JpaSessionActionInterceptorBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class Interceptor {
+		private JpaSessionActionInterceptor interceptor;
+		private JpaSession transactional;
+		private JpaSession lazy;
+
+		@Setup
+		public void setup(Database database) throws NoSuchMethodException {
+			PersistenceManagerRegistry registry = new PersistenceManagerRegistryImpl();
+			registry.register(Database.PersistenceUnit, database.getPersistenceManager());
+			interceptor = new JpaSessionActionInterceptor(registry);
+			transactional = Actions.class.getMethod("transactional").getAnnotation(JpaSession.class);
+			lazy = Actions.class.getMethod("lazy").getAnnotation(JpaSession.class);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Session {
+		private JpaTemplate<Item> template;
+		private Random random = new Random(42);
+
+		@Setup
+		public void setup(Database database) {
+			template = new JpaTemplate<Item>(database.getPersistenceManager(), Item.class);
+		}
+	}
+
+	@Benchmark
+	public Item transactionalRequest(Interceptor interceptor, Session session) {
+		return request(interceptor, interceptor.transactional, session, true);
+	}
+
+	@Benchmark
+	public Item lazyRequestWithoutDatabase(Interceptor interceptor, Session session) {
+		return request(interceptor, interceptor.lazy, session, false);
+	}
+
+	private Item request(Interceptor interceptor, JpaSession annotation, Session session, boolean useDatabase) {
+		interceptor.interceptor.before(annotation, null, null);
+		try {
+			Item item = useDatabase ? session.template.get((long) session.random.nextInt(Database.Items)) : null;
+			interceptor.interceptor.after(annotation, null, null, null);
+			return item;
+		} catch (RuntimeException e) {
+			interceptor.interceptor.exception(annotation, e, null, null);
+			throw e;
+		}
+	}
+
+	public static class Actions {
+		@JpaSession(persistenceUnit = Database.PersistenceUnit, transactional = true)
+		public void transactional() {
+		}
+
+		@JpaSession(persistenceUnit = Database.PersistenceUnit, transactional = true, lazy = true)
+		public void lazy() {
+		}
+	}
+}
@@ -0,0 +1,121 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.jpa.benchmark;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.threewks.thundr.jpa.JpaTemplate;
+import com.threewks.thundr.jpa.PersistenceManager;
+
+/**
+ * Measures the common {@link JpaTemplate} operations, each in a session of its own as a request would run them.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JpaTemplateBenchmark {
+	private static final AtomicLong nextId = new AtomicLong(Database.Items);
+
+	@State(Scope.Thread)
+	public static class Session {
+		private PersistenceManager persistenceManager;
+		private JpaTemplate<Item> template;
+		private Random random = new Random(42);
+
+		@Setup
+		public void setup(Database database) {
+			persistenceManager = database.getPersistenceManager();
+			template = new JpaTemplate<Item>(persistenceManager, Item.class);
+		}
+
+		private long randomId() {
+			return random.nextInt(Database.Items);
+		}
+
+		private int randomCategory() {
+			return random.nextInt(Database.Categories);
+		}
+	}
+
+	@Benchmark
+	public Item get(Session session) {
+		try {
+			return session.template.get(session.randomId());
+		} finally {
+			session.persistenceManager.closeEntityManager();
+		}
+	}
+
+	@Benchmark
+	public List<Item> query(Session session) {
+		try {
+			return session.template.query("select i from Item i where i.category = ?", session.randomCategory());
+		} finally {
+			session.persistenceManager.closeEntityManager();
+		}
+	}
+
+	@Benchmark
+	public List<Item> namedQuery(Session session) {
+		try {
+			return session.template.namedQuery("Item.findByCategory", session.randomCategory());
+		} finally {
+			session.persistenceManager.closeEntityManager();
+		}
+	}
+
+	@Benchmark
+	public long count(Session session) {
+		try {
+			return session.template.count();
+		} finally {
+			session.persistenceManager.closeEntityManager();
+		}
+	}
+
+	/**
+	 * Persists and flushes a new item, rolling back so that the size of the table stays constant.
+	 */
+	@Benchmark
+	public void persistAndFlush(Session session) {
+		try {
+			session.persistenceManager.beginTransaction();
+			session.template.persist(new Item(nextId.incrementAndGet(), "New item", session.randomCategory()));
+			session.template.flush();
+			session.persistenceManager.rollback();
+		} finally {
+			session.persistenceManager.closeEntityManager();
+		}
+	}
+}
@@ -0,0 +1,64 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.jpa.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.threewks.thundr.jpa.PersistenceManager;
+
+/**
+ * Measures the cost of creating and closing an entity manager, as every session does.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PersistenceManagerBenchmark {
+
+	@Benchmark
+	public EntityManager entityManagerChurn(Database database) {
+		PersistenceManager persistenceManager = database.getPersistenceManager();
+		try {
+			return persistenceManager.getEntityManager();
+		} finally {
+			persistenceManager.closeEntityManager();
+		}
+	}
+
+	@Benchmark
+	public void transactionChurn(Database database) {
+		PersistenceManager persistenceManager = database.getPersistenceManager();
+		try {
+			persistenceManager.beginTransaction();
+			persistenceManager.commit();
+		} finally {
+			persistenceManager.closeEntityManager();
+		}
+	}
+}
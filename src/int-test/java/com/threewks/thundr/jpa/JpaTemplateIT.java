@@ -20,19 +20,26 @@ package com.threewks.thundr.jpa;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.*;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import javax.persistence.EntityExistsException;
 
+import org.hibernate.Session;
 import org.junit.Before;
 import org.junit.ClassRule;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
+import com.threewks.thundr.jpa.cache.EntityCache;
+import com.threewks.thundr.jpa.cache.ResultCache;
 import com.threewks.thundr.jpa.model.Beverage;
+import com.threewks.thundr.jpa.model.Serving;
 import com.threewks.thundr.jpa.rule.SetupPersistenceManager;
 import com.threewks.thundr.jpa.rule.SetupTransaction;
 
@@ -82,6 +89,30 @@ public class JpaTemplateIT {
 		assertThat(beverage, is(nullValue()));
 	}
 
+	@Test
+	public void shouldGetAllEntitiesInOrderOfIds() {
+		template.setInClauseSize(2);
+		List<Beverage> beverages = new ArrayList<Beverage>();
+		List<Object> ids = new ArrayList<Object>();
+		for (String name : Arrays.asList("Coffee", "Beer", "Wine", "Tea", "Water")) {
+			Beverage beverage = new Beverage(name);
+			template.persist(beverage);
+			beverages.add(beverage);
+			ids.add(0, beverage.getId());
+		}
+		ids.add(2, "missing");
+		template.flush();
+		template.getEntityManager().clear();
+		template.getEntityManager().find(Beverage.class, beverages.get(0).getId());
+
+		List<Beverage> results = template.getAll(ids);
+		assertThat(results.size(), is(6));
+		assertThat(results.get(0).getName(), is("Water"));
+		assertThat(results.get(1).getName(), is("Tea"));
+		assertThat(results.get(2), is(nullValue()));
+		assertThat(results.get(5).getName(), is("Coffee"));
+	}
+
 	@Test
 	public void shouldReturnEntityReference() {
 		Beverage beverage = new Beverage("Merlot");
@@ -234,6 +265,323 @@ public class JpaTemplateIT {
 		assertThat(beverages.size(), is(greaterThanOrEqualTo(1)));
 	}
 
+	@Test
+	public void shouldIterateOverAllEntitiesWhenIteratingWithUnboundedQuery() {
+		addSampleData();
+
+		List<Beverage> beverages = new ArrayList<Beverage>();
+		ResultIterator<Beverage> iterator = template.iterate("from Beverage");
+		try {
+			while (iterator.hasNext()) {
+				beverages.add(iterator.next());
+			}
+		} finally {
+			iterator.close();
+		}
+		assertThat(beverages.size(), is(2));
+		assertThat(iterator.hasNext(), is(false));
+	}
+
+	@Test
+	public void shouldDetachEntitiesOnceIteratedPast() {
+		addSampleData();
+
+		ResultIterator<Beverage> iterator = template.iterate("from Beverage where name = ?", "Coffee");
+		Beverage coffee = iterator.next();
+		assertThat(coffee.getName(), is("Coffee"));
+		assertThat(template.contains(coffee), is(true));
+
+		assertThat(iterator.hasNext(), is(false));
+		assertThat(template.contains(coffee), is(false));
+	}
+
+	@Test
+	public void shouldDetachEagerlyLoadedAssociationsOnceIteratedPastButLeaveEntitiesManagedBeforehand() {
+		JpaTemplate<Serving> servingTemplate = new JpaTemplate<Serving>(setupPersistenceManager.getPersistenceManager(), Serving.class);
+		for (String name : Arrays.asList("Coffee", "Beer", "Wine", "Tea", "Water")) {
+			Beverage beverage = new Beverage(name);
+			template.persist(beverage);
+			servingTemplate.persist(new Serving(beverage));
+		}
+		template.flush();
+		template.getEntityManager().clear();
+		Beverage coffee = template.query("from Beverage where name = ?", "Coffee").get(0);
+
+		Session session = template.getEntityManager().unwrap(Session.class);
+		int servings = 0;
+		ResultIterator<Serving> iterator = servingTemplate.iterate("from Serving");
+		try {
+			while (iterator.hasNext()) {
+				Serving serving = iterator.next();
+				servings++;
+				assertThat(template.contains(serving.getBeverage()), is(true));
+				assertThat(session.getStatistics().getEntityCount(), is(lessThanOrEqualTo(3)));
+			}
+		} finally {
+			iterator.close();
+		}
+		assertThat(servings, is(5));
+		assertThat(session.getStatistics().getEntityCount(), is(1));
+		assertThat(template.contains(coffee), is(true));
+	}
+
+	@Test
+	public void shouldIterateOverEntitiesWhenUsingNamedQueryWithParameterMap() {
+		addSampleData();
+
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put("alcoholic", true);
+
+		ResultIterator<Beverage> iterator = template.namedIterate("Beverage.findAllByType", params);
+		try {
+			assertThat(iterator.next().getName(), is("Beer"));
+			assertThat(iterator.hasNext(), is(false));
+		} finally {
+			iterator.close();
+		}
+	}
+
+	@Test
+	public void shouldPersistAllEntitiesInBatches() {
+		template.setBatchSize(2);
+
+		List<Beverage> beverages = new ArrayList<Beverage>();
+		for (int i = 0; i < 5; i++) {
+			beverages.add(new Beverage("Cocktail " + i, true));
+		}
+
+		BatchResult result = template.persistAll(beverages);
+		assertThat(result.getCount(), is(5));
+		assertThat(result.getBatchCount(), is(3));
+		assertThat(result.getBatches().get(2).getSize(), is(1));
+		assertThat(template.count(), is(5l));
+		assertThat(template.contains(beverages.get(0)), is(false));
+	}
+
+	@Test
+	public void shouldMergeAllEntitiesInBatches() {
+		addSampleData();
+		List<Beverage> beverages = template.query("from Beverage");
+		template.getEntityManager().clear();
+		for (Beverage beverage : beverages) {
+			beverage.setName(beverage.getName() + " (decaf)");
+		}
+
+		BatchResult result = template.mergeAll(beverages);
+		assertThat(result.getCount(), is(2));
+		assertThat(template.query("from Beverage where name = ?", "Coffee (decaf)").size(), is(1));
+	}
+
+	@Test
+	public void shouldRemoveAllEntitiesInBatchesIncludingDetachedEntities() {
+		addSampleData();
+		List<Beverage> beverages = template.query("from Beverage");
+		template.flush();
+		template.getEntityManager().clear();
+		beverages.add(new Beverage("Never saved"));
+
+		BatchResult result = template.removeAll(beverages);
+		assertThat(result.getCount(), is(3));
+		assertThat(template.count(), is(0l));
+	}
+
+	@Test
+	public void shouldReturnOffsetPagesWithContinuation() {
+		addSampleData();
+
+		Page<Beverage> first = template.page("from Beverage order by name", 0, 1);
+		assertThat(first.size(), is(1));
+		assertThat(first.getResults().get(0).getName(), is("Beer"));
+		assertThat(first.hasNext(), is(true));
+
+		Page<Beverage> second = template.page("from Beverage order by name", first.<Integer> getNext(), 1);
+		assertThat(second.size(), is(1));
+		assertThat(second.getResults().get(0).getName(), is("Coffee"));
+		assertThat(second.hasNext(), is(false));
+	}
+
+	@Test
+	public void shouldReturnKeysetPagesWithContinuation() {
+		addSampleData();
+		template.persist(new Beverage("Tea", false));
+
+		Page<Beverage> first = template.seek("name", null, 2);
+		assertThat(first.size(), is(2));
+		assertThat(first.getResults().get(1).getName(), is("Coffee"));
+		assertThat(first.<String> getNext(), is("Coffee"));
+
+		Page<Beverage> second = template.seek("name", first.getNext(), 2);
+		assertThat(second.size(), is(1));
+		assertThat(second.getResults().get(0).getName(), is("Tea"));
+		assertThat(second.hasNext(), is(false));
+	}
+
+	@Test
+	public void shouldReturnFilteredKeysetPagesOrderedById() {
+		addSampleData();
+		template.persist(new Beverage("Tea", false));
+
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put("alcoholic", false);
+
+		Page<Beverage> page = template.seek("e.alcoholic = :alcoholic", params, null, null, 10);
+		assertThat(page.size(), is(2));
+		assertThat(page.hasNext(), is(false));
+		assertThat(page.getResults().get(0).getId().compareTo(page.getResults().get(1).getId()), is(lessThan(0)));
+	}
+
+	@Test
+	public void shouldServeCachedEntitiesAndEvictThemOnWrite() {
+		PersistenceManagerImpl persistenceManager = (PersistenceManagerImpl) setupPersistenceManager.getPersistenceManager();
+		EntityCache entityCache = new EntityCache().configure(Beverage.class, 10, 0, TimeUnit.MILLISECONDS);
+		persistenceManager.setEntityCache(entityCache);
+		try {
+			Beverage beverage = new Beverage("Absinthe");
+			template.persist(beverage);
+			template.flush();
+
+			// entities in the persistence context are served from there rather than the cache
+			assertThat(template.get(beverage.getId()), is(sameInstance(beverage)));
+			assertThat(entityCache.getStatistics().getMisses(), is(0l));
+
+			template.getEntityManager().clear();
+			Beverage loaded = template.get(beverage.getId());
+			template.getEntityManager().clear();
+			Beverage cached = template.get(beverage.getId());
+			assertThat(cached, is(not(sameInstance(loaded))));
+			assertThat(cached.getName(), is("Absinthe"));
+			assertThat(template.contains(cached), is(false));
+			assertThat(entityCache.getStatistics().getHits(), is(1l));
+			assertThat(entityCache.getStatistics().getMisses(), is(1l));
+
+			template.merge(cached);
+			template.getEntityManager().clear();
+			assertThat(template.get(beverage.getId()).getName(), is("Absinthe"));
+			assertThat(entityCache.getStatistics().getMisses(), is(2l));
+		} finally {
+			persistenceManager.setEntityCache(null);
+		}
+	}
+
+	@Test
+	public void shouldServeManagedEntitiesWithUnflushedChangesRatherThanCachedCopies() {
+		PersistenceManagerImpl persistenceManager = (PersistenceManagerImpl) setupPersistenceManager.getPersistenceManager();
+		EntityCache entityCache = new EntityCache().configure(Beverage.class, 10, 0, TimeUnit.MILLISECONDS);
+		persistenceManager.setEntityCache(entityCache);
+		try {
+			Beverage beverage = new Beverage("Absinthe");
+			template.persist(beverage);
+			template.flush();
+			template.getEntityManager().clear();
+
+			Beverage loaded = template.get(beverage.getId());
+			loaded.setName("Green fairy");
+
+			Beverage reloaded = template.get(beverage.getId());
+			assertThat(reloaded, is(sameInstance(loaded)));
+			assertThat(reloaded.getName(), is("Green fairy"));
+			assertThat(template.getReference(beverage.getId()), is(sameInstance(loaded)));
+			assertThat(template.getAll(Arrays.asList(beverage.getId())).get(0), is(sameInstance(loaded)));
+			assertThat(entityCache.getStatistics().getHits(), is(0l));
+
+			template.merge(reloaded);
+			template.flush();
+			template.getEntityManager().clear();
+			assertThat(template.get(beverage.getId()).getName(), is("Green fairy"));
+		} finally {
+			persistenceManager.setEntityCache(null);
+		}
+	}
+
+	@Test
+	public void shouldServeCachedQueryResultsUntilTypeIsWritten() {
+		PersistenceManagerImpl persistenceManager = (PersistenceManagerImpl) setupPersistenceManager.getPersistenceManager();
+		ResultCache resultCache = new ResultCache(100, 0, TimeUnit.MILLISECONDS);
+		persistenceManager.setResultCache(resultCache);
+		template.setCacheResults(true);
+		try {
+			addSampleData();
+
+			assertThat(template.query("from Beverage where alcoholic = ?", true).size(), is(1));
+			assertThat(template.query("from Beverage where alcoholic = ?", true).size(), is(1));
+			assertThat(resultCache.getStatistics().getHits(), is(1l));
+
+			template.persist(new Beverage("Wine", true));
+			assertThat(template.query("from Beverage where alcoholic = ?", true).size(), is(2));
+			assertThat(resultCache.getStatistics().getMisses(), is(2l));
+		} finally {
+			persistenceManager.setResultCache(null);
+		}
+	}
+
+	@Test
+	public void shouldProjectRowsWithoutManagingEntities() {
+		addSampleData();
+		template.flush();
+		template.getEntityManager().clear();
+
+		List<Object[]> rows = template.project(Object[].class, "select b.name, b.alcoholic from Beverage b order by b.name");
+		assertThat(rows.size(), is(2));
+		assertThat(rows.get(0)[0], is((Object) "Beer"));
+		assertThat(rows.get(0)[1], is((Object) true));
+
+		List<String> names = template.namedProject(String.class, "Beverage.findAllNames");
+		assertThat(names, containsInAnyOrder("Beer", "Coffee"));
+		assertThat(template.getEntityManager().unwrap(Session.class).getStatistics().getEntityCount(), is(0));
+	}
+
+	@Test
+	public void shouldDeleteInChunksWithinCallersTransactionWhenCountIsMultipleOfChunkSize() {
+		addSampleData();
+		template.persist(new Beverage("Tea", false));
+		template.persist(new Beverage("Wine", true));
+
+		BatchResult result = template.deleteWhere(null, null, 2);
+		assertThat(result.getCount(), is(4));
+		assertThat(result.getBatchCount(), is(2));
+		assertThat(result.getBatches().get(1).getSize(), is(2));
+		assertThat(template.count(), is(0l));
+		assertThat(template.getEntityManager().getTransaction().isActive(), is(true));
+	}
+
+	@Test
+	public void shouldDeleteInOneChunkWhenFewerEntitiesThanChunkSize() {
+		addSampleData();
+
+		BatchResult result = template.deleteWhere(null, null, 10);
+		assertThat(result.getCount(), is(2));
+		assertThat(result.getBatchCount(), is(1));
+		assertThat(template.count(), is(0l));
+	}
+
+	@Test
+	public void shouldUpdateInChunksMatchingConditionWithParameters() {
+		addSampleData();
+		template.persist(new Beverage("Wine", true));
+		template.persist(new Beverage("Cider", true));
+
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put("name", "Spirit");
+		params.put("alcoholic", true);
+
+		BatchResult result = template.updateWhere("e.name = :name", "e.alcoholic = :alcoholic", params, 2);
+		assertThat(result.getCount(), is(3));
+		assertThat(result.getBatchCount(), is(2));
+		assertThat(result.getBatches().get(1).getSize(), is(1));
+
+		template.getEntityManager().clear();
+		assertThat(template.query("from Beverage where name = ?", "Spirit").size(), is(3));
+		assertThat(template.query("from Beverage where name = ?", "Coffee").size(), is(1));
+	}
+
+	@Test
+	public void shouldThrowExceptionWhenChunkSizeBelowOne() {
+		thrown.expect(IllegalArgumentException.class);
+		thrown.expectMessage("Invalid chunk size 0, expected at least 1");
+
+		template.deleteWhere(null, null, 0);
+	}
+
 	private void addSampleData() {
 		template.persist(new Beverage("Coffee", false));
 		template.persist(new Beverage("Beer", true));
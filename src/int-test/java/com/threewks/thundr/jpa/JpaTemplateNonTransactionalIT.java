@@ -20,6 +20,11 @@ package com.threewks.thundr.jpa;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.*;
 
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.ClassRule;
@@ -58,6 +63,31 @@ public class JpaTemplateNonTransactionalIT {
 		setupPersistenceManager.getPersistenceManager().commit();
 	}
 
+	@Test
+	public void shouldCommitEachChunkInItsOwnTransactionOutsideTransaction() {
+		PersistenceManager persistenceManager = setupPersistenceManager.getPersistenceManager();
+		persistenceManager.beginTransaction();
+		template.persist(new Beverage("Wine", true));
+		template.persist(new Beverage("Cider", true));
+		persistenceManager.commit();
+
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put("alcoholic", true);
+
+		BatchResult result = template.deleteWhere("e.alcoholic = :alcoholic", params, 2);
+		assertThat(result.getCount(), is(3));
+		assertThat(result.getBatchCount(), is(2));
+		assertThat(template.getEntityManager().getTransaction().isActive(), is(false));
+
+		// committed, so visible to a new entity manager
+		EntityManager em = template.getEntityManager().getEntityManagerFactory().createEntityManager();
+		try {
+			assertThat(em.createQuery("SELECT count(b) FROM Beverage b", Long.class).getSingleResult(), is(1l));
+		} finally {
+			em.close();
+		}
+	}
+
 	@Test
 	public void shouldPermitQueryingOutsideTransaction() {
 		long count = template.count();
@@ -0,0 +1,137 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.jpa.intercept;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.hibernate.Session;
+import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.jdbc.Work;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.threewks.thundr.jpa.PersistenceManagerImpl;
+import com.threewks.thundr.jpa.PersistenceManagerRegistry;
+import com.threewks.thundr.jpa.PersistenceManagerRegistryImpl;
+import com.threewks.thundr.jpa.model.Beverage;
+import com.threewks.thundr.jpa.pool.ConnectionPool;
+import com.threewks.thundr.jpa.pool.PooledConnectionProvider;
+
+/**
+ * Runs sessions against an in memory database through a pool holding a single connection, so that every session uses
+ * the same connection.
+ */
+public class ReadOnlySessionIT {
+	private ConnectionPool connectionPool;
+	private PersistenceManagerImpl persistenceManager;
+	private JpaSessionActionInterceptor interceptor;
+	private JpaSession readOnly;
+	private JpaSession readWrite;
+
+	@Before
+	public void before() {
+		connectionPool = new ConnectionPool("readOnly", 0, 1);
+		PooledConnectionProvider.register("default:readOnly", connectionPool);
+		Map<String, Object> properties = new HashMap<String, Object>();
+		properties.put(AvailableSettings.CONNECTION_PROVIDER, PooledConnectionProvider.class.getName());
+		properties.put(PooledConnectionProvider.ConnectionPoolProperty, "default:readOnly");
+		persistenceManager = new PersistenceManagerImpl("test", properties);
+
+		PersistenceManagerRegistry registry = new PersistenceManagerRegistryImpl();
+		registry.register("default", persistenceManager);
+		interceptor = new JpaSessionActionInterceptor(registry);
+
+		readOnly = spy(new MockJpaSessionAnnotation());
+		when(readOnly.readOnly()).thenReturn(true);
+		when(readOnly.transactional()).thenReturn(true);
+		readWrite = spy(new MockJpaSessionAnnotation());
+		when(readWrite.transactional()).thenReturn(true);
+	}
+
+	@After
+	public void after() {
+		persistenceManager.destroy();
+	}
+
+	@Test
+	public void shouldWriteOnConnectionPreviouslyUsedByReadOnlySession() throws SQLException {
+		interceptor.before(readOnly, null, null);
+		persistenceManager.getEntityManager().createQuery("SELECT b FROM Beverage b").getResultList();
+		interceptor.after(readOnly, null, null, null);
+		assertThat(connectionPool.getSize(), is(1));
+
+		interceptor.before(readWrite, null, null);
+		Beverage beverage = new Beverage("Flat white");
+		persistenceManager.getEntityManager().persist(beverage);
+		interceptor.after(readWrite, null, null, null);
+
+		interceptor.before(readWrite, null, null);
+		assertThat(persistenceManager.getEntityManager().find(Beverage.class, beverage.getId()).getName(), is("Flat white"));
+		persistenceManager.getEntityManager().createQuery("DELETE FROM Beverage").executeUpdate();
+		interceptor.after(readWrite, null, null, null);
+
+		assertThat(connectionPool.getSize(), is(1));
+		Connection connection = connectionPool.getConnection();
+		assertThat(connection.isReadOnly(), is(false));
+		connection.close();
+	}
+
+	@Test
+	public void shouldNotFlushOrMarkConnectionReadOnlyInNonTransactionalReadOnlySession() throws SQLException {
+		interceptor.before(readWrite, null, null);
+		Beverage beverage = new Beverage("Flat white");
+		persistenceManager.getEntityManager().persist(beverage);
+		interceptor.after(readWrite, null, null, null);
+
+		when(readOnly.transactional()).thenReturn(false);
+		interceptor.before(readOnly, null, null);
+		Beverage loaded = persistenceManager.getEntityManager().find(Beverage.class, beverage.getId());
+		loaded.setName("Long black");
+		persistenceManager.getEntityManager().unwrap(Session.class).doWork(new Work() {
+			@Override
+			public void execute(Connection connection) throws SQLException {
+				assertThat(connection.isReadOnly(), is(false));
+			}
+		});
+		interceptor.after(readOnly, null, null, null);
+
+		interceptor.before(readWrite, null, null);
+		assertThat(persistenceManager.getEntityManager().find(Beverage.class, beverage.getId()).getName(), is("Flat white"));
+		persistenceManager.getEntityManager().createQuery("DELETE FROM Beverage").executeUpdate();
+		interceptor.after(readWrite, null, null, null);
+	}
+
+	@Test
+	public void shouldRestoreReadWriteConnectionWhenReadOnlySessionFails() throws SQLException {
+		interceptor.before(readOnly, null, null);
+		persistenceManager.getEntityManager().createQuery("SELECT b FROM Beverage b").getResultList();
+		interceptor.exception(readOnly, new Exception("Intentional"), null, null);
+
+		Connection connection = connectionPool.getConnection();
+		assertThat(connection.isReadOnly(), is(false));
+		connection.close();
+	}
+}
@@ -17,6 +17,7 @@
  */
 package com.threewks.thundr.jpa.model;
 
+import java.io.Serializable;
 import java.util.UUID;
 
 import javax.persistence.Column;
@@ -30,8 +31,10 @@ import javax.persistence.Table;
 @Table(name = "beverage")
 @NamedQueries({ @NamedQuery(name = "Beverage.findAllByName", query = "select b from Beverage b where b.name = ?"),
 		@NamedQuery(name = "Beverage.findAllAlcoholicBeverages", query = "select b from Beverage b where b.alcoholic = true"),
-		@NamedQuery(name = "Beverage.findAllByType", query = "select b from Beverage b where b.alcoholic = :alcoholic") })
-public class Beverage {
+		@NamedQuery(name = "Beverage.findAllByType", query = "select b from Beverage b where b.alcoholic = :alcoholic"),
+		@NamedQuery(name = "Beverage.findAllNames", query = "select b.name from Beverage b") })
+public class Beverage implements Serializable {
+	private static final long serialVersionUID = 1L;
 
 	@Id
 	@Column(name = "id")
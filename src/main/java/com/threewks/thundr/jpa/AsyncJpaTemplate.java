@@ -0,0 +1,117 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.jpa;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import javax.persistence.EntityManager;
+
+/**
+ * An asynchronous companion to {@link JpaTemplate}. Each operation is run on a {@link ParallelJpaExecutor} with an
+ * entity manager of its own and returns immediately, so a request can start several lookups at once and wait for them
+ * together using {@link ParallelJpaExecutor#getAll(List, long, java.util.concurrent.TimeUnit)}.
+ * <p>
+ * Entities returned are detached, as the entity manager which loaded them is closed once the operation completes.
+ * When the executor is saturated, operations are rejected or wait for room in its queue, depending on its queue
+ * timeout.
+ */
+public class AsyncJpaTemplate<T> {
+	private ParallelJpaExecutor executor;
+	private PersistenceManager persistenceManager;
+	private JpaTemplate<T> template;
+
+	public AsyncJpaTemplate(ParallelJpaExecutor executor, PersistenceManager persistenceManager, Class<T> type) {
+		this.executor = executor;
+		this.persistenceManager = persistenceManager;
+		this.template = new JpaTemplate<T>(persistenceManager, type);
+	}
+
+	/**
+	 * @return the synchronous template used to run each operation
+	 */
+	public JpaTemplate<T> getTemplate() {
+		return template;
+	}
+
+	/**
+	 * Runs the given action in a transaction of its own.
+	 */
+	public <E> Future<E> execute(JpaAction<E> action) {
+		return executor.submit(persistenceManager, action);
+	}
+
+	public Future<T> get(final Object id) {
+		return read(new JpaAction<T>() {
+			@Override
+			public T run(EntityManager em) {
+				return template.get(id);
+			}
+		});
+	}
+
+	public Future<Long> count() {
+		return read(new JpaAction<Long>() {
+			@Override
+			public Long run(EntityManager em) {
+				return template.count();
+			}
+		});
+	}
+
+	public Future<List<T>> query(final String query, final Object... values) {
+		return read(new JpaAction<List<T>>() {
+			@Override
+			public List<T> run(EntityManager em) {
+				return template.query(query, values);
+			}
+		});
+	}
+
+	public Future<List<T>> query(final String query, final Map<String, Object> params) {
+		return read(new JpaAction<List<T>>() {
+			@Override
+			public List<T> run(EntityManager em) {
+				return template.query(query, params);
+			}
+		});
+	}
+
+	public Future<List<T>> namedQuery(final String queryName, final Object... values) {
+		return read(new JpaAction<List<T>>() {
+			@Override
+			public List<T> run(EntityManager em) {
+				return template.namedQuery(queryName, values);
+			}
+		});
+	}
+
+	public Future<List<T>> namedQuery(final String queryName, final Map<String, Object> params) {
+		return read(new JpaAction<List<T>>() {
+			@Override
+			public List<T> run(EntityManager em) {
+				return template.namedQuery(queryName, params);
+			}
+		});
+	}
+
+	private <E> Future<E> read(JpaAction<E> action) {
+		return executor.submit(persistenceManager, action, false);
+	}
+}
@@ -0,0 +1,92 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.jpa;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The outcome of a batched bulk operation, such as {@link JpaTemplate#persistAll(Iterable)}, broken down by the batches
+ * that were flushed to the database.
+ */
+public class BatchResult {
+	private List<Batch> batches = new ArrayList<Batch>();
+	private int count;
+
+	void addBatch(int size, long durationNanos) {
+		batches.add(new Batch(batches.size(), size, durationNanos));
+		count += size;
+	}
+
+	/**
+	 * @return the total number of entities processed
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	public int getBatchCount() {
+		return batches.size();
+	}
+
+	public List<Batch> getBatches() {
+		return Collections.unmodifiableList(batches);
+	}
+
+	public long getDuration(TimeUnit unit) {
+		long durationNanos = 0;
+		for (Batch batch : batches) {
+			durationNanos += batch.durationNanos;
+		}
+		return unit.convert(durationNanos, TimeUnit.NANOSECONDS);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d entities in %d batches (%dms)", count, batches.size(), getDuration(TimeUnit.MILLISECONDS));
+	}
+
+	public static class Batch {
+		private int index;
+		private int size;
+		private long durationNanos;
+
+		public Batch(int index, int size, long durationNanos) {
+			this.index = index;
+			this.size = size;
+			this.durationNanos = durationNanos;
+		}
+
+		public int getIndex() {
+			return index;
+		}
+
+		public int getSize() {
+			return size;
+		}
+
+		/**
+		 * @return the time taken to apply the batch to the persistence context and flush it
+		 */
+		public long getDuration(TimeUnit unit) {
+			return unit.convert(durationNanos, TimeUnit.NANOSECONDS);
+		}
+	}
+}
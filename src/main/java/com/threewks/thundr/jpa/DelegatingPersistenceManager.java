@@ -0,0 +1,117 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.jpa;
+
+import javax.persistence.EntityManager;
+
+import com.threewks.thundr.jpa.cache.EntityCache;
+import com.threewks.thundr.jpa.cache.ResultCache;
+import com.threewks.thundr.jpa.metrics.SlowQueryLog;
+
+/**
+ * Base class for persistence managers which front one or more other persistence managers, forwarding each call to the
+ * persistence manager chosen by {@link #delegate()}. Delegates which are not {@link ExtendedPersistenceManager}s are
+ * treated as always having an entity manager and as having no caches or diagnostics.
+ */
+public abstract class DelegatingPersistenceManager implements ExtendedPersistenceManager {
+
+	/**
+	 * @return the persistence manager to forward calls made on the current thread to
+	 */
+	protected abstract PersistenceManager delegate();
+
+	@Override
+	public EntityManager getEntityManager() {
+		return delegate().getEntityManager();
+	}
+
+	@Override
+	public boolean hasEntityManager() {
+		ExtendedPersistenceManager delegate = extendedDelegate();
+		return delegate == null || delegate.hasEntityManager();
+	}
+
+	@Override
+	public void onFirstUse(JpaAction<?> action) {
+		ExtendedPersistenceManager delegate = extendedDelegate();
+		if (delegate == null) {
+			action.run(getEntityManager());
+		} else {
+			delegate.onFirstUse(action);
+		}
+	}
+
+	@Override
+	public void beginTransaction() {
+		delegate().beginTransaction();
+	}
+
+	@Override
+	public void rollback() {
+		delegate().rollback();
+	}
+
+	@Override
+	public void commit() {
+		delegate().commit();
+	}
+
+	@Override
+	public void closeEntityManager() {
+		closeEntityManager(true);
+	}
+
+	@Override
+	public void closeEntityManager(boolean recycle) {
+		ExtendedPersistenceManager delegate = extendedDelegate();
+		if (delegate == null) {
+			delegate().closeEntityManager();
+		} else {
+			delegate.closeEntityManager(recycle);
+		}
+	}
+
+	@Override
+	public EntityCache getEntityCache() {
+		ExtendedPersistenceManager delegate = extendedDelegate();
+		return delegate == null ? null : delegate.getEntityCache();
+	}
+
+	@Override
+	public ResultCache getResultCache() {
+		ExtendedPersistenceManager delegate = extendedDelegate();
+		return delegate == null ? null : delegate.getResultCache();
+	}
+
+	@Override
+	public SlowQueryLog getSlowQueryLog() {
+		ExtendedPersistenceManager delegate = extendedDelegate();
+		return delegate == null ? null : delegate.getSlowQueryLog();
+	}
+
+	@Override
+	public PersistenceContextGuard getPersistenceContextGuard() {
+		ExtendedPersistenceManager delegate = extendedDelegate();
+		return delegate == null ? null : delegate.getPersistenceContextGuard();
+	}
+
+	private ExtendedPersistenceManager extendedDelegate() {
+		PersistenceManager delegate = delegate();
+		return delegate instanceof ExtendedPersistenceManager ? (ExtendedPersistenceManager) delegate : null;
+	}
+}
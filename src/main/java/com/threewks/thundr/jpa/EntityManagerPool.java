@@ -0,0 +1,178 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.jpa;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.FlushModeType;
+
+import org.hibernate.Session;
+
+import com.threewks.thundr.logger.Logger;
+
+/**
+ * A bounded, lock free pool of entity managers. Rather than closing an entity manager at the end of a request it is
+ * cleared and returned to the pool for the next request, avoiding the allocation of a new session and its persistence
+ * context each time.
+ * <p>
+ * Only entity managers without an active transaction and whose session did not fail are recycled. JDBC connections are released at the end of each
+ * transaction (the Hibernate default for resource local transactions), so idle entity managers do not hold connections.
+ */
+public class EntityManagerPool {
+	private EntityManagerFactory entityManagerFactory;
+	private int maxSize;
+	private Queue<EntityManager> idle = new ConcurrentLinkedQueue<EntityManager>();
+	private AtomicInteger size = new AtomicInteger();
+	private AtomicLong borrows = new AtomicLong();
+	private AtomicLong misses = new AtomicLong();
+	private AtomicLong borrowNanos = new AtomicLong();
+
+	/**
+	 * @param entityManagerFactory the factory to create entity managers with when the pool is empty
+	 * @param maxSize the maximum number of idle entity managers to hold
+	 */
+	public EntityManagerPool(EntityManagerFactory entityManagerFactory, int maxSize) {
+		this.entityManagerFactory = entityManagerFactory;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * @return an idle entity manager from the pool, or a new one if the pool is empty
+	 */
+	public EntityManager borrow() {
+		long start = System.nanoTime();
+		EntityManager em = idle.poll();
+		if (em == null) {
+			misses.incrementAndGet();
+			em = entityManagerFactory.createEntityManager();
+		} else {
+			size.decrementAndGet();
+		}
+		borrows.incrementAndGet();
+		borrowNanos.addAndGet(System.nanoTime() - start);
+		return em;
+	}
+
+	/**
+	 * Returns an entity manager to the pool, clearing its persistence context. Entity managers which are closed, still
+	 * inside a transaction, or which do not fit in the pool are closed instead. Entity managers of sessions which failed
+	 * must be passed to {@link #discard(EntityManager)} instead.
+	 */
+	public void release(EntityManager em) {
+		if (!em.isOpen()) {
+			return;
+		}
+		if (recyclable(em)) {
+			if (size.incrementAndGet() <= maxSize) {
+				reset(em);
+				idle.offer(em);
+				return;
+			}
+			size.decrementAndGet();
+		}
+		close(em);
+	}
+
+	/**
+	 * Closes an entity manager borrowed from the pool instead of returning it, for example because the session it
+	 * belonged to failed.
+	 */
+	public void discard(EntityManager em) {
+		close(em);
+	}
+
+	/**
+	 * Closes all idle entity managers.
+	 */
+	public void clear() {
+		EntityManager em;
+		while ((em = idle.poll()) != null) {
+			size.decrementAndGet();
+			close(em);
+		}
+	}
+
+	/**
+	 * @return the number of idle entity managers in the pool
+	 */
+	public int getSize() {
+		return size.get();
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public long getBorrows() {
+		return borrows.get();
+	}
+
+	/**
+	 * @return the number of borrows for which the pool was empty and a new entity manager was created
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getAverageBorrowTime(TimeUnit unit) {
+		long borrows = getBorrows();
+		return borrows == 0 ? 0 : unit.convert(borrowNanos.get() / borrows, TimeUnit.NANOSECONDS);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("size=%d/%d, borrows=%d, misses=%d, averageBorrowTime=%dus", getSize(), maxSize, getBorrows(), getMisses(), getAverageBorrowTime(TimeUnit.MICROSECONDS));
+	}
+
+	/**
+	 * Clears the persistence context and undoes any session level configuration, such as that applied to read only
+	 * sessions.
+	 */
+	private void reset(EntityManager em) {
+		em.clear();
+		em.setFlushMode(FlushModeType.AUTO);
+		Session session = em.unwrap(Session.class);
+		if (session != null) {
+			session.setDefaultReadOnly(false);
+		}
+	}
+
+	private boolean recyclable(EntityManager em) {
+		try {
+			return !em.getTransaction().isActive();
+		} catch (RuntimeException e) {
+			return false;
+		}
+	}
+
+	private void close(EntityManager em) {
+		try {
+			if (em.isOpen()) {
+				em.close();
+			}
+		} catch (RuntimeException e) {
+			Logger.warn("Failed to close pooled entity manager: %s", e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,74 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.jpa;
+
+import com.threewks.thundr.jpa.cache.EntityCache;
+import com.threewks.thundr.jpa.cache.ResultCache;
+import com.threewks.thundr.jpa.metrics.SlowQueryLog;
+
+/**
+ * Optional extension of {@link PersistenceManager} exposing lazy sessions, caching and diagnostics. Persistence
+ * managers which only implement {@link PersistenceManager} are still fully supported, they simply run every session
+ * eagerly and without caches, slow query logging or persistence context bounds.
+ */
+public interface ExtendedPersistenceManager extends PersistenceManager {
+	/**
+	 * @return true if an entity manager has been created for the current thread and not yet closed
+	 */
+	boolean hasEntityManager();
+
+	/**
+	 * Defers an action until the entity manager for the current thread is first created, for example to begin a
+	 * transaction only once the database is actually used. If the entity manager already exists the action is run
+	 * immediately. Deferred actions which have not run are discarded when the entity manager is closed.
+	 */
+	void onFirstUse(JpaAction<?> action);
+
+	/**
+	 * As for {@link #closeEntityManager()}, but closes the entity manager rather than returning it to a pool of entity
+	 * managers unless it may be recycled. Hibernate leaves a session in an undefined state once it has thrown, so the
+	 * entity manager of a session which failed or rolled back must not be recycled.
+	 * 
+	 * @param recycle false if the entity manager must be closed even if entity managers are pooled
+	 */
+	void closeEntityManager(boolean recycle);
+
+	/**
+	 * @return the cache of entities shared between sessions of this persistence manager, or null if entities are not
+	 *         cached
+	 */
+	EntityCache getEntityCache();
+
+	/**
+	 * @return the cache of query results shared between sessions of this persistence manager, or null if results are
+	 *         not cached
+	 */
+	ResultCache getResultCache();
+
+	/**
+	 * @return the log of slow statements issued through this persistence manager, or null if slow statements are not
+	 *         logged
+	 */
+	SlowQueryLog getSlowQueryLog();
+
+	/**
+	 * @return the guard bounding the size of the persistence context of each session, or null if the persistence
+	 *         context is not bounded
+	 */
+	PersistenceContextGuard getPersistenceContextGuard();
+}
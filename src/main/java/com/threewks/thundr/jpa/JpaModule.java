@@ -17,27 +17,106 @@
  */
 package com.threewks.thundr.jpa;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.persistence.EntityManagerFactory;
 
 import javax.servlet.ServletContext;
 
 import org.apache.commons.lang3.StringUtils;
+import org.hibernate.cfg.AvailableSettings;
 
 import com.threewks.thundr.action.method.ActionInterceptorRegistry;
 import com.threewks.thundr.configuration.Environment;
 import com.threewks.thundr.injection.InjectionContext;
 import com.threewks.thundr.injection.Module;
 import com.threewks.thundr.injection.UpdatableInjectionContext;
+import com.threewks.thundr.jpa.cache.EntityCache;
+import com.threewks.thundr.jpa.cache.ResultCache;
+import com.threewks.thundr.jpa.context.PropagatingSessionContext;
+import com.threewks.thundr.jpa.context.SessionContext;
+import com.threewks.thundr.jpa.context.ThreadLocalSessionContext;
 import com.threewks.thundr.jpa.exception.JpaException;
 import com.threewks.thundr.jpa.intercept.JpaSession;
 import com.threewks.thundr.jpa.intercept.JpaSessionActionInterceptor;
+import com.threewks.thundr.jpa.metrics.JmxMetricsView;
+import com.threewks.thundr.jpa.metrics.LogHistogram;
+import com.threewks.thundr.jpa.metrics.MetricsInterceptor;
+import com.threewks.thundr.jpa.metrics.MetricsRegistry;
+import com.threewks.thundr.jpa.metrics.NPlusOneDetector;
+import com.threewks.thundr.jpa.metrics.NoopMetricsRegistry;
+import com.threewks.thundr.jpa.metrics.SimpleMetricsRegistry;
+import com.threewks.thundr.jpa.metrics.SlowQueryLog;
+import com.threewks.thundr.jpa.metrics.SlowQueryWriter;
+import com.threewks.thundr.jpa.pool.ConnectionPool;
+import com.threewks.thundr.jpa.pool.PooledConnectionProvider;
+import com.threewks.thundr.jpa.routing.LeastLatencyReplicaSelector;
+import com.threewks.thundr.jpa.routing.Replica;
+import com.threewks.thundr.jpa.routing.ReplicaSelector;
+import com.threewks.thundr.jpa.routing.RoundRobinReplicaSelector;
+import com.threewks.thundr.jpa.routing.RoutingPersistenceManager;
+import com.threewks.thundr.jpa.shard.HashShardStrategy;
+import com.threewks.thundr.jpa.shard.ShardStrategy;
+import com.threewks.thundr.jpa.shard.ShardedPersistenceManager;
 import com.threewks.thundr.logger.Logger;
 import com.threewks.thundr.module.DependencyRegistry;
 
 public class JpaModule implements Module {
 	public static final String PersistenceManagerRegistry = String.format("thundr-jpa-%s", PersistenceManagerRegistryImpl.class);
 	public static final String PersistenceManagersConfigName = "persistenceManagers";
+	public static final String JdbcBatchSizeConfigName = "jdbcBatchSize";
+	public static final String QueryPlanCacheSizeConfigName = "queryPlanCacheSize";
+	public static final String EntityManagerPoolSizeConfigName = "entityManagerPoolSize";
+	public static final String ReplicasConfigName = "replicas";
+	public static final String ReplicaSelectionConfigName = "replicaSelection";
+	public static final String ReplicaEjectionMillisConfigName = "replicaEjectionMillis";
+	public static final String ShardsConfigName = "shards";
+	public static final String ShardStrategyConfigName = "shardStrategy";
+	public static final String ParallelThreadsConfigName = "jpaParallelThreads";
+	public static final String ParallelQueueSizeConfigName = "jpaParallelQueueSize";
+	public static final String ParallelQueueTimeoutMillisConfigName = "jpaParallelQueueTimeoutMillis";
+	public static final String SessionContextConfigName = "jpaSessionContext";
+	public static final String EntityCacheConfigName = "entityCache";
+	public static final String ResultCacheSizeConfigName = "resultCacheSize";
+	public static final String ResultCacheTtlMillisConfigName = "resultCacheTtlMillis";
+	public static final String MetricsConfigName = "jpaMetrics";
+	public static final String MetricsMaxActionNamesConfigName = "jpaMetricsMaxActionNames";
+	public static final String NPlusOneDetectionConfigName = "jpaNPlusOneDetection";
+	public static final String NPlusOneThresholdConfigName = "jpaNPlusOneThreshold";
+	public static final String SlowQueryThresholdMillisConfigName = "slowQueryThresholdMillis";
+	public static final String SlowQueryBufferSizeConfigName = "jpaSlowQueryBufferSize";
+	public static final String ConnectionPoolMaxSizeConfigName = "connectionPoolMaxSize";
+	public static final String ConnectionPoolMinSizeConfigName = "connectionPoolMinSize";
+	public static final String ConnectionTimeoutMillisConfigName = "connectionTimeoutMillis";
+	public static final String ConnectionLeakThresholdMillisConfigName = "connectionLeakThresholdMillis";
+	public static final String BootstrapConfigName = "jpaBootstrap";
+	public static final String BootstrapThreadsConfigName = "jpaBootstrapThreads";
+	public static final String WarmUpConfigName = "jpaWarmUp";
+	public static final String WarmUpActionsConfigName = "warmUpActions";
+	public static final String PersistenceContextSoftLimitConfigName = "persistenceContextSoftLimit";
+	public static final String PersistenceContextLimitModeConfigName = "persistenceContextLimitMode";
+
+	private List<ShardedPersistenceManager> shardedPersistenceManagers = new ArrayList<ShardedPersistenceManager>();
+	private ParallelJpaExecutor parallelJpaExecutor;
+	private SessionContext sessionContext = new ThreadLocalSessionContext();
+	private MetricsRegistry metricsRegistry = new NoopMetricsRegistry();
+	private JmxMetricsView jmxMetricsView;
+	private NPlusOneDetector nPlusOneDetector;
+	private SlowQueryWriter slowQueryWriter;
+	private ExecutorService bootstrapExecutor;
+	private boolean lazyBootstrap;
+	private List<PersistenceManagerImpl> bootstrapping = new ArrayList<PersistenceManagerImpl>();
+	private List<WarmUp> warmUps = new ArrayList<WarmUp>();
 
 	@Override
 	public void requires(DependencyRegistry dependencyRegistry) {
@@ -52,17 +131,81 @@ public class JpaModule implements Module {
 
 	@Override
 	public void configure(UpdatableInjectionContext injectionContext) {
+		sessionContext = createSessionContext(injectionContext);
+		injectionContext.inject(sessionContext).as(SessionContext.class);
+		metricsRegistry = createMetricsRegistry(injectionContext);
+		injectionContext.inject(metricsRegistry).as(MetricsRegistry.class);
+		nPlusOneDetector = createNPlusOneDetector(injectionContext);
+		bootstrapExecutor = createBootstrapExecutor(injectionContext);
 		PersistenceManagerRegistry registry = initializePersistenceManagerRegistry(injectionContext);
+		awaitBootstrap();
 		registerActionInterceptorAnnotations(injectionContext, registry);
+		parallelJpaExecutor = createParallelJpaExecutor(injectionContext);
+		injectionContext.inject(parallelJpaExecutor).as(ParallelJpaExecutor.class);
 	}
 	
+	/**
+	 * Warms up the persistence units for which <code>jpaWarmUp</code> is <code>on</code>, see {@link WarmUp}. Setting
+	 * <code>warmUpActions</code> to a list of {@link JpaAction} class names also runs those actions as part of warming
+	 * up, for example to load reference data into caches. Warming up happens before the application starts serving
+	 * requests, or in the background when bootstrapping lazily.
+	 */
 	@Override
 	public void start(UpdatableInjectionContext injectionContext) {
-		
+		if (warmUps.isEmpty()) {
+			return;
+		}
+		final List<WarmUp> pending = new ArrayList<WarmUp>(warmUps);
+		warmUps.clear();
+		if (!lazyBootstrap) {
+			warmUp(pending);
+			return;
+		}
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					warmUp(pending);
+				} catch (RuntimeException e) {
+					Logger.error("%s", e.getMessage());
+				}
+			}
+		}, "thundr-jpa-warm-up");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void warmUp(List<WarmUp> pending) {
+		long start = System.nanoTime();
+		for (WarmUp warmUp : pending) {
+			Logger.info("%s", warmUp.run());
+		}
+		Logger.info("Warmed up %d persistence units in %dms", pending.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
 	}
 
 	@Override
 	public void stop(InjectionContext injectionContext) {
+		if (bootstrapExecutor != null) {
+			bootstrapExecutor.shutdownNow();
+			bootstrapExecutor = null;
+		}
+		if (jmxMetricsView != null) {
+			jmxMetricsView.unregister();
+			jmxMetricsView = null;
+		}
+		if (slowQueryWriter != null) {
+			slowQueryWriter.stop();
+			slowQueryWriter = null;
+		}
+		if (parallelJpaExecutor != null) {
+			parallelJpaExecutor.shutdown();
+			parallelJpaExecutor = null;
+		}
+		for (ShardedPersistenceManager shardedPersistenceManager : shardedPersistenceManagers) {
+			shardedPersistenceManager.shutdown();
+		}
+		shardedPersistenceManagers.clear();
+		warmUps.clear();
 		PersistenceManagerRegistry registry = injectionContext.get(PersistenceManagerRegistry.class);
 		registry.clear();
 	}
@@ -70,7 +213,11 @@ public class JpaModule implements Module {
 
 	protected final void registerActionInterceptorAnnotations(UpdatableInjectionContext injectionContext, PersistenceManagerRegistry persistenceManagerRegistry) {
 		ActionInterceptorRegistry actionInterceptorRegistry = injectionContext.get(ActionInterceptorRegistry.class);
-		actionInterceptorRegistry.registerInterceptor(JpaSession.class, new JpaSessionActionInterceptor(persistenceManagerRegistry));
+		JpaSessionActionInterceptor jpaSessionActionInterceptor = new JpaSessionActionInterceptor(persistenceManagerRegistry, sessionContext);
+		jpaSessionActionInterceptor.setMetricsRegistry(metricsRegistry);
+		jpaSessionActionInterceptor.setMaxActionNames(getConfiguration(injectionContext, null, MetricsMaxActionNamesConfigName, JpaSessionActionInterceptor.DefaultMaxActionNames));
+		jpaSessionActionInterceptor.setNPlusOneDetector(nPlusOneDetector);
+		actionInterceptorRegistry.registerInterceptor(JpaSession.class, jpaSessionActionInterceptor);
 	}
 
 	protected final PersistenceManagerRegistry initializePersistenceManagerRegistry(UpdatableInjectionContext injectionContext) {
@@ -80,10 +227,11 @@ public class JpaModule implements Module {
 		for (Map.Entry<String, String> persistenceManagerAndUnit : getPersistenceUnitNames(injectionContext).entrySet()) {
 			String persistenceManagerName = persistenceManagerAndUnit.getKey();
 			String persistenceUnitName = persistenceManagerAndUnit.getValue();
-			PersistenceManager persistenceManager = new PersistenceManagerImpl(persistenceUnitName);
+			PersistenceManager persistenceManager = createPersistenceManager(injectionContext, persistenceManagerName, persistenceUnitName);
 			registry.register(persistenceManagerName, persistenceManager);
 			injectionContext.inject(persistenceManager).named(persistenceManagerName).as(PersistenceManager.class);
 			Logger.info("Registered persistence manager %s against persistence unit %s", persistenceManagerName, persistenceUnitName);
+			initializeShards(injectionContext, registry, persistenceManagerName, persistenceManager);
 		}
 
 		// Put reference into servlet context to provide context listener with access to call
@@ -94,6 +242,513 @@ public class JpaModule implements Module {
 		return registry;
 	}
 
+	/**
+	 * Setting <code>shards</code> to a list of persistence unit names spreads the data of a persistence manager across
+	 * its own persistence unit, which becomes the first shard, and those listed. Each shard is registered as
+	 * <code>&lt;manager&gt;-shard&lt;index&gt;</code> so it can be used by {@link JpaSession}, and the
+	 * {@link ShardedPersistenceManager} is available for injection under the name of the persistence manager. Keys are
+	 * spread across shards by <code>shardStrategy</code>, either <code>hash</code> (the default) or the class name of
+	 * a {@link ShardStrategy}.
+	 */
+	protected void initializeShards(UpdatableInjectionContext injectionContext, PersistenceManagerRegistry registry, String persistenceManagerName, PersistenceManager persistenceManager) {
+		String[] shardUnitNames = StringUtils.split(getConfiguration(injectionContext, persistenceManagerName, ShardsConfigName), ", ");
+		if (shardUnitNames == null || shardUnitNames.length == 0) {
+			return;
+		}
+
+		List<PersistenceManager> shards = new ArrayList<PersistenceManager>();
+		shards.add(persistenceManager);
+		for (String shardUnitName : shardUnitNames) {
+			PersistenceManagerImpl shard = createPersistenceManagerImpl(injectionContext, persistenceManagerName, shardUnitName);
+			shard.setEntityCache(createEntityCache(injectionContext, persistenceManagerName));
+			shard.setResultCache(createResultCache(injectionContext, persistenceManagerName));
+			String shardName = String.format("%s-shard%d", persistenceManagerName, shards.size());
+			shards.add(shard);
+			registry.register(shardName, shard);
+			injectionContext.inject(shard).named(shardName).as(PersistenceManager.class);
+			Logger.info("Registered shard %s against persistence unit %s", shardName, shardUnitName);
+		}
+		ShardedPersistenceManager shardedPersistenceManager = new ShardedPersistenceManager(shards, createShardStrategy(injectionContext, persistenceManagerName));
+		shardedPersistenceManagers.add(shardedPersistenceManager);
+		injectionContext.inject(shardedPersistenceManager).named(persistenceManagerName).as(ShardedPersistenceManager.class);
+	}
+
+	protected ShardStrategy createShardStrategy(UpdatableInjectionContext injectionContext, String persistenceManagerName) {
+		String shardStrategy = getConfiguration(injectionContext, persistenceManagerName, ShardStrategyConfigName);
+		if (shardStrategy == null || "hash".equalsIgnoreCase(shardStrategy)) {
+			return new HashShardStrategy();
+		}
+		try {
+			return Class.forName(shardStrategy).asSubclass(ShardStrategy.class).newInstance();
+		} catch (Exception e) {
+			throw new JpaException(e, "Failed to initialise persistence manager %s, expected %s to be hash or the name of a %s but got '%s'", persistenceManagerName,
+					ShardStrategyConfigName, ShardStrategy.class.getSimpleName(), shardStrategy);
+		}
+	}
+
+	/**
+	 * Creates the persistence manager for the given persistence unit. Override this to customise how persistence
+	 * managers are constructed.
+	 * <p>
+	 * Setting <code>replicas</code> to a list of persistence unit names fronts the persistence unit with a
+	 * {@link RoutingPersistenceManager} which sends read only sessions to those replicas. Replicas are chosen according
+	 * to <code>replicaSelection</code>, either <code>roundRobin</code> (the default) or <code>leastLatency</code>, which
+	 * prefers the replica with the shortest average session duration, and failed replicas are taken out of service for
+	 * <code>replicaEjectionMillis</code>. The primary and its replicas share an entity cache and a result cache.
+	 */
+	protected PersistenceManager createPersistenceManager(UpdatableInjectionContext injectionContext, String persistenceManagerName, String persistenceUnitName) {
+		EntityCache entityCache = createEntityCache(injectionContext, persistenceManagerName);
+		ResultCache resultCache = createResultCache(injectionContext, persistenceManagerName);
+		PersistenceManagerImpl primary = createPersistenceManagerImpl(injectionContext, persistenceManagerName, persistenceUnitName);
+		primary.setEntityCache(entityCache);
+		primary.setResultCache(resultCache);
+		String[] replicaUnitNames = StringUtils.split(getConfiguration(injectionContext, persistenceManagerName, ReplicasConfigName), ", ");
+		if (replicaUnitNames == null || replicaUnitNames.length == 0) {
+			return primary;
+		}
+
+		List<Replica> replicas = new ArrayList<Replica>();
+		for (String replicaUnitName : replicaUnitNames) {
+			PersistenceManagerImpl replica = createPersistenceManagerImpl(injectionContext, persistenceManagerName, replicaUnitName);
+			replica.setEntityCache(entityCache);
+			replica.setResultCache(resultCache);
+			replicas.add(new Replica(replicaUnitName, replica));
+			Logger.info("Registered replica persistence unit %s for persistence manager %s", replicaUnitName, persistenceManagerName);
+		}
+		RoutingPersistenceManager routingPersistenceManager = new RoutingPersistenceManager(primary, replicas, createReplicaSelector(injectionContext, persistenceManagerName),
+				sessionContext);
+		routingPersistenceManager.setEjectionMillis(getConfiguration(injectionContext, persistenceManagerName, ReplicaEjectionMillisConfigName, (int) RoutingPersistenceManager.DefaultEjectionMillis));
+		return routingPersistenceManager;
+	}
+
+	/**
+	 * Creates a persistence manager for a single persistence unit. Setting <code>entityManagerPoolSize</code> recycles up
+	 * to that many idle entity managers between requests.
+	 */
+	protected PersistenceManagerImpl createPersistenceManagerImpl(UpdatableInjectionContext injectionContext, String persistenceManagerName, String persistenceUnitName) {
+		Map<String, Object> properties = getPersistenceUnitProperties(injectionContext, persistenceManagerName, persistenceUnitName);
+		ConnectionPool connectionPool = createConnectionPool(injectionContext, persistenceManagerName, persistenceUnitName);
+		String key = null;
+		if (connectionPool != null) {
+			key = persistenceManagerName + ":" + persistenceUnitName;
+			PooledConnectionProvider.register(key, connectionPool);
+			properties = new HashMap<String, Object>(properties);
+			properties.put(AvailableSettings.CONNECTION_PROVIDER, PooledConnectionProvider.class.getName());
+			properties.put(PooledConnectionProvider.ConnectionPoolProperty, key);
+		}
+		PersistenceManagerImpl persistenceManager;
+		if (bootstrapExecutor == null || bootstrapExecutor.isShutdown()) {
+			try {
+				persistenceManager = new PersistenceManagerImpl(persistenceUnitName, properties, sessionContext);
+			} finally {
+				unregisterConnectionPool(key);
+			}
+		} else {
+			persistenceManager = new PersistenceManagerImpl(persistenceUnitName, bootstrapExecutor.submit(bootstrap(persistenceUnitName, properties, key)), sessionContext);
+			bootstrapping.add(persistenceManager);
+		}
+		if (connectionPool != null) {
+			injectionContext.inject(connectionPool).named(persistenceUnitName).as(ConnectionPool.class);
+		}
+		persistenceManager.setEntityManagerPoolSize(getConfiguration(injectionContext, persistenceManagerName, EntityManagerPoolSizeConfigName, 0));
+		persistenceManager.setSlowQueryLog(createSlowQueryLog(injectionContext, persistenceManagerName));
+		persistenceManager.setPersistenceContextGuard(createPersistenceContextGuard(injectionContext, persistenceManagerName));
+		if ("on".equalsIgnoreCase(getConfiguration(injectionContext, persistenceManagerName, WarmUpConfigName))) {
+			warmUps.add(new WarmUp(persistenceUnitName, persistenceManager, connectionPool, createWarmUpActions(injectionContext, persistenceManagerName)));
+		}
+		return persistenceManager;
+	}
+
+	/**
+	 * Creates the actions run when warming up the persistence units of a persistence manager, named by
+	 * <code>warmUpActions</code>.
+	 * 
+	 * @return the actions, empty if there are none
+	 */
+	protected List<JpaAction<?>> createWarmUpActions(UpdatableInjectionContext injectionContext, String persistenceManagerName) {
+		List<JpaAction<?>> actions = new ArrayList<JpaAction<?>>();
+		String[] actionNames = StringUtils.split(getConfiguration(injectionContext, persistenceManagerName, WarmUpActionsConfigName), ", ");
+		if (actionNames == null) {
+			return actions;
+		}
+		for (String actionName : actionNames) {
+			try {
+				actions.add(Class.forName(actionName).asSubclass(JpaAction.class).newInstance());
+			} catch (Exception e) {
+				throw new JpaException(e, "Failed to initialise persistence manager %s, expected each entry of %s to be the name of a %s but got '%s'", persistenceManagerName,
+						WarmUpActionsConfigName, JpaAction.class.getSimpleName(), actionName);
+			}
+		}
+		return actions;
+	}
+
+	/**
+	 * Creates the executor EntityManagerFactories are created on, which for applications with several persistence
+	 * units shortens startup. By default, or with <code>jpaBootstrap</code> set to <code>serial</code>, each factory
+	 * is created in turn as persistence managers are created. Setting it to <code>parallel</code> creates factories on
+	 * up to <code>jpaBootstrapThreads</code> threads, by default one per processor, and waits for all of them before
+	 * completing configuration. <code>lazy</code> does the same in the background without waiting, so each
+	 * persistence manager only waits for its factory when first used.
+	 * 
+	 * @return the executor, or null if factories are created serially
+	 */
+	protected ExecutorService createBootstrapExecutor(UpdatableInjectionContext injectionContext) {
+		String bootstrap = getConfiguration(injectionContext, null, BootstrapConfigName);
+		if (bootstrap == null || "serial".equalsIgnoreCase(bootstrap)) {
+			return null;
+		}
+		if (!"parallel".equalsIgnoreCase(bootstrap) && !"lazy".equalsIgnoreCase(bootstrap)) {
+			throw new JpaException("Failed to initialise thundr-jpa, expected %s to be one of parallel, lazy or serial but got '%s'", BootstrapConfigName, bootstrap);
+		}
+		lazyBootstrap = "lazy".equalsIgnoreCase(bootstrap);
+		int threads = getConfiguration(injectionContext, null, BootstrapThreadsConfigName, Runtime.getRuntime().availableProcessors());
+		return Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+			private AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "thundr-jpa-bootstrap-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * @param connectionPoolKey the key the connection pool of the persistence unit is registered under, or null if
+	 *            connections are not pooled by thundr-jpa
+	 */
+	private Callable<EntityManagerFactory> bootstrap(final String persistenceUnitName, final Map<String, Object> properties, final String connectionPoolKey) {
+		return new Callable<EntityManagerFactory>() {
+			@Override
+			public EntityManagerFactory call() {
+				long start = System.nanoTime();
+				try {
+					EntityManagerFactory entityManagerFactory = PersistenceManagerImpl.createEntityManagerFactory(persistenceUnitName, properties);
+					Logger.info("Created EntityManagerFactory for persistence unit %s in %dms", persistenceUnitName, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+					return entityManagerFactory;
+				} catch (RuntimeException e) {
+					Logger.error("Failed to create EntityManagerFactory for persistence unit %s: %s", persistenceUnitName, e.getMessage());
+					throw e;
+				} finally {
+					unregisterConnectionPool(connectionPoolKey);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Removes a connection pool handed to {@link PooledConnectionProvider} once its factory has been created, which
+	 * only remains registered if creating the factory failed before the provider took it.
+	 */
+	private static void unregisterConnectionPool(String connectionPoolKey) {
+		if (connectionPoolKey != null) {
+			PooledConnectionProvider.unregister(connectionPoolKey);
+		}
+	}
+
+	/**
+	 * Lets the factories being created finish, waiting for them unless bootstrapping lazily.
+	 */
+	private void awaitBootstrap() {
+		if (bootstrapExecutor == null) {
+			return;
+		}
+		bootstrapExecutor.shutdown();
+		try {
+			if (!lazyBootstrap) {
+				for (PersistenceManagerImpl persistenceManager : bootstrapping) {
+					persistenceManager.getEntityManagerFactory();
+				}
+			}
+		} finally {
+			bootstrapping.clear();
+		}
+	}
+
+	/**
+	 * Creates the pool of JDBC connections for a persistence unit, which replaces the connection provider declared by
+	 * the persistence unit. Setting <code>connectionPoolMaxSize</code> pools up to that many connections, keeping at
+	 * least <code>connectionPoolMinSize</code> open. Callers wait up to <code>connectionTimeoutMillis</code> for a
+	 * connection when all are in use, and connections held longer than <code>connectionLeakThresholdMillis</code> are
+	 * reported as possible leaks, so set this longer than any action should take. The time spent waiting for
+	 * connections is recorded as <code>jpa.&lt;manager&gt;.&lt;unit&gt;.connectionWait</code> when metrics are enabled.
+	 * 
+	 * @return the connection pool, or null if connections are not pooled by thundr-jpa
+	 */
+	protected ConnectionPool createConnectionPool(UpdatableInjectionContext injectionContext, String persistenceManagerName, String persistenceUnitName) {
+		int maxSize = getConfiguration(injectionContext, persistenceManagerName, ConnectionPoolMaxSizeConfigName, 0);
+		if (maxSize <= 0) {
+			return null;
+		}
+		int minSize = getConfiguration(injectionContext, persistenceManagerName, ConnectionPoolMinSizeConfigName, 0);
+		ConnectionPool connectionPool;
+		try {
+			connectionPool = new ConnectionPool(persistenceUnitName, minSize, maxSize);
+		} catch (IllegalArgumentException e) {
+			throw new JpaException(e, "Failed to initialise persistence manager %s: %s", persistenceManagerName, e.getMessage());
+		}
+		connectionPool.setTimeout(getConfiguration(injectionContext, persistenceManagerName, ConnectionTimeoutMillisConfigName, (int) ConnectionPool.DefaultTimeoutMillis),
+				TimeUnit.MILLISECONDS);
+		connectionPool.setLeakThreshold(getConfiguration(injectionContext, persistenceManagerName, ConnectionLeakThresholdMillisConfigName, 0), TimeUnit.MILLISECONDS);
+		connectionPool.setWaitHistogram(metricsRegistry.isEnabled() ? metricsRegistry.histogram("jpa." + persistenceManagerName + "." + persistenceUnitName + ".connectionWait")
+				: new LogHistogram());
+		return connectionPool;
+	}
+
+	/**
+	 * Creates the log of slow statements issued through {@link JpaTemplate}. Setting
+	 * <code>slowQueryThresholdMillis</code> logs statements taking at least that long. Slow queries are written by a
+	 * single background thread shared by all persistence managers, holding up to <code>jpaSlowQueryBufferSize</code>
+	 * slow queries waiting to be written.
+	 * 
+	 * @return the slow query log, or null if slow queries are not logged
+	 */
+	protected SlowQueryLog createSlowQueryLog(UpdatableInjectionContext injectionContext, String persistenceManagerName) {
+		int thresholdMillis = getConfiguration(injectionContext, persistenceManagerName, SlowQueryThresholdMillisConfigName, 0);
+		if (thresholdMillis <= 0) {
+			return null;
+		}
+		if (slowQueryWriter == null) {
+			slowQueryWriter = new SlowQueryWriter(getConfiguration(injectionContext, null, SlowQueryBufferSizeConfigName, SlowQueryWriter.DefaultCapacity),
+					SlowQueryWriter.DefaultIntervalMillis, TimeUnit.MILLISECONDS);
+			slowQueryWriter.start();
+		}
+		Logger.info("Logging statements of persistence manager %s taking longer than %dms", persistenceManagerName, thresholdMillis);
+		return new SlowQueryLog(persistenceManagerName, thresholdMillis, TimeUnit.MILLISECONDS, slowQueryWriter);
+	}
+
+	/**
+	 * Creates the guard bounding the persistence context of each session. Setting
+	 * <code>persistenceContextSoftLimit</code> flushes and clears the persistence context of a session once it holds
+	 * more than that many entities, detaching them. Sessions which cannot be flushed, such as read only sessions, are
+	 * instead reported according to <code>persistenceContextLimitMode</code>, either <code>warn</code> (the default) or
+	 * <code>fail</code>. The largest size reached by each session is recorded as
+	 * <code>jpa.&lt;manager&gt;.persistenceContextSize</code> when metrics are enabled.
+	 * 
+	 * @return the guard, or null if the persistence context is not bounded
+	 */
+	protected PersistenceContextGuard createPersistenceContextGuard(UpdatableInjectionContext injectionContext, String persistenceManagerName) {
+		int softLimit = getConfiguration(injectionContext, persistenceManagerName, PersistenceContextSoftLimitConfigName, 0);
+		if (softLimit <= 0) {
+			return null;
+		}
+		String limitMode = getConfiguration(injectionContext, persistenceManagerName, PersistenceContextLimitModeConfigName);
+		PersistenceContextGuard.Mode mode;
+		if (limitMode == null || "warn".equalsIgnoreCase(limitMode)) {
+			mode = PersistenceContextGuard.Mode.Warn;
+		} else if ("fail".equalsIgnoreCase(limitMode)) {
+			mode = PersistenceContextGuard.Mode.Fail;
+		} else {
+			throw new JpaException("Failed to initialise persistence manager %s, expected %s to be one of warn or fail but got '%s'", persistenceManagerName,
+					PersistenceContextLimitModeConfigName, limitMode);
+		}
+		PersistenceContextGuard persistenceContextGuard = new PersistenceContextGuard(persistenceManagerName, softLimit, mode, sessionContext);
+		if (metricsRegistry.isEnabled()) {
+			persistenceContextGuard.setSizeHistogram(metricsRegistry.histogram("jpa." + persistenceManagerName + ".persistenceContextSize"));
+		}
+		return persistenceContextGuard;
+	}
+
+	/**
+	 * Creates the cache of entities shared between sessions. Setting <code>entityCache</code> to a list of entries in the
+	 * form <code>&lt;class&gt;:&lt;maxSize&gt;[:&lt;timeToLiveMillis&gt;]</code> caches up to <code>maxSize</code>
+	 * entities of each class, for <code>timeToLiveMillis</code> if given or otherwise until evicted.
+	 * 
+	 * @return the entity cache, or null if no entity classes are cached
+	 */
+	protected EntityCache createEntityCache(UpdatableInjectionContext injectionContext, String persistenceManagerName) {
+		String[] cachedEntities = StringUtils.split(getConfiguration(injectionContext, persistenceManagerName, EntityCacheConfigName), ", ");
+		if (cachedEntities == null || cachedEntities.length == 0) {
+			return null;
+		}
+
+		EntityCache entityCache = new EntityCache();
+		for (String cachedEntity : cachedEntities) {
+			String[] typeSizeAndTtl = StringUtils.split(cachedEntity, ":");
+			try {
+				if (typeSizeAndTtl.length < 2 || typeSizeAndTtl.length > 3) {
+					throw new IllegalArgumentException("Expected <class>:<maxSize>[:<timeToLiveMillis>]");
+				}
+				Class<?> type = Class.forName(typeSizeAndTtl[0]);
+				int maxSize = Integer.parseInt(typeSizeAndTtl[1]);
+				long timeToLiveMillis = typeSizeAndTtl.length == 3 ? Long.parseLong(typeSizeAndTtl[2]) : 0;
+				entityCache.configure(type, maxSize, timeToLiveMillis, TimeUnit.MILLISECONDS);
+			} catch (Exception e) {
+				throw new JpaException(e, "Failed to initialise persistence manager %s, expected each entry of %s in the form <class>:<maxSize>[:<timeToLiveMillis>] but got '%s'",
+						persistenceManagerName, EntityCacheConfigName, cachedEntity);
+			}
+		}
+		Logger.info("Caching entities %s for persistence manager %s", StringUtils.join(cachedEntities, ", "), persistenceManagerName);
+		return entityCache;
+	}
+
+	/**
+	 * Creates the cache of query results shared between sessions, used by templates which cache results. Setting
+	 * <code>resultCacheSize</code> caches results holding up to that many entity ids in total, for
+	 * <code>resultCacheTtlMillis</code> if set or otherwise until evicted or invalidated.
+	 * 
+	 * @return the result cache, or null if results are not cached
+	 */
+	protected ResultCache createResultCache(UpdatableInjectionContext injectionContext, String persistenceManagerName) {
+		int resultCacheSize = getConfiguration(injectionContext, persistenceManagerName, ResultCacheSizeConfigName, 0);
+		if (resultCacheSize <= 0) {
+			return null;
+		}
+		int timeToLiveMillis = getConfiguration(injectionContext, persistenceManagerName, ResultCacheTtlMillisConfigName, 0);
+		return new ResultCache(resultCacheSize, timeToLiveMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Creates the context holding the state of each session. Setting <code>jpaSessionContext</code> to
+	 * <code>propagating</code> allows a request to carry its session across threads, see
+	 * {@link PropagatingSessionContext}. Otherwise it may be <code>threadLocal</code> (the default) or the class name of
+	 * a {@link SessionContext}.
+	 */
+	protected SessionContext createSessionContext(UpdatableInjectionContext injectionContext) {
+		String sessionContext = getConfiguration(injectionContext, null, SessionContextConfigName);
+		if (sessionContext == null || "threadLocal".equalsIgnoreCase(sessionContext)) {
+			return new ThreadLocalSessionContext();
+		}
+		if ("propagating".equalsIgnoreCase(sessionContext)) {
+			return new PropagatingSessionContext();
+		}
+		try {
+			return Class.forName(sessionContext).asSubclass(SessionContext.class).newInstance();
+		} catch (Exception e) {
+			throw new JpaException(e, "Failed to initialise thundr-jpa, expected %s to be threadLocal, propagating or the name of a %s but got '%s'", SessionContextConfigName,
+					SessionContext.class.getSimpleName(), sessionContext);
+		}
+	}
+
+	/**
+	 * Creates the registry sessions are measured into. Setting <code>jpaMetrics</code> to <code>on</code> collects
+	 * metrics in memory, <code>jmx</code> also exposes them over JMX, and the class name of a {@link MetricsRegistry}
+	 * reports them through that registry. Metrics are off by default. Sessions are measured per action for up to
+	 * <code>jpaMetricsMaxActionNames</code> distinct actions, 200 by default, and as <code>other</code> beyond that.
+	 */
+	protected MetricsRegistry createMetricsRegistry(UpdatableInjectionContext injectionContext) {
+		String metrics = getConfiguration(injectionContext, null, MetricsConfigName);
+		if (metrics == null || "off".equalsIgnoreCase(metrics)) {
+			return new NoopMetricsRegistry();
+		}
+		if ("on".equalsIgnoreCase(metrics)) {
+			return new SimpleMetricsRegistry();
+		}
+		if ("jmx".equalsIgnoreCase(metrics)) {
+			SimpleMetricsRegistry simpleMetricsRegistry = new SimpleMetricsRegistry();
+			jmxMetricsView = new JmxMetricsView(simpleMetricsRegistry);
+			jmxMetricsView.register();
+			Logger.info("Registered persistence metrics with JMX as %s", JmxMetricsView.DefaultObjectName);
+			return simpleMetricsRegistry;
+		}
+		try {
+			return Class.forName(metrics).asSubclass(MetricsRegistry.class).newInstance();
+		} catch (Exception e) {
+			throw new JpaException(e, "Failed to initialise thundr-jpa, expected %s to be off, on, jmx or the name of a %s but got '%s'", MetricsConfigName,
+					MetricsRegistry.class.getSimpleName(), metrics);
+		}
+	}
+
+	/**
+	 * Creates the detector sessions are checked for N+1 queries by. Setting <code>jpaNPlusOneDetection</code> to
+	 * <code>log</code> logs a warning for each statement executed more than <code>jpaNPlusOneThreshold</code> times
+	 * (default 10) within a session, <code>fail</code> also fails the action, which is intended for tests. Detection is
+	 * off by default.
+	 * 
+	 * @return the detector, or null if N+1 queries are not detected
+	 */
+	protected NPlusOneDetector createNPlusOneDetector(UpdatableInjectionContext injectionContext) {
+		String detection = getConfiguration(injectionContext, null, NPlusOneDetectionConfigName);
+		if (detection == null || "off".equalsIgnoreCase(detection)) {
+			return null;
+		}
+		int threshold = getConfiguration(injectionContext, null, NPlusOneThresholdConfigName, NPlusOneDetector.DefaultThreshold);
+		if ("log".equalsIgnoreCase(detection)) {
+			return new NPlusOneDetector(NPlusOneDetector.Mode.Log, threshold);
+		}
+		if ("fail".equalsIgnoreCase(detection)) {
+			return new NPlusOneDetector(NPlusOneDetector.Mode.Fail, threshold);
+		}
+		throw new JpaException("Failed to initialise thundr-jpa, expected %s to be one of off, log or fail but got '%s'", NPlusOneDetectionConfigName, detection);
+	}
+
+	/**
+	 * Creates the executor used to run actions against persistence managers in parallel, running up to
+	 * <code>jpaParallelThreads</code> actions at once with up to <code>jpaParallelQueueSize</code> waiting. Once the
+	 * queue is full callers wait up to <code>jpaParallelQueueTimeoutMillis</code> for room before being rejected.
+	 */
+	protected ParallelJpaExecutor createParallelJpaExecutor(UpdatableInjectionContext injectionContext) {
+		int threads = getConfiguration(injectionContext, null, ParallelThreadsConfigName, ParallelJpaExecutor.DefaultThreads);
+		int queueSize = getConfiguration(injectionContext, null, ParallelQueueSizeConfigName, ParallelJpaExecutor.DefaultQueueSize);
+		ParallelJpaExecutor parallelJpaExecutor = new ParallelJpaExecutor(threads, queueSize);
+		parallelJpaExecutor.setQueueTimeout(getConfiguration(injectionContext, null, ParallelQueueTimeoutMillisConfigName, 0), TimeUnit.MILLISECONDS);
+		return parallelJpaExecutor;
+	}
+
+	protected ReplicaSelector createReplicaSelector(UpdatableInjectionContext injectionContext, String persistenceManagerName) {
+		String replicaSelection = getConfiguration(injectionContext, persistenceManagerName, ReplicaSelectionConfigName);
+		if (replicaSelection == null || "roundRobin".equalsIgnoreCase(replicaSelection)) {
+			return new RoundRobinReplicaSelector();
+		}
+		if ("leastLatency".equalsIgnoreCase(replicaSelection)) {
+			return new LeastLatencyReplicaSelector();
+		}
+		throw new JpaException("Failed to initialise persistence manager %s, expected %s to be one of roundRobin or leastLatency but got '%s'", persistenceManagerName,
+				ReplicaSelectionConfigName, replicaSelection);
+	}
+
+	/**
+	 * Gets the properties used to override those declared by a persistence unit. Setting <code>jdbcBatchSize</code>
+	 * enables JDBC batching of inserts and updates, <code>queryPlanCacheSize</code> bounds the number of parsed query
+	 * plans Hibernate caches. Hibernate does not report hits or misses of its query plan cache, so the module has no
+	 * counters for it. A {@link MetricsInterceptor} is installed when metrics or N+1 query detection are enabled.
+	 * 
+	 * @return a map of persistence unit properties, empty if there is nothing to override
+	 */
+	protected Map<String, Object> getPersistenceUnitProperties(UpdatableInjectionContext injectionContext, String persistenceManagerName, String persistenceUnitName) {
+		Map<String, Object> properties = new HashMap<String, Object>();
+		int jdbcBatchSize = getConfiguration(injectionContext, persistenceManagerName, JdbcBatchSizeConfigName, 0);
+		if (jdbcBatchSize > 0) {
+			properties.put(AvailableSettings.STATEMENT_BATCH_SIZE, String.valueOf(jdbcBatchSize));
+			properties.put(AvailableSettings.ORDER_INSERTS, "true");
+			properties.put(AvailableSettings.ORDER_UPDATES, "true");
+		}
+		int queryPlanCacheSize = getConfiguration(injectionContext, persistenceManagerName, QueryPlanCacheSizeConfigName, 0);
+		if (queryPlanCacheSize > 0) {
+			properties.put(AvailableSettings.QUERY_PLAN_CACHE_MAX_SIZE, String.valueOf(queryPlanCacheSize));
+		}
+		if (metricsRegistry.isEnabled() || nPlusOneDetector != null) {
+			properties.put("hibernate.ejb.interceptor.session_scoped", MetricsInterceptor.class.getName());
+		}
+		return properties;
+	}
+
+	/**
+	 * Gets a setting for the given persistence manager. A setting named <code>&lt;manager&gt;.&lt;setting&gt;</code>
+	 * takes precedence over one named <code>&lt;setting&gt;</code>, which applies to all persistence managers. Settings
+	 * which are not specific to a persistence manager are read with a null persistence manager name.
+	 * 
+	 * @return the configured value, or null if not set
+	 */
+	protected String getConfiguration(UpdatableInjectionContext injectionContext, String persistenceManagerName, String setting) {
+		String value = persistenceManagerName == null ? null : injectionContext.get(String.class, persistenceManagerName + "." + setting);
+		if (StringUtils.isBlank(value)) {
+			value = injectionContext.get(String.class, setting);
+		}
+		return StringUtils.isBlank(value) ? null : StringUtils.trim(value);
+	}
+
+	protected int getConfiguration(UpdatableInjectionContext injectionContext, String persistenceManagerName, String setting, int defaultValue) {
+		String value = getConfiguration(injectionContext, persistenceManagerName, setting);
+		try {
+			return value == null ? defaultValue : Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new JpaException(e, "Failed to initialise %s, expected %s to be a number but got '%s'", persistenceManagerName == null ? "thundr-jpa" : "persistence manager " + persistenceManagerName,
+					setting, value);
+		}
+	}
+
 	/**
 	 * Gets a list of persistence unit names to initialize. Defaults to a single persistence unit named after the
 	 * current environment as provided by {@link Environment#get()}. Override this if you wish to initialize a
@@ -17,23 +17,126 @@
  */
 package com.threewks.thundr.jpa;
 
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.persistence.EntityManager;
+import javax.persistence.EntityTransaction;
+import javax.persistence.Parameter;
+import javax.persistence.PersistenceUnitUtil;
+import javax.persistence.Query;
 import javax.persistence.TypedQuery;
+import javax.persistence.metamodel.EntityType;
+import javax.transaction.Synchronization;
+
+import com.threewks.thundr.jpa.cache.EntityCache;
+import com.threewks.thundr.jpa.cache.ResultCache;
+import com.threewks.thundr.jpa.metrics.SlowQueryLog;
+
+import org.hibernate.ScrollMode;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.persister.entity.EntityPersister;
 
 /**
  * JpaTemplate class inspired by Spring's JpaTemplate without Spring framework baggage.
  */
 public class JpaTemplate<T> {
+	/**
+	 * Default number of rows fetched from the database per round trip when iterating over results.
+	 */
+	public static final int DefaultFetchSize = 100;
+
+	/**
+	 * Default number of entities flushed to the database at a time by the bulk operations. This should match the
+	 * <code>hibernate.jdbc.batch_size</code> of the persistence unit so each flush is sent as a single JDBC batch.
+	 */
+	public static final int DefaultBatchSize = 50;
+
+	/**
+	 * Default maximum number of ids bound to a single <code>IN</code> clause by {@link #getAll(Collection)}, below the
+	 * parameter limits of common databases.
+	 */
+	public static final int DefaultInClauseSize = 500;
 
 	private PersistenceManager persistenceManager;
+	private ExtendedPersistenceManager extendedPersistenceManager;
 	private Class<T> type;
+	private String countQuery;
+	private int fetchSize = DefaultFetchSize;
+	private int batchSize = DefaultBatchSize;
+	private int inClauseSize = DefaultInClauseSize;
+	private boolean cacheResults = false;
 
 	public JpaTemplate(PersistenceManager persistenceManager, Class<T> type) {
 		this.persistenceManager = persistenceManager;
+		this.extendedPersistenceManager = persistenceManager instanceof ExtendedPersistenceManager ? (ExtendedPersistenceManager) persistenceManager : null;
 		this.type = type;
+		this.countQuery = "SELECT count(*) FROM " + type.getName();
+	}
+
+	public int getFetchSize() {
+		return fetchSize;
+	}
+
+	/**
+	 * Sets the JDBC fetch size used by the <code>iterate</code> methods.
+	 * 
+	 * @param fetchSize the number of rows to fetch per round trip
+	 */
+	public void setFetchSize(int fetchSize) {
+		this.fetchSize = fetchSize;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Sets the number of entities the bulk operations flush and clear from the persistence context at a time.
+	 * 
+	 * @param batchSize the number of entities per batch
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	public int getInClauseSize() {
+		return inClauseSize;
+	}
+
+	/**
+	 * Sets the maximum number of ids {@link #getAll(Collection)} binds to a single query, which must not exceed the
+	 * number of parameters the database accepts in a statement.
+	 * 
+	 * @param inClauseSize the maximum number of ids per query
+	 */
+	public void setInClauseSize(int inClauseSize) {
+		this.inClauseSize = inClauseSize;
+	}
+
+	public boolean isCacheResults() {
+		return cacheResults;
+	}
+
+	/**
+	 * Enables caching of the results of the <code>query</code> and <code>namedQuery</code> methods in the
+	 * {@link ResultCache} of the persistence manager, if it has one. Cached results are held as ids, so a repeated query
+	 * only looks its entities up by id. Results are invalidated whenever entities of this type are written through any
+	 * template.
+	 * 
+	 * @param cacheResults true to cache query results
+	 */
+	public void setCacheResults(boolean cacheResults) {
+		this.cacheResults = cacheResults;
 	}
 
 	public EntityManager getEntityManager() {
@@ -41,8 +144,7 @@ public class JpaTemplate<T> {
 	}
 
 	public <E> E execute(JpaAction<E> action) {
-		EntityManager em = getEntityManager();
-		return action.run(em);
+		return execute(action.getClass().getName(), null, action);
 	}
 
 	public List<T> executeFind(JpaAction<List<T>> action) {
@@ -50,25 +152,47 @@ public class JpaTemplate<T> {
 	}
 
 	public long count() {
-		return execute(new JpaAction<Long>() {
+		return execute(countQuery, null, new JpaAction<Long>() {
 			@Override
 			public Long run(EntityManager em) {
-				return (Long) em.createQuery("SELECT count(*) FROM " + type.getName()).getSingleResult();
+				return em.createQuery(countQuery, Long.class).getSingleResult();
 			}
 		});
 	}
 
+	/**
+	 * Gets an entity by id. An entity already in the persistence context of the current entity manager is returned as
+	 * is. Otherwise, if the entity type is cached by the {@link EntityCache} of the persistence manager, a detached copy
+	 * of the cached entity is returned without using the entity manager.
+	 */
 	public T get(final Object id) {
-		return execute(new JpaAction<T>() {
+		final EntityCache entityCache = getEntityCache();
+		T cached = entityCache == null || isManaged(id) ? null : entityCache.get(type, id);
+		if (cached != null) {
+			return cached;
+		}
+		return execute("find " + type.getName(), id, new JpaAction<T>() {
 			@Override
 			public T run(EntityManager em) {
-				return em.find(type, id);
+				if (entityCache == null || getManaged(em, id) != null) {
+					// an entity already in the persistence context may have unflushed changes, so is not cached
+					return em.find(type, id);
+				}
+				long generation = entityCache.getGeneration(type);
+				T entity = em.find(type, id);
+				entityCache.put(type, id, entity, generation);
+				return entity;
 			}
 		});
 	}
 
 	public T getReference(final Object id) {
-		return execute(new JpaAction<T>() {
+		EntityCache entityCache = getEntityCache();
+		T cached = entityCache == null || isManaged(id) ? null : entityCache.get(type, id);
+		if (cached != null) {
+			return cached;
+		}
+		return execute("getReference " + type.getName(), id, new JpaAction<T>() {
 			@Override
 			public T run(EntityManager em) {
 				// TODO - the api contract of throwing EntityNotFoundException is unclear, this should probably be consistent from this method
@@ -78,8 +202,45 @@ public class JpaTemplate<T> {
 		});
 	}
 
+	/**
+	 * Gets the entities with the given ids. Entities already loaded by the current entity manager are returned as is
+	 * and those in the entity cache are returned as detached copies, the rest are loaded with as few queries as
+	 * possible, each binding up to {@link #getInClauseSize()} ids. Ids must be of the same type as the id attribute of
+	 * the entity.
+	 * 
+	 * @return the entity for each id, in the order of the ids, with null for ids which do not exist
+	 */
+	public List<T> getAll(final Collection<?> ids) {
+		final Map<Object, T> found = new HashMap<Object, T>();
+		final Set<Object> missing = new LinkedHashSet<Object>();
+		EntityCache entityCache = getEntityCache();
+		EntityManager em = entityCache == null ? null : getBoundEntityManager();
+		for (Object id : ids) {
+			T cached = entityCache == null || em != null && getManaged(em, id) != null ? null : entityCache.get(type, id);
+			if (cached == null) {
+				missing.add(id);
+			} else {
+				found.put(id, cached);
+			}
+		}
+		if (!missing.isEmpty()) {
+			execute("getAll " + type.getName(), missing, new VoidAction() {
+				@Override
+				public void vrun(EntityManager em) {
+					load(em, missing, found);
+				}
+			});
+		}
+
+		List<T> results = new ArrayList<T>(ids.size());
+		for (Object id : ids) {
+			results.add(found.get(id));
+		}
+		return results;
+	}
+
 	public boolean contains(final T entity) {
-		return execute(new JpaAction<Boolean>() {
+		return execute("contains " + type.getName(), null, new JpaAction<Boolean>() {
 			@Override
 			public Boolean run(EntityManager em) {
 				return em.contains(entity);
@@ -88,34 +249,37 @@ public class JpaTemplate<T> {
 	}
 
 	public T merge(final T entity) {
-		return execute(new JpaAction<T>() {
+		return execute("merge " + type.getName(), null, new JpaAction<T>() {
 			@Override
 			public T run(EntityManager em) {
+				written(em, entity);
 				return em.merge(entity);
 			}
 		});
 	}
 
 	public void persist(final T entity) {
-		execute(new VoidAction() {
+		execute("persist " + type.getName(), null, new VoidAction() {
 			@Override
 			public void vrun(EntityManager em) {
 				em.persist(entity);
+				written(em, entity);
 			}
 		});
 	}
 
 	public void remove(final T entity) {
-		execute(new VoidAction() {
+		execute("remove " + type.getName(), null, new VoidAction() {
 			@Override
 			public void vrun(EntityManager em) {
+				written(em, entity);
 				em.remove(entity);
 			}
 		});
 	}
 
 	public void refresh(final T entity) {
-		execute(new VoidAction() {
+		execute("refresh " + type.getName(), null, new VoidAction() {
 			@Override
 			public void vrun(EntityManager em) {
 				em.refresh(entity);
@@ -124,7 +288,7 @@ public class JpaTemplate<T> {
 	}
 
 	public void flush() {
-		execute(new VoidAction() {
+		execute("flush", null, new VoidAction() {
 			@Override
 			public void vrun(EntityManager em) {
 				em.flush();
@@ -132,35 +296,169 @@ public class JpaTemplate<T> {
 		});
 	}
 
+	/**
+	 * Persists all of the given entities, flushing and clearing the persistence context every {@link #getBatchSize()}
+	 * entities so that memory use is bounded. As the persistence context is cleared, any entity previously loaded by the
+	 * current entity manager becomes detached. Must be called inside a transaction.
+	 * 
+	 * @return statistics on the batches flushed
+	 */
+	public BatchResult persistAll(Iterable<? extends T> entities) {
+		return batch("persistAll " + type.getName(), entities, new BatchOperation<T>() {
+			@Override
+			public void apply(EntityManager em, T entity) {
+				em.persist(entity);
+				written(em, entity);
+			}
+		});
+	}
+
+	/**
+	 * Merges all of the given entities, flushing and clearing the persistence context every {@link #getBatchSize()}
+	 * entities. The same restrictions as {@link #persistAll(Iterable)} apply.
+	 * 
+	 * @return statistics on the batches flushed
+	 */
+	public BatchResult mergeAll(Iterable<? extends T> entities) {
+		return batch("mergeAll " + type.getName(), entities, new BatchOperation<T>() {
+			@Override
+			public void apply(EntityManager em, T entity) {
+				written(em, entity);
+				em.merge(entity);
+			}
+		});
+	}
+
+	/**
+	 * Removes all of the given entities, flushing and clearing the persistence context every {@link #getBatchSize()}
+	 * entities. Entities which are no longer managed are looked up by id before being removed, entities which do not
+	 * exist are ignored. The same restrictions as {@link #persistAll(Iterable)} apply.
+	 * 
+	 * @return statistics on the batches flushed
+	 */
+	public BatchResult removeAll(Iterable<? extends T> entities) {
+		return batch("removeAll " + type.getName(), entities, new BatchOperation<T>() {
+			@Override
+			public void apply(EntityManager em, T entity) {
+				T managed = entity;
+				if (!em.contains(entity)) {
+					Object id = em.getEntityManagerFactory().getPersistenceUnitUtil().getIdentifier(entity);
+					managed = id == null ? null : em.find(type, id);
+				}
+				if (managed != null) {
+					written(em, managed);
+					em.remove(managed);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Runs a JPQL update or delete of entities of this type as a single set based statement, without loading the
+	 * entities affected. Entities already in the persistence context are not updated, so should be refreshed if still
+	 * used. As the entities affected are unknown, all entities of this type are evicted from the entity cache and
+	 * cached results of this type are invalidated. Must be called inside a transaction.
+	 * 
+	 * @return the number of entities updated or deleted
+	 */
+	public int executeUpdate(final String statement, final Object... values) {
+		return execute(statement, values, new JpaAction<Integer>() {
+			@Override
+			public Integer run(EntityManager em) {
+				Query queryObject = em.createQuery(statement);
+				bind(queryObject, values);
+				return bulkWritten(em, queryObject.executeUpdate());
+			}
+		});
+	}
+
+	public int executeUpdate(final String statement, final Map<String, Object> params) {
+		return execute(statement, params, new JpaAction<Integer>() {
+			@Override
+			public Integer run(EntityManager em) {
+				Query queryObject = em.createQuery(statement);
+				bind(queryObject, params);
+				return bulkWritten(em, queryObject.executeUpdate());
+			}
+		});
+	}
+
+	/**
+	 * Updates all entities matching a condition in a single statement. The same restrictions as
+	 * {@link #executeUpdate(String, Map)} apply.
+	 * 
+	 * @param set the JPQL assignments to make, which refer to the entity as <code>e</code>, e.g.
+	 *            <code>e.status = :status</code>
+	 * @param where an optional JPQL condition, which refers to the entity as <code>e</code>, e.g.
+	 *            <code>e.expires &lt; :now</code>
+	 * @param params named parameters referenced by the assignments and condition
+	 * @return the number of entities updated
+	 */
+	public int updateWhere(String set, String where, Map<String, Object> params) {
+		return executeUpdate(bulkStatement("UPDATE " + type.getName() + " e SET " + set, where), params);
+	}
+
+	/**
+	 * As for {@link #updateWhere(String, String, Map)}, but updates entities in chunks of at most the given size.
+	 * 
+	 * @see #deleteWhere(String, Map, int)
+	 */
+	public BatchResult updateWhere(String set, String where, Map<String, Object> params, int chunkSize) {
+		return chunked("UPDATE " + type.getName() + " e SET " + set, where, params, chunkSize);
+	}
+
+	/**
+	 * Deletes all entities matching a condition in a single statement, such as purging expired rows. Cascades and
+	 * lifecycle callbacks do not apply to bulk deletes. The same restrictions as {@link #executeUpdate(String, Map)}
+	 * apply.
+	 * 
+	 * @param where an optional JPQL condition, which refers to the entity as <code>e</code>, e.g.
+	 *            <code>e.expires &lt; :now</code>
+	 * @param params named parameters referenced by the condition
+	 * @return the number of entities deleted
+	 */
+	public int deleteWhere(String where, Map<String, Object> params) {
+		return executeUpdate(bulkStatement("DELETE FROM " + type.getName() + " e", where), params);
+	}
+
+	/**
+	 * As for {@link #deleteWhere(String, Map)}, but deletes entities in chunks of consecutive ids, each holding at most
+	 * the given number of entities, so that no single statement affects a large number of rows.
+	 * <p>
+	 * When called inside a transaction, every chunk is deleted within that transaction, which is never committed here.
+	 * The size of each statement is bounded, but locks are held until the caller commits and the deletes are undone
+	 * should the caller roll back. When called outside a transaction, each chunk is deleted by a new entity manager in
+	 * a transaction of its own, committed before the next chunk is deleted, so locks are only held for one chunk at a
+	 * time. Chunks already committed then remain deleted should a later chunk fail.
+	 * 
+	 * @param chunkSize the maximum number of entities per chunk, at least 1
+	 * @return statistics on the chunks deleted
+	 */
+	public BatchResult deleteWhere(String where, Map<String, Object> params, int chunkSize) {
+		return chunked("DELETE FROM " + type.getName() + " e", where, params, chunkSize);
+	}
+
 	public List<T> query(String query) {
 		return query(query, (Object[]) null);
 	}
 
 	public List<T> query(final String query, final Object... values) {
-		return executeFind(new JpaAction<List<T>>() {
+		return cachedFind(false, query, values, new JpaAction<List<T>>() {
 			@Override
 			public List<T> run(EntityManager em) {
 				TypedQuery<T> queryObject = em.createQuery(query, type);
-				if (values != null) {
-					for (int i = 0; i < values.length; i++) {
-						queryObject.setParameter(i + 1, values[i]);
-					}
-				}
+				bind(queryObject, values);
 				return queryObject.getResultList();
 			}
 		});
 	}
 
 	public List<T> query(final String query, final Map<String, Object> params) {
-		return executeFind(new JpaAction<List<T>>() {
+		return cachedFind(false, query, params, new JpaAction<List<T>>() {
 			@Override
 			public List<T> run(EntityManager em) {
 				TypedQuery<T> queryObject = em.createQuery(query, type);
-				if (params != null) {
-					for (Map.Entry<String, Object> entry : params.entrySet()) {
-						queryObject.setParameter(entry.getKey(), entry.getValue());
-					}
-				}
+				bind(queryObject, params);
 				return queryObject.getResultList();
 			}
 		});
@@ -171,30 +469,684 @@ public class JpaTemplate<T> {
 	}
 
 	public List<T> namedQuery(final String queryName, final Object... values) {
-		return executeFind(new JpaAction<List<T>>() {
+		return cachedFind(true, queryName, values, new JpaAction<List<T>>() {
 			@Override
 			public List<T> run(EntityManager em) {
 				TypedQuery<T> queryObject = em.createNamedQuery(queryName, type);
-				for (int i = 0; i < values.length; i++) {
-					queryObject.setParameter(i + 1, values[i]);
-				}
+				bind(queryObject, values);
 				return queryObject.getResultList();
 			}
 		});
 	}
 
 	public List<T> namedQuery(final String queryName, final Map<String, Object> params) {
-		return executeFind(new JpaAction<List<T>>() {
+		return cachedFind(true, queryName, params, new JpaAction<List<T>>() {
 			@Override
 			public List<T> run(EntityManager em) {
 				TypedQuery<T> queryObject = em.createNamedQuery(queryName, type);
-				if (params != null) {
-					for (Map.Entry<String, Object> entry : params.entrySet()) {
-						queryObject.setParameter(entry.getKey(), entry.getValue());
+				bind(queryObject, params);
+				return queryObject.getResultList();
+			}
+		});
+	}
+
+	/**
+	 * Runs a query selecting scalar values rather than entities, mapping each row onto the given projection type through
+	 * a public constructor accepting the values of the row, for example
+	 * <code>project(Summary.class, "SELECT b.id, b.name FROM Beverage b")</code> with a
+	 * <code>Summary(String id, String name)</code> constructor. Pass <code>Object[].class</code> to return rows as they
+	 * are. Projections are not managed, so they cost neither entity materialization nor dirty checking.
+	 * 
+	 * @return the projection of each row
+	 */
+	public <P> List<P> project(final Class<P> projectionType, final String query, final Object... values) {
+		return execute(query, values, new JpaAction<List<P>>() {
+			@Override
+			public List<P> run(EntityManager em) {
+				Query queryObject = em.createQuery(query);
+				bind(queryObject, values);
+				return Projections.map(projectionType, queryObject.getResultList());
+			}
+		});
+	}
+
+	public <P> List<P> project(final Class<P> projectionType, final String query, final Map<String, Object> params) {
+		return execute(query, params, new JpaAction<List<P>>() {
+			@Override
+			public List<P> run(EntityManager em) {
+				Query queryObject = em.createQuery(query);
+				bind(queryObject, params);
+				return Projections.map(projectionType, queryObject.getResultList());
+			}
+		});
+	}
+
+	/**
+	 * As for {@link #project(Class, String, Object...)}, using a named query.
+	 */
+	public <P> List<P> namedProject(final Class<P> projectionType, final String queryName, final Object... values) {
+		return execute("named query " + queryName, values, new JpaAction<List<P>>() {
+			@Override
+			public List<P> run(EntityManager em) {
+				Query queryObject = em.createNamedQuery(queryName);
+				bind(queryObject, values);
+				return Projections.map(projectionType, queryObject.getResultList());
+			}
+		});
+	}
+
+	public <P> List<P> namedProject(final Class<P> projectionType, final String queryName, final Map<String, Object> params) {
+		return execute("named query " + queryName, params, new JpaAction<List<P>>() {
+			@Override
+			public List<P> run(EntityManager em) {
+				Query queryObject = em.createNamedQuery(queryName);
+				bind(queryObject, params);
+				return Projections.map(projectionType, queryObject.getResultList());
+			}
+		});
+	}
+
+	/**
+	 * Returns a page of results using an offset into the full result. The cost of retrieving a page grows with its
+	 * offset, prefer {@link #seek(String, Object, int)} for deep paging.
+	 * 
+	 * @param firstResult the index of the first result to return
+	 * @param pageSize the maximum number of results to return
+	 * @return the page, whose continuation is the index of the first result of the next page
+	 */
+	public Page<T> page(final String query, final int firstResult, final int pageSize, final Object... values) {
+		return execute(query, values, new JpaAction<Page<T>>() {
+			@Override
+			public Page<T> run(EntityManager em) {
+				TypedQuery<T> queryObject = em.createQuery(query, type);
+				bind(queryObject, values);
+				return offsetPage(queryObject, firstResult, pageSize);
+			}
+		});
+	}
+
+	public Page<T> page(final String query, final int firstResult, final int pageSize, final Map<String, Object> params) {
+		return execute(query, params, new JpaAction<Page<T>>() {
+			@Override
+			public Page<T> run(EntityManager em) {
+				TypedQuery<T> queryObject = em.createQuery(query, type);
+				bind(queryObject, params);
+				return offsetPage(queryObject, firstResult, pageSize);
+			}
+		});
+	}
+
+	public Page<T> namedPage(final String queryName, final int firstResult, final int pageSize, final Object... values) {
+		return execute("named query " + queryName, values, new JpaAction<Page<T>>() {
+			@Override
+			public Page<T> run(EntityManager em) {
+				TypedQuery<T> queryObject = em.createNamedQuery(queryName, type);
+				bind(queryObject, values);
+				return offsetPage(queryObject, firstResult, pageSize);
+			}
+		});
+	}
+
+	/**
+	 * Returns a page of all entities ordered by id, starting after the given id.
+	 * 
+	 * @see #seek(String, Map, String, Object, int)
+	 */
+	public Page<T> seek(Object after, int pageSize) {
+		return seek(null, null, null, after, pageSize);
+	}
+
+	/**
+	 * Returns a page of all entities ordered by the given key, starting after the given key value.
+	 * 
+	 * @see #seek(String, Map, String, Object, int)
+	 */
+	public Page<T> seek(String key, Object after, int pageSize) {
+		return seek(null, null, key, after, pageSize);
+	}
+
+	/**
+	 * Returns a page of entities ordered by a unique key, starting after the given key value. Rather than skipping
+	 * over an offset, each page seeks directly to its first row, so retrieving a page costs the same no matter how
+	 * deep it is as long as the key is indexed.
+	 * 
+	 * @param where an optional JPQL condition restricting the entities returned, which refers to the entity as
+	 *            <code>e</code>, e.g. <code>e.name like :name</code>
+	 * @param params named parameters referenced by the condition
+	 * @param key the attribute to order by, which must be unique. Defaults to the id.
+	 * @param after the key of the last entity of the previous page, or null for the first page
+	 * @param pageSize the maximum number of results to return
+	 * @return the page, whose continuation is the key of its last entity
+	 */
+	public Page<T> seek(final String where, final Map<String, Object> params, final String key, final Object after, final int pageSize) {
+		return execute("seek " + type.getName() + (where == null ? "" : " where " + where), params, new JpaAction<Page<T>>() {
+			@Override
+			@SuppressWarnings("unchecked")
+			public Page<T> run(EntityManager em) {
+				String attribute = key == null ? getIdAttribute(em) : key;
+				StringBuilder jpql = new StringBuilder("SELECT e, e.").append(attribute).append(" FROM ").append(type.getName()).append(" e");
+				if (where != null) {
+					jpql.append(" WHERE (").append(where).append(")");
+				}
+				if (after != null) {
+					jpql.append(where == null ? " WHERE " : " AND ").append("e.").append(attribute).append(" > :seekAfter");
+				}
+				jpql.append(" ORDER BY e.").append(attribute);
+
+				Query queryObject = em.createQuery(jpql.toString());
+				bind(queryObject, params);
+				if (after != null) {
+					queryObject.setParameter("seekAfter", after);
+				}
+				queryObject.setMaxResults(pageSize + 1);
+
+				List<Object[]> rows = queryObject.getResultList();
+				List<T> results = new ArrayList<T>(Math.min(rows.size(), pageSize));
+				Object next = null;
+				for (int i = 0; i < rows.size() && i < pageSize; i++) {
+					results.add(type.cast(rows.get(i)[0]));
+				}
+				if (rows.size() > pageSize) {
+					next = rows.get(pageSize - 1)[1];
+				}
+				return new Page<T>(results, next);
+			}
+		});
+	}
+
+	/**
+	 * Iterates over the results of the given query without loading them all into memory. Entities are read through a
+	 * forward only cursor and detached from the persistence context once the iterator has moved past them, so they
+	 * should not be modified. The returned iterator must be closed.
+	 */
+	public ResultIterator<T> iterate(String query) {
+		return iterate(query, (Object[]) null);
+	}
+
+	public ResultIterator<T> iterate(final String query, final Object... values) {
+		return execute(query, values, new JpaAction<ResultIterator<T>>() {
+			@Override
+			public ResultIterator<T> run(EntityManager em) {
+				TypedQuery<T> queryObject = em.createQuery(query, type);
+				bind(queryObject, values);
+				return scroll(em, queryObject);
+			}
+		});
+	}
+
+	public ResultIterator<T> iterate(final String query, final Map<String, Object> params) {
+		return execute(query, params, new JpaAction<ResultIterator<T>>() {
+			@Override
+			public ResultIterator<T> run(EntityManager em) {
+				TypedQuery<T> queryObject = em.createQuery(query, type);
+				bind(queryObject, params);
+				return scroll(em, queryObject);
+			}
+		});
+	}
+
+	public ResultIterator<T> namedIterate(String queryName) {
+		return namedIterate(queryName, new Object[0]);
+	}
+
+	public ResultIterator<T> namedIterate(final String queryName, final Object... values) {
+		return execute("named query " + queryName, values, new JpaAction<ResultIterator<T>>() {
+			@Override
+			public ResultIterator<T> run(EntityManager em) {
+				TypedQuery<T> queryObject = em.createNamedQuery(queryName, type);
+				bind(queryObject, values);
+				return scroll(em, queryObject);
+			}
+		});
+	}
+
+	public ResultIterator<T> namedIterate(final String queryName, final Map<String, Object> params) {
+		return execute("named query " + queryName, params, new JpaAction<ResultIterator<T>>() {
+			@Override
+			public ResultIterator<T> run(EntityManager em) {
+				TypedQuery<T> queryObject = em.createNamedQuery(queryName, type);
+				bind(queryObject, params);
+				return scroll(em, queryObject);
+			}
+		});
+	}
+
+	private BatchResult batch(String statement, final Iterable<? extends T> entities, final BatchOperation<T> operation) {
+		return execute(statement, null, new JpaAction<BatchResult>() {
+			@Override
+			public BatchResult run(EntityManager em) {
+				BatchResult result = new BatchResult();
+				int size = 0;
+				long start = System.nanoTime();
+				for (T entity : entities) {
+					operation.apply(em, entity);
+					if (++size == batchSize) {
+						em.flush();
+						em.clear();
+						result.addBatch(size, System.nanoTime() - start);
+						size = 0;
+						start = System.nanoTime();
 					}
 				}
-				return queryObject.getResultList();
+				if (size > 0) {
+					em.flush();
+					em.clear();
+					result.addBatch(size, System.nanoTime() - start);
+				}
+				return result;
 			}
 		});
 	}
+
+	/**
+	 * Runs a bulk statement over consecutive ranges of ids, each holding at most the given number of entities matching
+	 * the condition. Inside a transaction all ranges run in that transaction, otherwise each range runs in a new entity
+	 * manager and transaction of its own.
+	 */
+	private BatchResult chunked(final String bulk, final String where, final Map<String, Object> params, final int chunkSize) {
+		if (chunkSize < 1) {
+			throw new IllegalArgumentException(String.format("Invalid chunk size %d, expected at least 1", chunkSize));
+		}
+		return execute(bulkStatement(bulk, where), params, new JpaAction<BatchResult>() {
+			@Override
+			public BatchResult run(EntityManager em) {
+				String id = "e." + getIdAttribute(em);
+				String condition = where == null ? "" : "(" + where + ") AND ";
+				Chunk chunk = new Chunk(params, chunkSize);
+				chunk.select = String.format("SELECT %s FROM %s e WHERE %s%s > :chunkAfter ORDER BY %s", id, type.getName(), condition, id, id);
+				chunk.firstSelect = String.format("SELECT %s FROM %s e%s ORDER BY %s", id, type.getName(), where == null ? "" : " WHERE " + where, id);
+				chunk.update = String.format("%s WHERE %s%s > :chunkAfter AND %s <= :chunkLast", bulk, condition, id, id);
+				chunk.firstUpdate = String.format("%s WHERE %s%s <= :chunkLast", bulk, condition, id);
+
+				boolean inTransaction = em.getTransaction().isActive();
+				BatchResult result = new BatchResult();
+				do {
+					long start = System.nanoTime();
+					if (inTransaction) {
+						chunk.run(em);
+					} else {
+						runInOwnTransaction(em.getEntityManagerFactory().createEntityManager(), chunk);
+					}
+					if (chunk.size > 0) {
+						result.addBatch(chunk.count, System.nanoTime() - start);
+					}
+				} while (chunk.size == chunkSize);
+				return result;
+			}
+		});
+	}
+
+	private void runInOwnTransaction(EntityManager em, Chunk chunk) {
+		EntityTransaction transaction = em.getTransaction();
+		try {
+			transaction.begin();
+			chunk.run(em);
+			transaction.commit();
+		} finally {
+			if (transaction.isActive()) {
+				transaction.rollback();
+			}
+			em.close();
+		}
+	}
+
+	private static String bulkStatement(String bulk, String where) {
+		return where == null ? bulk : bulk + " WHERE " + where;
+	}
+
+	/**
+	 * Evicts all entities of this type from the entity cache and invalidates cached results of this type, after a bulk
+	 * statement wrote to an unknown set of entities.
+	 * 
+	 * @return the number of entities written
+	 */
+	private int bulkWritten(EntityManager em, int count) {
+		evict(em, new Eviction(getEntityCache(), getResultCache(), null));
+		return count;
+	}
+
+	/**
+	 * Runs an action against the entity manager, recording it in the slow query log of the persistence manager if it
+	 * takes too long. The persistence context is first checked against the persistence context guard of the
+	 * persistence manager, if any.
+	 */
+	private <E> E execute(String statement, Object parameters, JpaAction<E> action) {
+		EntityManager em = getEntityManager();
+		if (extendedPersistenceManager == null) {
+			return action.run(em);
+		}
+		// checked before rather than after the action, so the entities it returns are still managed
+		PersistenceContextGuard persistenceContextGuard = extendedPersistenceManager.getPersistenceContextGuard();
+		if (persistenceContextGuard != null) {
+			persistenceContextGuard.check(em);
+		}
+		SlowQueryLog slowQueryLog = extendedPersistenceManager.getSlowQueryLog();
+		if (slowQueryLog == null) {
+			return action.run(em);
+		}
+		long start = System.nanoTime();
+		E result = action.run(em);
+		slowQueryLog.record(statement, parameters, System.nanoTime() - start, rows(result));
+		return result;
+	}
+
+	/**
+	 * @return the number of rows an action returned, or -1 if unknown
+	 */
+	private int rows(Object result) {
+		if (result == null) {
+			return 0;
+		}
+		if (result instanceof Collection) {
+			return ((Collection<?>) result).size();
+		}
+		if (result instanceof Page) {
+			return ((Page<?>) result).size();
+		}
+		return type.isInstance(result) || result instanceof Number ? 1 : -1;
+	}
+
+	private Page<T> offsetPage(TypedQuery<T> queryObject, int firstResult, int pageSize) {
+		queryObject.setFirstResult(firstResult);
+		queryObject.setMaxResults(pageSize + 1);
+		List<T> results = queryObject.getResultList();
+		if (results.size() > pageSize) {
+			return new Page<T>(results.subList(0, pageSize), firstResult + pageSize);
+		}
+		return new Page<T>(results, null);
+	}
+
+	/**
+	 * @return the entity cache of the persistence manager if it caches this entity type, otherwise null
+	 */
+	private EntityCache getEntityCache() {
+		EntityCache entityCache = extendedPersistenceManager == null ? null : extendedPersistenceManager.getEntityCache();
+		return entityCache != null && entityCache.isCached(type) ? entityCache : null;
+	}
+
+	/**
+	 * @return the result cache of the persistence manager, or null if it does not cache results
+	 */
+	private ResultCache getResultCache() {
+		return extendedPersistenceManager == null ? null : extendedPersistenceManager.getResultCache();
+	}
+
+	/**
+	 * Evicts a written entity from the entity cache and invalidates cached results of this type.
+	 */
+	private void written(EntityManager em, T entity) {
+		EntityCache entityCache = getEntityCache();
+		Object id = entityCache == null ? null : em.getEntityManagerFactory().getPersistenceUnitUtil().getIdentifier(entity);
+		evict(em, new Eviction(id == null ? null : entityCache, getResultCache(), id));
+	}
+
+	/**
+	 * Runs an eviction immediately, and again once the current transaction completes. Other sessions may load and
+	 * cache the entities as they were before the write until it is committed, so only the eviction after completion
+	 * guarantees they are not cached stale.
+	 */
+	private void evict(EntityManager em, Eviction eviction) {
+		if (eviction.entityCache == null && eviction.resultCache == null) {
+			return;
+		}
+		eviction.run();
+		Object delegate = em.getDelegate();
+		if (delegate instanceof Session) {
+			Transaction transaction = ((Session) delegate).getTransaction();
+			if (transaction != null && transaction.isActive()) {
+				transaction.registerSynchronization(eviction);
+			}
+		}
+	}
+
+	/**
+	 * Runs the given query, unless its result is cached in which case its entities are looked up by id. The cache key
+	 * is only built when results are cached, so uncached queries do not pay for copying their parameters.
+	 * 
+	 * @param parameters the positional values or named parameters of the query
+	 */
+	private List<T> cachedFind(boolean named, String queryOrName, Object parameters, JpaAction<List<T>> query) {
+		String statement = named ? "named query " + queryOrName : queryOrName;
+		ResultCache resultCache = cacheResults ? getResultCache() : null;
+		if (resultCache == null) {
+			return execute(statement, parameters, query);
+		}
+
+		ResultCache.Key key = resultCacheKey(named, queryOrName, parameters);
+		List<Object> ids = resultCache.get(key);
+		if (ids != null) {
+			List<T> results = getAll(ids);
+			results.removeAll(Collections.singleton(null));
+			return results;
+		}
+
+		long generation = resultCache.getGeneration(type);
+		List<T> results = execute(statement, parameters, query);
+		PersistenceUnitUtil persistenceUnitUtil = getEntityManager().getEntityManagerFactory().getPersistenceUnitUtil();
+		ids = new ArrayList<Object>(results.size());
+		for (T entity : results) {
+			ids.add(persistenceUnitUtil.getIdentifier(entity));
+		}
+		resultCache.put(key, ids, generation);
+		return results;
+	}
+
+	@SuppressWarnings("unchecked")
+	private ResultCache.Key resultCacheKey(boolean named, String queryOrName, Object parameters) {
+		if (parameters instanceof Map) {
+			Map<String, Object> params = (Map<String, Object>) parameters;
+			return named ? ResultCache.Key.namedQuery(type, queryOrName, params) : ResultCache.Key.query(type, queryOrName, params);
+		}
+		Object[] values = (Object[]) parameters;
+		return named ? ResultCache.Key.namedQuery(type, queryOrName, values) : ResultCache.Key.query(type, queryOrName, values);
+	}
+
+	/**
+	 * Loads the entities with the given ids into the found map, taking those already in the persistence context from
+	 * there and querying for the rest in chunks.
+	 */
+	private void load(EntityManager em, Collection<Object> ids, Map<Object, T> found) {
+		List<Object> unloaded = new ArrayList<Object>(ids.size());
+		for (Object id : ids) {
+			T managed = getManaged(em, id);
+			if (managed == null) {
+				unloaded.add(id);
+			} else {
+				found.put(id, managed);
+			}
+		}
+		if (unloaded.isEmpty()) {
+			return;
+		}
+
+		EntityCache entityCache = getEntityCache();
+		long generation = entityCache == null ? 0 : entityCache.getGeneration(type);
+		PersistenceUnitUtil persistenceUnitUtil = em.getEntityManagerFactory().getPersistenceUnitUtil();
+		String query = String.format("SELECT e FROM %s e WHERE e.%s IN (:ids)", type.getName(), getIdAttribute(em));
+		for (int i = 0; i < unloaded.size(); i += inClauseSize) {
+			TypedQuery<T> queryObject = em.createQuery(query, type);
+			queryObject.setParameter("ids", pad(unloaded.subList(i, Math.min(i + inClauseSize, unloaded.size()))));
+			for (T entity : queryObject.getResultList()) {
+				Object id = persistenceUnitUtil.getIdentifier(entity);
+				found.put(id, entity);
+				if (entityCache != null) {
+					entityCache.put(type, id, entity, generation);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the entity manager of the persistence manager if one has already been created, otherwise null
+	 */
+	private EntityManager getBoundEntityManager() {
+		return extendedPersistenceManager != null && extendedPersistenceManager.hasEntityManager() ? getEntityManager() : null;
+	}
+
+	/**
+	 * @return true if the entity with the given id is in the persistence context of the current entity manager, which
+	 *         takes precedence over the entity cache as it may hold changes not yet flushed
+	 */
+	private boolean isManaged(Object id) {
+		EntityManager em = getBoundEntityManager();
+		return em != null && getManaged(em, id) != null;
+	}
+
+	/**
+	 * @return the entity with the given id if it is already in the persistence context, without loading it
+	 */
+	private T getManaged(EntityManager em, Object id) {
+		Object delegate = em.getDelegate();
+		if (!(delegate instanceof SessionImplementor) || !(id instanceof Serializable)) {
+			return null;
+		}
+		SessionImplementor session = (SessionImplementor) delegate;
+		EntityPersister persister = session.getFactory().getEntityPersister(type.getName());
+		return type.cast(session.getPersistenceContext().getEntity(session.generateEntityKey((Serializable) id, persister)));
+	}
+
+	/**
+	 * Pads a chunk of ids to the next power of two, up to {@link #getInClauseSize()}, by repeating its last id. This
+	 * bounds the number of distinct <code>IN</code> clause lengths, and so the number of query plans the database and
+	 * Hibernate need to cache.
+	 */
+	private List<Object> pad(List<Object> ids) {
+		int size = Math.min(Integer.highestOneBit(ids.size() * 2 - 1), inClauseSize);
+		List<Object> padded = new ArrayList<Object>(size);
+		padded.addAll(ids);
+		while (padded.size() < size) {
+			padded.add(ids.get(ids.size() - 1));
+		}
+		return padded;
+	}
+
+	private String getIdAttribute(EntityManager em) {
+		EntityType<T> entityType = em.getMetamodel().entity(type);
+		return entityType.getId(entityType.getIdType().getJavaType()).getName();
+	}
+
+	private ResultIterator<T> scroll(EntityManager em, TypedQuery<T> queryObject) {
+		org.hibernate.Query hibernateQuery = queryObject.unwrap(org.hibernate.Query.class);
+		hibernateQuery.setFetchSize(fetchSize);
+		hibernateQuery.setReadOnly(true);
+		return new ScrollableResultIterator<T>(em, hibernateQuery.scroll(ScrollMode.FORWARD_ONLY), type);
+	}
+
+	private static void bind(Query queryObject, Object[] values) {
+		if (values != null) {
+			for (int i = 0; i < values.length; i++) {
+				queryObject.setParameter(i + 1, values[i]);
+			}
+		}
+	}
+
+	private static void bind(Query queryObject, Map<String, Object> params) {
+		if (params != null) {
+			for (Map.Entry<String, Object> entry : params.entrySet()) {
+				queryObject.setParameter(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Binds only those of the given parameters which the query declares.
+	 */
+	private static void bindDeclared(Query queryObject, Map<String, Object> params) {
+		if (params != null) {
+			for (Parameter<?> parameter : queryObject.getParameters()) {
+				if (parameter.getName() != null && params.containsKey(parameter.getName())) {
+					queryObject.setParameter(parameter.getName(), params.get(parameter.getName()));
+				}
+			}
+		}
+	}
+
+	/**
+	 * The next range of ids of a chunked bulk statement, remembering the last id of each range so the following range
+	 * starts after it.
+	 */
+	private class Chunk {
+		private Map<String, Object> params;
+		private int chunkSize;
+		private String select;
+		private String firstSelect;
+		private String update;
+		private String firstUpdate;
+		private Object after;
+		private int size;
+		private int count;
+
+		private Chunk(Map<String, Object> params, int chunkSize) {
+			this.params = params;
+			this.chunkSize = chunkSize;
+		}
+
+		private void run(EntityManager em) {
+			Query selectObject = em.createQuery(after == null ? firstSelect : select);
+			// the parameters may include those of the assignments of an update, which the select does not declare
+			bindDeclared(selectObject, params);
+			if (after != null) {
+				selectObject.setParameter("chunkAfter", after);
+			}
+			selectObject.setMaxResults(chunkSize);
+			List<?> ids = selectObject.getResultList();
+			size = ids.size();
+			count = 0;
+			if (ids.isEmpty()) {
+				return;
+			}
+
+			Object last = ids.get(ids.size() - 1);
+			Query updateObject = em.createQuery(after == null ? firstUpdate : update);
+			bind(updateObject, params);
+			if (after != null) {
+				updateObject.setParameter("chunkAfter", after);
+			}
+			updateObject.setParameter("chunkLast", last);
+			count = bulkWritten(em, updateObject.executeUpdate());
+			after = last;
+		}
+	}
+
+	/**
+	 * Evicts a written entity, or all entities of the type if the id is null, from the entity cache and invalidates
+	 * cached results of the type. Registered with the writing transaction to run again once it completes.
+	 */
+	private class Eviction implements Synchronization {
+		private EntityCache entityCache;
+		private ResultCache resultCache;
+		private Object id;
+
+		private Eviction(EntityCache entityCache, ResultCache resultCache, Object id) {
+			this.entityCache = entityCache;
+			this.resultCache = resultCache;
+			this.id = id;
+		}
+
+		private void run() {
+			if (entityCache != null) {
+				if (id == null) {
+					entityCache.evictAll(type);
+				} else {
+					entityCache.evict(type, id);
+				}
+			}
+			if (resultCache != null) {
+				resultCache.invalidate(type);
+			}
+		}
+
+		@Override
+		public void beforeCompletion() {
+		}
+
+		@Override
+		public void afterCompletion(int status) {
+			run();
+		}
+	}
+
+	private interface BatchOperation<T> {
+		void apply(EntityManager em, T entity);
+	}
 }
@@ -0,0 +1,62 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.jpa;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A single page of query results. Pages carry the continuation required to fetch the following page: the index of the
+ * next result for offset pages (see {@link JpaTemplate#page(String, int, int, Object...)}), or the key of the last
+ * result for keyset pages (see {@link JpaTemplate#seek(String, Object, int)}).
+ */
+public class Page<T> implements Iterable<T> {
+	private List<T> results;
+	private Object next;
+
+	public Page(List<T> results, Object next) {
+		this.results = results;
+		this.next = next;
+	}
+
+	public List<T> getResults() {
+		return Collections.unmodifiableList(results);
+	}
+
+	public int size() {
+		return results.size();
+	}
+
+	public boolean hasNext() {
+		return next != null;
+	}
+
+	/**
+	 * @return the continuation to pass back in to retrieve the next page, or null if this is the last page
+	 */
+	@SuppressWarnings("unchecked")
+	public <K> K getNext() {
+		return (K) next;
+	}
+
+	@Override
+	public Iterator<T> iterator() {
+		return getResults().iterator();
+	}
+}
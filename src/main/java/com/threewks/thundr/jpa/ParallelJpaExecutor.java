@@ -0,0 +1,245 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.jpa;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.threewks.thundr.jpa.exception.JpaException;
+
+/**
+ * Runs {@link JpaAction}s concurrently on a bounded pool of threads, so that work against several persistence managers
+ * takes as long as the slowest of them rather than the sum of them all.
+ * <p>
+ * Because {@link PersistenceManager}s bind entity managers to the current thread, each action is run with an entity
+ * manager of its own, and by default a transaction of its own, which are closed once the action completes. Entities
+ * returned from actions are therefore detached. Actions submitted once the pool and its queue are full are rejected
+ * rather than run on the calling thread, where they would share the caller's session. Setting a queue timeout makes
+ * callers wait for room in the queue instead, pushing back on callers when the database cannot keep up.
+ */
+public class ParallelJpaExecutor {
+	public static final int DefaultThreads = 8;
+	public static final int DefaultQueueSize = 100;
+
+	private ThreadPoolExecutor executor;
+	private volatile long queueTimeoutNanos = 0;
+
+	public ParallelJpaExecutor() {
+		this(DefaultThreads, DefaultQueueSize);
+	}
+
+	/**
+	 * @param threads the maximum number of actions to run at once
+	 * @param queueSize the maximum number of actions waiting to run
+	 */
+	public ParallelJpaExecutor(int threads, int queueSize) {
+		this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueSize), new WorkerThreadFactory(),
+				new WaitForQueuePolicy());
+		this.executor.allowCoreThreadTimeOut(true);
+	}
+
+	public long getQueueTimeout(TimeUnit unit) {
+		return unit.convert(queueTimeoutNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Sets how long to wait for room in the queue when it is full before rejecting an action.
+	 * 
+	 * @param timeout the time to wait, or 0 to reject actions as soon as the queue is full
+	 */
+	public void setQueueTimeout(long timeout, TimeUnit unit) {
+		this.queueTimeoutNanos = unit.toNanos(timeout);
+	}
+
+	/**
+	 * Runs the given action in a transaction of its own.
+	 */
+	public <T> Future<T> submit(PersistenceManager persistenceManager, JpaAction<T> action) {
+		return submit(persistenceManager, action, true);
+	}
+
+	/**
+	 * Runs the given action with an entity manager of its own, committing the work of the action if transactional.
+	 */
+	public <T> Future<T> submit(final PersistenceManager persistenceManager, final JpaAction<T> action, final boolean transactional) {
+		try {
+			return executor.submit(new Callable<T>() {
+				@Override
+				public T call() {
+					return run(persistenceManager, action, transactional);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			throw new JpaException(e, "Unable to run action in parallel, %d actions are already running and %d are queued", executor.getActiveCount(), executor.getQueue().size());
+		}
+	}
+
+	/**
+	 * Waits for all the given futures to complete.
+	 * 
+	 * @return the result of each future, in order
+	 */
+	public <T> List<T> getAll(List<Future<T>> futures) {
+		List<T> results = new ArrayList<T>(futures.size());
+		try {
+			for (Future<T> future : futures) {
+				results.add(get(future, -1));
+			}
+			return results;
+		} finally {
+			cancel(futures);
+		}
+	}
+
+	/**
+	 * Waits for all the given futures to complete, cancelling any that are outstanding once the timeout elapses.
+	 * 
+	 * @return the result of each future, in order
+	 * @throws JpaException if not all futures completed in time
+	 */
+	public <T> List<T> getAll(List<Future<T>> futures, long timeout, TimeUnit unit) {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		List<T> results = new ArrayList<T>(futures.size());
+		try {
+			for (Future<T> future : futures) {
+				results.add(get(future, Math.max(0, deadline - System.nanoTime())));
+			}
+			return results;
+		} finally {
+			cancel(futures);
+		}
+	}
+
+	/**
+	 * @return the number of actions currently running
+	 */
+	public int getActiveCount() {
+		return executor.getActiveCount();
+	}
+
+	/**
+	 * @return the number of actions waiting to run
+	 */
+	public int getQueuedCount() {
+		return executor.getQueue().size();
+	}
+
+	public boolean isShutdown() {
+		return executor.isShutdown();
+	}
+
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	private <T> T run(PersistenceManager persistenceManager, JpaAction<T> action, boolean transactional) {
+		boolean succeeded = false;
+		try {
+			if (transactional) {
+				persistenceManager.beginTransaction();
+			}
+			T result = action.run(persistenceManager.getEntityManager());
+			if (transactional) {
+				persistenceManager.commit();
+			}
+			succeeded = true;
+			return result;
+		} catch (RuntimeException e) {
+			if (transactional) {
+				rollback(persistenceManager);
+			}
+			throw e;
+		} finally {
+			// the entity manager of a failed action is left in an undefined state, so must not be recycled
+			if (persistenceManager instanceof ExtendedPersistenceManager) {
+				((ExtendedPersistenceManager) persistenceManager).closeEntityManager(succeeded);
+			} else {
+				persistenceManager.closeEntityManager();
+			}
+		}
+	}
+
+	private void rollback(PersistenceManager persistenceManager) {
+		try {
+			persistenceManager.rollback();
+		} catch (RuntimeException e) {
+			// the original failure is more useful than the failure to roll back
+		}
+	}
+
+	private <T> T get(Future<T> future, long timeoutNanos) {
+		try {
+			return timeoutNanos < 0 ? future.get() : future.get(timeoutNanos, TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new JpaException(e, "Interrupted while waiting for parallel actions to complete");
+		} catch (TimeoutException e) {
+			throw new JpaException(e, "Timed out waiting for parallel actions to complete");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new JpaException(e.getCause(), "Parallel action failed: %s", e.getCause().getMessage());
+		}
+	}
+
+	private <T> void cancel(List<Future<T>> futures) {
+		for (Future<T> future : futures) {
+			future.cancel(true);
+		}
+	}
+
+	private class WaitForQueuePolicy implements RejectedExecutionHandler {
+		@Override
+		public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+			if (executor.isShutdown()) {
+				throw new RejectedExecutionException("Executor has been shut down");
+			}
+			try {
+				if (queueTimeoutNanos > 0 && executor.getQueue().offer(runnable, queueTimeoutNanos, TimeUnit.NANOSECONDS)) {
+					return;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			throw new RejectedExecutionException("Executor queue is full");
+		}
+	}
+
+	private static class WorkerThreadFactory implements ThreadFactory {
+		private AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "thundr-jpa-worker-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,165 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.jpa;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.persistence.EntityManager;
+
+import org.hibernate.FlushMode;
+import org.hibernate.Session;
+
+import com.threewks.thundr.jpa.context.SessionContext;
+import com.threewks.thundr.jpa.context.SessionValue;
+import com.threewks.thundr.jpa.exception.PersistenceContextLimitException;
+import com.threewks.thundr.jpa.metrics.Histogram;
+import com.threewks.thundr.jpa.metrics.LogHistogram;
+import com.threewks.thundr.logger.Logger;
+
+/**
+ * Bounds the number of entities held by the persistence context of a session, which otherwise grows with every entity
+ * loaded or persisted until the entity manager is closed, making each flush slower and eventually exhausting memory in
+ * long running actions.
+ * <p>
+ * Once a session holds more managed entities than the soft limit, its changes are flushed and the persistence context
+ * is cleared, detaching every entity it held. Sessions which cannot be flushed, because they are read only or outside
+ * a transaction, are instead reported once with a warning or failed with a {@link PersistenceContextLimitException},
+ * depending on the {@link Mode}. The largest size reached by each session is recorded when it ends.
+ */
+public class PersistenceContextGuard {
+	public enum Mode {
+		Warn,
+		Fail
+	}
+
+	private String name;
+	private int softLimit;
+	private Mode mode;
+	private SessionValue<State> state;
+	private Histogram sizeHistogram = new LogHistogram();
+	private AtomicLong clears = new AtomicLong();
+
+	/**
+	 * @param name the name of the persistence manager reported when the limit is exceeded
+	 * @param softLimit the number of managed entities a session may hold before it is flushed and cleared
+	 * @param mode what to do when a session which cannot be flushed exceeds the soft limit
+	 * @param sessionContext the context holding session state, which should be the one used by the persistence manager
+	 */
+	public PersistenceContextGuard(String name, int softLimit, Mode mode, SessionContext sessionContext) {
+		if (softLimit < 1) {
+			throw new IllegalArgumentException(String.format("Invalid persistence context soft limit for %s, expected at least 1 but got %d", name, softLimit));
+		}
+		this.name = name;
+		this.softLimit = softLimit;
+		this.mode = mode;
+		this.state = sessionContext.createValue();
+	}
+
+	public int getSoftLimit() {
+		return softLimit;
+	}
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	public Histogram getSizeHistogram() {
+		return sizeHistogram;
+	}
+
+	/**
+	 * Sets the histogram the largest number of entities held by each session is recorded in.
+	 */
+	public void setSizeHistogram(Histogram sizeHistogram) {
+		this.sizeHistogram = sizeHistogram;
+	}
+
+	/**
+	 * @return the number of times a persistence context has been flushed and cleared
+	 */
+	public long getClears() {
+		return clears.get();
+	}
+
+	/**
+	 * Checks the size of the persistence context of the given entity manager, flushing and clearing it if it holds more
+	 * entities than the soft limit.
+	 * 
+	 * @return the number of entities held once checked
+	 * @throws PersistenceContextLimitException if the persistence context cannot be flushed, holds more entities than
+	 *             the soft limit and the mode is {@link Mode#Fail}
+	 */
+	public int check(EntityManager em) {
+		Session session = em.unwrap(Session.class);
+		int size = session.getStatistics().getEntityCount();
+		State current = observe(size);
+		if (size <= softLimit) {
+			return size;
+		}
+		if (flushable(em, session)) {
+			session.flush();
+			session.clear();
+			clears.incrementAndGet();
+			Logger.debug("Flushed and cleared persistence context of %s holding %d entities", name, size);
+			return 0;
+		}
+		if (mode == Mode.Fail) {
+			throw new PersistenceContextLimitException("The persistence context of %s holds %d entities, more than its soft limit of %d, and cannot be flushed as the session is read only or outside a transaction",
+					name, size, softLimit);
+		}
+		if (!current.warned) {
+			current.warned = true;
+			Logger.warn("The persistence context of %s holds %d entities, more than its soft limit of %d, and cannot be flushed as the session is read only or outside a transaction", name, size,
+					softLimit);
+		}
+		return size;
+	}
+
+	/**
+	 * Ends the current session, recording the largest number of entities it held.
+	 * 
+	 * @param em the entity manager of the session, which is about to be closed
+	 */
+	public void end(EntityManager em) {
+		try {
+			observe(em.unwrap(Session.class).getStatistics().getEntityCount());
+			sizeHistogram.record(state.get().highWaterMark);
+		} finally {
+			state.remove();
+		}
+	}
+
+	private State observe(int size) {
+		State current = state.get();
+		if (current == null) {
+			current = new State();
+			state.set(current);
+		}
+		current.highWaterMark = Math.max(current.highWaterMark, size);
+		return current;
+	}
+
+	private boolean flushable(EntityManager em, Session session) {
+		return !session.isDefaultReadOnly() && session.getFlushMode() != FlushMode.MANUAL && em.getTransaction().isActive();
+	}
+
+	private static class State {
+		private int highWaterMark;
+		private boolean warned;
+	}
+}
@@ -17,17 +17,40 @@
  */
 package com.threewks.thundr.jpa;
 
+import com.threewks.thundr.jpa.cache.EntityCache;
+import com.threewks.thundr.jpa.cache.ResultCache;
+import com.threewks.thundr.jpa.context.SessionContext;
+import com.threewks.thundr.jpa.context.SessionValue;
+import com.threewks.thundr.jpa.context.ThreadLocalSessionContext;
 import com.threewks.thundr.jpa.exception.JpaException;
+import com.threewks.thundr.jpa.metrics.SlowQueryLog;
 import com.threewks.thundr.logger.Logger;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.EntityTransaction;
 import javax.persistence.Persistence;
 
-public class PersistenceManagerImpl implements PersistenceManager {
-	private EntityManagerFactory entityManagerFactory;
-	private ThreadLocal<EntityManager> threadLocal;
+public class PersistenceManagerImpl implements ExtendedPersistenceManager {
+	private volatile EntityManagerFactory entityManagerFactory;
+	private volatile Future<EntityManagerFactory> pendingEntityManagerFactory;
+	private String persistenceUnit;
+	private int entityManagerPoolSize;
+	private SessionValue<EntityManager> threadLocal;
+	private SessionValue<List<JpaAction<?>>> deferredActions;
+	private SessionValue<Boolean> rolledBack;
+	private EntityCache entityCache;
+	private ResultCache resultCache;
+	private SlowQueryLog slowQueryLog;
+	private PersistenceContextGuard persistenceContextGuard;
+	private EntityManagerPool entityManagerPool;
 
 	/**
 	 * Only call this if you plan on managing the whole EntityManagerFactory lifecycle yourself. Regular thundr apps
@@ -38,10 +61,35 @@ public class PersistenceManagerImpl implements PersistenceManager {
 	 * @param persistenceUnit the name of a persistence unit to initialize the EntityManagerFactory with
 	 */
 	public PersistenceManagerImpl(String persistenceUnit) {
+		this(persistenceUnit, Collections.<String, Object> emptyMap());
+	}
+
+	/**
+	 * As for {@link #PersistenceManagerImpl(String)}, but allows properties of the persistence unit to be overridden.
+	 *
+	 * @param persistenceUnit the name of a persistence unit to initialize the EntityManagerFactory with
+	 * @param properties properties which override those declared by the persistence unit
+	 */
+	public PersistenceManagerImpl(String persistenceUnit, Map<String, Object> properties) {
+		this(persistenceUnit, properties, new ThreadLocalSessionContext());
+	}
+
+	/**
+	 * As for {@link #PersistenceManagerImpl(String, Map)}, but holds entity managers in the given session context rather
+	 * than binding them to the current thread.
+	 *
+	 * @param persistenceUnit the name of a persistence unit to initialize the EntityManagerFactory with
+	 * @param properties properties which override those declared by the persistence unit
+	 * @param sessionContext the context holding the entity manager of each session
+	 */
+	public PersistenceManagerImpl(String persistenceUnit, Map<String, Object> properties, SessionContext sessionContext) {
 		String className = PersistenceManagerImpl.class.getName();
 		try {
-			entityManagerFactory = Persistence.createEntityManagerFactory(persistenceUnit);
-			threadLocal = new ThreadLocal<EntityManager>();
+			this.persistenceUnit = persistenceUnit;
+			entityManagerFactory = createEntityManagerFactory(persistenceUnit, properties);
+			threadLocal = sessionContext.createValue();
+			deferredActions = sessionContext.createValue();
+			rolledBack = sessionContext.createValue();
 			Logger.debug("%s initialized.", className);
 		} catch (Exception e) {
 			Logger.error("Initialization of %s failed: %s", className, e.getMessage());
@@ -49,16 +97,97 @@ public class PersistenceManagerImpl implements PersistenceManager {
 		}
 	}
 
+	/**
+	 * As for {@link #PersistenceManagerImpl(String, Map, SessionContext)}, but with an EntityManagerFactory which is
+	 * being created elsewhere, for example in the background. The factory is waited for when first needed, so startup
+	 * can continue while it is created.
+	 *
+	 * @param persistenceUnit the name of the persistence unit the factory is being created for
+	 * @param entityManagerFactory the factory being created, see {@link #createEntityManagerFactory(String, Map)}
+	 * @param sessionContext the context holding the entity manager of each session
+	 */
+	public PersistenceManagerImpl(String persistenceUnit, Future<EntityManagerFactory> entityManagerFactory, SessionContext sessionContext) {
+		this.persistenceUnit = persistenceUnit;
+		this.pendingEntityManagerFactory = entityManagerFactory;
+		this.threadLocal = sessionContext.createValue();
+		this.deferredActions = sessionContext.createValue();
+		this.rolledBack = sessionContext.createValue();
+	}
+
+	/**
+	 * Creates the EntityManagerFactory for a persistence unit, which builds its metamodel and may validate the schema.
+	 *
+	 * @param properties properties which override those declared by the persistence unit
+	 */
+	public static EntityManagerFactory createEntityManagerFactory(String persistenceUnit, Map<String, Object> properties) {
+		return properties.isEmpty() ? Persistence.createEntityManagerFactory(persistenceUnit) : Persistence.createEntityManagerFactory(persistenceUnit, properties);
+	}
+
+	/**
+	 * @return the factory entity managers are created with, waiting for it to be created if necessary
+	 * @throws JpaException if the factory could not be created
+	 */
+	public EntityManagerFactory getEntityManagerFactory() {
+		if (pendingEntityManagerFactory != null) {
+			awaitEntityManagerFactory();
+		}
+		return entityManagerFactory;
+	}
+
+	/**
+	 * @return true if the factory has been created, or creating it failed
+	 */
+	public boolean isInitialized() {
+		Future<EntityManagerFactory> pending = pendingEntityManagerFactory;
+		return pending == null || pending.isDone();
+	}
+
+	private synchronized void awaitEntityManagerFactory() {
+		if (pendingEntityManagerFactory == null) {
+			return;
+		}
+		String className = PersistenceManagerImpl.class.getName();
+		try {
+			EntityManagerFactory created = pendingEntityManagerFactory.get();
+			if (entityManagerPoolSize > 0) {
+				entityManagerPool = new EntityManagerPool(created, entityManagerPoolSize);
+			}
+			entityManagerFactory = created;
+			pendingEntityManagerFactory = null;
+			Logger.debug("%s initialized.", className);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new JpaException(e, "Interrupted waiting for initialization of %s for persistence unit %s", className, persistenceUnit);
+		} catch (ExecutionException e) {
+			Logger.error("Initialization of %s failed: %s", className, e.getCause().getMessage());
+			throw new JpaException(e.getCause(), "Initialization of %s failed.", className);
+		}
+	}
+
 	@Override
 	public void destroy() {
+		if (pendingEntityManagerFactory != null) {
+			try {
+				awaitEntityManagerFactory();
+			} catch (JpaException e) {
+				// nothing was created, so there is nothing to close
+				return;
+			}
+		}
+		if (entityManagerPool != null) {
+			entityManagerPool.clear();
+		}
 		entityManagerFactory.close();
 		entityManagerFactory = null;
 		threadLocal = null;
+		deferredActions = null;
+		rolledBack = null;
 		Logger.debug("%s destroyed.", PersistenceManagerImpl.class.getName());
 	}
 
 	@Override
 	public EntityManager getEntityManager() throws IllegalStateException {
+		EntityManagerFactory entityManagerFactory = threadLocal == null ? null : getEntityManagerFactory();
 		if (entityManagerFactory == null || !entityManagerFactory.isOpen()) {
 			throw new IllegalStateException(
 					"EntityManagerFactory is closed. You must now dispose of this instance.");
@@ -67,22 +196,76 @@ public class PersistenceManagerImpl implements PersistenceManager {
 		try {
 			EntityManager em = threadLocal.get();
 			if (em == null) {
-				em = entityManagerFactory.createEntityManager();
+				em = entityManagerPool == null ? entityManagerFactory.createEntityManager() : entityManagerPool.borrow();
 				threadLocal.set(em);
+				runDeferredActions(em);
 			}
 			return em;
+		} catch (JpaException e) {
+			throw e;
 		} catch (Exception e) {
 			Logger.error("Error creating entity manager: %s", e.getMessage());
 			throw new JpaException(e, "Error creating entity manager: %s", e.getMessage());
 		}
 	}
 
+	@Override
+	public boolean hasEntityManager() {
+		return threadLocal.get() != null;
+	}
+
+	@Override
+	public void onFirstUse(JpaAction<?> action) {
+		EntityManager em = threadLocal.get();
+		if (em != null) {
+			action.run(em);
+		} else {
+			List<JpaAction<?>> actions = deferredActions.get();
+			if (actions == null) {
+				actions = new ArrayList<JpaAction<?>>();
+				deferredActions.set(actions);
+			}
+			actions.add(action);
+		}
+	}
+
 	@Override
 	public void closeEntityManager() {
+		closeEntityManager(true);
+	}
+
+	/**
+	 * Closes the entity manager of the current thread. Entity managers which have been rolled back are never recycled,
+	 * even if recycling is allowed.
+	 */
+	@Override
+	public void closeEntityManager(boolean recycle) {
+		deferredActions.remove();
+		boolean discard = !recycle || rolledBack.get() != null;
+		rolledBack.remove();
 		EntityManager em = threadLocal.get();
 		if (em != null) {
-			em.close();
-			threadLocal.set(null);
+			if (persistenceContextGuard != null) {
+				persistenceContextGuard.end(em);
+			}
+			if (entityManagerPool == null) {
+				em.close();
+			} else if (discard) {
+				entityManagerPool.discard(em);
+			} else {
+				entityManagerPool.release(em);
+			}
+			threadLocal.remove();
+		}
+	}
+
+	private void runDeferredActions(EntityManager em) {
+		List<JpaAction<?>> actions = deferredActions.get();
+		if (actions != null) {
+			deferredActions.remove();
+			for (JpaAction<?> action : actions) {
+				action.run(em);
+			}
 		}
 	}
 
@@ -97,6 +280,7 @@ public class PersistenceManagerImpl implements PersistenceManager {
 	@Override
 	public void rollback() {
 		EntityTransaction transaction = getEntityManager().getTransaction();
+		rolledBack.set(Boolean.TRUE);
 		transaction.rollback();
 	}
 
@@ -105,4 +289,79 @@ public class PersistenceManagerImpl implements PersistenceManager {
 		EntityTransaction transaction = getEntityManager().getTransaction();
 		transaction.commit();
 	}
+
+	@Override
+	public EntityCache getEntityCache() {
+		return entityCache;
+	}
+
+	/**
+	 * Enables caching of entities between sessions for this persistence manager.
+	 *
+	 * @param entityCache the cache to use, or null to disable caching
+	 */
+	public void setEntityCache(EntityCache entityCache) {
+		this.entityCache = entityCache;
+	}
+
+	@Override
+	public ResultCache getResultCache() {
+		return resultCache;
+	}
+
+	/**
+	 * Enables caching of query results between sessions for this persistence manager.
+	 *
+	 * @param resultCache the cache to use, or null to disable caching
+	 */
+	public void setResultCache(ResultCache resultCache) {
+		this.resultCache = resultCache;
+	}
+
+	@Override
+	public SlowQueryLog getSlowQueryLog() {
+		return slowQueryLog;
+	}
+
+	/**
+	 * Enables logging of slow statements issued through this persistence manager.
+	 *
+	 * @param slowQueryLog the log to use, or null to disable logging
+	 */
+	public void setSlowQueryLog(SlowQueryLog slowQueryLog) {
+		this.slowQueryLog = slowQueryLog;
+	}
+
+	@Override
+	public PersistenceContextGuard getPersistenceContextGuard() {
+		return persistenceContextGuard;
+	}
+
+	/**
+	 * Bounds the size of the persistence context of each session, see {@link PersistenceContextGuard}.
+	 *
+	 * @param persistenceContextGuard the guard to use, or null to not bound the persistence context
+	 */
+	public void setPersistenceContextGuard(PersistenceContextGuard persistenceContextGuard) {
+		this.persistenceContextGuard = persistenceContextGuard;
+	}
+
+	public EntityManagerPool getEntityManagerPool() {
+		return entityManagerPool;
+	}
+
+	/**
+	 * Enables pooling of entity managers. Instead of being closed, entity managers are cleared and recycled through a
+	 * pool holding up to the given number of idle entity managers.
+	 *
+	 * @param maxSize the maximum number of idle entity managers to pool, or 0 to disable pooling
+	 */
+	public synchronized void setEntityManagerPoolSize(int maxSize) {
+		if (entityManagerPool != null) {
+			entityManagerPool.clear();
+		}
+		entityManagerPoolSize = maxSize;
+		// a factory still being created gets its pool once created
+		entityManagerPool = maxSize > 0 && pendingEntityManagerFactory == null ? new EntityManagerPool(entityManagerFactory, maxSize) : null;
+	}
 }
@@ -0,0 +1,115 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.jpa;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.threewks.thundr.jpa.exception.JpaException;
+
+/**
+ * Maps the rows of scalar queries onto projection types by constructor. A row is mapped using a public constructor
+ * taking as many arguments as the row has columns, whose parameters accept the values of the row.
+ */
+final class Projections {
+	private static final Map<Class<?>, Class<?>> Wrappers = new HashMap<Class<?>, Class<?>>();
+	static {
+		Wrappers.put(boolean.class, Boolean.class);
+		Wrappers.put(byte.class, Byte.class);
+		Wrappers.put(char.class, Character.class);
+		Wrappers.put(short.class, Short.class);
+		Wrappers.put(int.class, Integer.class);
+		Wrappers.put(long.class, Long.class);
+		Wrappers.put(float.class, Float.class);
+		Wrappers.put(double.class, Double.class);
+	}
+
+	private static final ConcurrentMap<Class<?>, Constructor<?>[]> constructors = new ConcurrentHashMap<Class<?>, Constructor<?>[]>();
+
+	private Projections() {
+	}
+
+	/**
+	 * @param type the projection type, <code>Object[]</code> to return rows as they are
+	 * @param rows the rows returned by a query, either <code>Object[]</code> or single values
+	 */
+	static <P> List<P> map(Class<P> type, List<?> rows) {
+		List<P> results = new ArrayList<P>(rows.size());
+		Constructor<P> constructor = null;
+		for (Object row : rows) {
+			Object[] values = row instanceof Object[] ? (Object[]) row : new Object[] { row };
+			if (type == Object[].class) {
+				results.add(type.cast(values));
+			} else if (values.length == 1 && (values[0] == null || type.isInstance(values[0]))) {
+				results.add(type.cast(values[0]));
+			} else {
+				if (constructor == null || !accepts(constructor, values)) {
+					constructor = findConstructor(type, values);
+				}
+				results.add(newInstance(constructor, values));
+			}
+		}
+		return results;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <P> Constructor<P> findConstructor(Class<P> type, Object[] values) {
+		Constructor<?>[] candidates = constructors.get(type);
+		if (candidates == null) {
+			candidates = type.getConstructors();
+			constructors.putIfAbsent(type, candidates);
+		}
+		for (Constructor<?> candidate : candidates) {
+			if (accepts(candidate, values)) {
+				return (Constructor<P>) candidate;
+			}
+		}
+		throw new JpaException("Cannot project onto %s, it has no public constructor accepting %d values of the types returned by the query", type.getName(), values.length);
+	}
+
+	private static boolean accepts(Constructor<?> constructor, Object[] values) {
+		Class<?>[] parameterTypes = constructor.getParameterTypes();
+		if (parameterTypes.length != values.length || Modifier.isAbstract(constructor.getDeclaringClass().getModifiers())) {
+			return false;
+		}
+		for (int i = 0; i < values.length; i++) {
+			Class<?> parameterType = parameterTypes[i].isPrimitive() ? Wrappers.get(parameterTypes[i]) : parameterTypes[i];
+			if (values[i] == null ? parameterTypes[i].isPrimitive() : !parameterType.isInstance(values[i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static <P> P newInstance(Constructor<P> constructor, Object[] values) {
+		try {
+			return constructor.newInstance(values);
+		} catch (InvocationTargetException e) {
+			throw new JpaException(e.getCause(), "Failed to create projection %s: %s", constructor.getDeclaringClass().getName(), e.getCause().getMessage());
+		} catch (Exception e) {
+			throw new JpaException(e, "Failed to create projection %s: %s", constructor.getDeclaringClass().getName(), e.getMessage());
+		}
+	}
+}
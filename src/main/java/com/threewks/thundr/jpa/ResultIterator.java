@@ -0,0 +1,31 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.jpa;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+/**
+ * An iterator over a query result which is read from the database as it is consumed, rather than loaded into memory up
+ * front. Iterators hold an open database cursor and must be closed once finished with, although they will close
+ * themselves once exhausted.
+ */
+public interface ResultIterator<T> extends Iterator<T>, Closeable {
+	@Override
+	void close();
+}
@@ -0,0 +1,175 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.jpa;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import javax.persistence.EntityManager;
+
+import org.hibernate.ScrollableResults;
+import org.hibernate.collection.spi.PersistentCollection;
+import org.hibernate.engine.spi.EntityEntry;
+import org.hibernate.engine.spi.EntityKey;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.proxy.HibernateProxy;
+import org.hibernate.type.CompositeType;
+import org.hibernate.type.Type;
+
+/**
+ * {@link ResultIterator} backed by a forward only Hibernate cursor. Each entity is detached from the persistence context
+ * once the iterator moves past it, along with the entities it loaded through eager or initialised associations, so
+ * memory use does not grow with the size of the result. Associated entities which were already managed when iteration
+ * began are left in the persistence context, as are uninitialised lazy associations.
+ */
+class ScrollableResultIterator<T> implements ResultIterator<T> {
+	private EntityManager entityManager;
+	private ScrollableResults results;
+	private Class<T> type;
+	private SessionImplementor session;
+	private Set<EntityKey> managedBefore;
+	private T previous;
+	private Boolean hasNext;
+	private boolean closed;
+
+	@SuppressWarnings("unchecked")
+	public ScrollableResultIterator(EntityManager entityManager, ScrollableResults results, Class<T> type) {
+		this.entityManager = entityManager;
+		this.results = results;
+		this.type = type;
+		Object delegate = entityManager.getDelegate();
+		if (delegate instanceof SessionImplementor) {
+			this.session = (SessionImplementor) delegate;
+			this.managedBefore = new HashSet<EntityKey>(session.getPersistenceContext().getEntitiesByKey().keySet());
+		}
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (closed) {
+			return false;
+		}
+		if (hasNext == null) {
+			hasNext = results.next();
+			if (!hasNext) {
+				close();
+			}
+		}
+		return hasNext;
+	}
+
+	@Override
+	public T next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		hasNext = null;
+		evict(previous);
+		previous = type.cast(results.get(0));
+		return previous;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException("Removing entities through a result iterator is not supported");
+	}
+
+	@Override
+	public void close() {
+		if (!closed) {
+			closed = true;
+			evict(previous);
+			previous = null;
+			managedBefore = null;
+			results.close();
+		}
+	}
+
+	/**
+	 * Detaches the given entity and the entities reachable from it which were loaded during iteration. The graph is
+	 * collected before anything is detached, as detaching an entity cascades to some of its associations and would
+	 * otherwise hide their own associations from the walk.
+	 */
+	private void evict(T entity) {
+		if (entity == null) {
+			return;
+		}
+		List<Object> loaded = new ArrayList<Object>();
+		loaded.add(entity);
+		EntityEntry entry = session == null ? null : session.getPersistenceContext().getEntry(entity);
+		if (entry != null) {
+			Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+			visited.add(entity);
+			collect(entry.getPersister().getPropertyTypes(), entry.getPersister().getPropertyValues(entity), visited, loaded);
+		}
+		for (Object managed : loaded) {
+			if (entityManager.contains(managed)) {
+				entityManager.detach(managed);
+			}
+		}
+	}
+
+	private void collect(Object entity, Set<Object> visited, List<Object> loaded) {
+		if (entity instanceof HibernateProxy) {
+			if (((HibernateProxy) entity).getHibernateLazyInitializer().isUninitialized()) {
+				return;
+			}
+			entity = ((HibernateProxy) entity).getHibernateLazyInitializer().getImplementation();
+		}
+		if (entity == null || !visited.add(entity)) {
+			return;
+		}
+		EntityEntry entry = session.getPersistenceContext().getEntry(entity);
+		if (entry == null || managedBefore.contains(entry.getEntityKey())) {
+			return;
+		}
+		loaded.add(entity);
+		collect(entry.getPersister().getPropertyTypes(), entry.getPersister().getPropertyValues(entity), visited, loaded);
+	}
+
+	private void collect(Type[] types, Object[] values, Set<Object> visited, List<Object> loaded) {
+		for (int i = 0; i < types.length; i++) {
+			Type type = types[i];
+			Object value = values[i];
+			if (value == null) {
+				continue;
+			}
+			if (type.isEntityType()) {
+				collect(value, visited, loaded);
+			} else if (type.isCollectionType()) {
+				if (value instanceof PersistentCollection && !((PersistentCollection) value).wasInitialized()) {
+					continue;
+				}
+				Collection<?> elements = value instanceof Map ? ((Map<?, ?>) value).values() : value instanceof Collection ? (Collection<?>) value : Collections.emptyList();
+				for (Object element : elements) {
+					collect(element, visited, loaded);
+				}
+			} else if (type.isComponentType()) {
+				CompositeType componentType = (CompositeType) type;
+				collect(componentType.getSubtypes(), componentType.getPropertyValues(value, session), visited, loaded);
+			}
+		}
+	}
+}
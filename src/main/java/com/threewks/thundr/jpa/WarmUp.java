@@ -0,0 +1,207 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.jpa;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.NamedNativeQueries;
+import javax.persistence.NamedNativeQuery;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.Metamodel;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.threewks.thundr.jpa.exception.JpaException;
+import com.threewks.thundr.jpa.pool.ConnectionPool;
+
+/**
+ * Prepares a persistence unit for its first requests, so the cost of initialising it is not paid by them. Warming up
+ * touches the metadata of each entity, compiles each named query declared on an entity, failing if any are invalid,
+ * opens the minimum number of pooled connections and then runs the given actions in a transaction which is rolled
+ * back.
+ */
+public class WarmUp {
+	private String name;
+	private PersistenceManager persistenceManager;
+	private ConnectionPool connectionPool;
+	private List<JpaAction<?>> actions;
+
+	/**
+	 * @param name the name reported for the persistence unit
+	 * @param connectionPool the pool of connections to the persistence unit, or null if connections are not pooled by
+	 *            thundr-jpa
+	 * @param actions actions run against the persistence unit, for example to load reference data into caches
+	 */
+	public WarmUp(String name, PersistenceManager persistenceManager, ConnectionPool connectionPool, List<JpaAction<?>> actions) {
+		this.name = name;
+		this.persistenceManager = persistenceManager;
+		this.connectionPool = connectionPool;
+		this.actions = actions == null ? Collections.<JpaAction<?>> emptyList() : actions;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @throws JpaException if a named query is invalid or an action fails
+	 */
+	public Result run() {
+		long start = System.nanoTime();
+		Result result = new Result(name);
+		try {
+			EntityManager em = persistenceManager.getEntityManager();
+			Set<String> namedQueries = new TreeSet<String>();
+			Metamodel metamodel = em.getMetamodel();
+			if (metamodel != null) {
+				for (EntityType<?> entityType : metamodel.getEntities()) {
+					entityType.getAttributes();
+					namedQueries.addAll(namedQueries(entityType.getJavaType()));
+					result.entities++;
+				}
+			}
+			compile(em, namedQueries);
+			result.namedQueries = namedQueries.size();
+			if (connectionPool != null) {
+				result.connections = connectionPool.fill();
+			}
+			if (!actions.isEmpty()) {
+				runActions(em);
+				result.actions = actions.size();
+			}
+		} finally {
+			persistenceManager.closeEntityManager();
+		}
+		result.durationNanos = System.nanoTime() - start;
+		return result;
+	}
+
+	private void compile(EntityManager em, Set<String> namedQueries) {
+		List<String> invalid = new ArrayList<String>();
+		for (String namedQuery : namedQueries) {
+			try {
+				em.createNamedQuery(namedQuery);
+			} catch (RuntimeException e) {
+				invalid.add(String.format("%s (%s)", namedQuery, e.getMessage()));
+			}
+		}
+		if (!invalid.isEmpty()) {
+			throw new JpaException("Failed to warm up persistence unit %s, invalid named queries: %s", name, StringUtils.join(invalid, ", "));
+		}
+	}
+
+	private void runActions(EntityManager em) {
+		persistenceManager.beginTransaction();
+		try {
+			for (JpaAction<?> action : actions) {
+				try {
+					action.run(em);
+				} catch (RuntimeException e) {
+					throw new JpaException(e, "Failed to warm up persistence unit %s, %s failed: %s", name, action.getClass().getName(), e.getMessage());
+				}
+			}
+		} finally {
+			persistenceManager.rollback();
+		}
+	}
+
+	static List<String> namedQueries(Class<?> type) {
+		List<String> names = new ArrayList<String>();
+		if (type == null) {
+			return names;
+		}
+		NamedQuery namedQuery = type.getAnnotation(NamedQuery.class);
+		if (namedQuery != null) {
+			names.add(namedQuery.name());
+		}
+		NamedQueries namedQueries = type.getAnnotation(NamedQueries.class);
+		if (namedQueries != null) {
+			for (NamedQuery query : namedQueries.value()) {
+				names.add(query.name());
+			}
+		}
+		NamedNativeQuery namedNativeQuery = type.getAnnotation(NamedNativeQuery.class);
+		if (namedNativeQuery != null) {
+			names.add(namedNativeQuery.name());
+		}
+		NamedNativeQueries namedNativeQueries = type.getAnnotation(NamedNativeQueries.class);
+		if (namedNativeQueries != null) {
+			for (NamedNativeQuery query : namedNativeQueries.value()) {
+				names.add(query.name());
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * What was done to warm up a persistence unit and how long it took.
+	 */
+	public static class Result {
+		private String name;
+		private int entities;
+		private int namedQueries;
+		private int connections;
+		private int actions;
+		private long durationNanos;
+
+		public Result(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int getEntities() {
+			return entities;
+		}
+
+		public int getNamedQueries() {
+			return namedQueries;
+		}
+
+		/**
+		 * @return the number of pooled connections opened
+		 */
+		public int getConnections() {
+			return connections;
+		}
+
+		public int getActions() {
+			return actions;
+		}
+
+		public long getDuration(TimeUnit unit) {
+			return unit.convert(durationNanos, TimeUnit.NANOSECONDS);
+		}
+
+		@Override
+		public String toString() {
+			return String.format("Warmed up persistence unit %s in %dms: %d entities, %d named queries, %d connections opened, %d actions", name,
+					getDuration(TimeUnit.MILLISECONDS), entities, namedQueries, connections, actions);
+		}
+	}
+}
@@ -0,0 +1,216 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.jpa.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.threewks.thundr.logger.Logger;
+
+/**
+ * Caches entities by id across entity managers, so that frequently read reference data is not loaded from the database
+ * on every request. Only entity types which have been configured are cached, each in a region of its own with its own
+ * size and time to live.
+ * <p>
+ * Entities are cached in serialized form and each lookup returns a new detached copy, so no instance is ever shared
+ * between entity managers or threads. Cached entity types must therefore be {@link Serializable}, and lazy
+ * associations which were not loaded before the entity was cached cannot be loaded from the copy. Caching should only
+ * be enabled for entities which are read far more often than they are written.
+ * <p>
+ * Entities written through a {@link com.threewks.thundr.jpa.JpaTemplate} are evicted as they are written and again
+ * once the writing transaction completes; changes made by other means are only seen once their entries expire. As
+ * with {@link ResultCache}, evictions are tracked by a generation per entity type: callers read the generation before
+ * loading an entity and entities loaded under an older generation are not cached, so a load which races with a write
+ * cannot cache the entity as it was before the write.
+ */
+public class EntityCache {
+	private Map<Class<?>, LruCache<Object, byte[]>> regions = new ConcurrentHashMap<Class<?>, LruCache<Object, byte[]>>();
+	private ConcurrentMap<Class<?>, AtomicLong> generations = new ConcurrentHashMap<Class<?>, AtomicLong>();
+	private CacheStatistics statistics = new CacheStatistics();
+
+	/**
+	 * Enables caching of the given entity type.
+	 * 
+	 * @param type the entity type to cache
+	 * @param maxSize the maximum number of entities of the type to hold
+	 * @param timeToLive how long entities are cached for, or 0 to cache them until evicted
+	 * @throws IllegalArgumentException if the type is not serializable
+	 */
+	public EntityCache configure(Class<?> type, int maxSize, long timeToLive, TimeUnit unit) {
+		if (!Serializable.class.isAssignableFrom(type)) {
+			throw new IllegalArgumentException(String.format("Cannot cache %s, cached entities must be serializable", type.getName()));
+		}
+		regions.put(type, new LruCache<Object, byte[]>(maxSize, timeToLive, unit, new CacheStatistics()));
+		return this;
+	}
+
+	public boolean isCached(Class<?> type) {
+		return regions.containsKey(type);
+	}
+
+	/**
+	 * @return a detached copy of the cached entity, or null if it is not cached or its type is not cached
+	 */
+	public <T> T get(Class<T> type, Object id) {
+		LruCache<Object, byte[]> region = regions.get(type);
+		if (region == null) {
+			return null;
+		}
+		byte[] serialized = region.get(id);
+		T entity = serialized == null ? null : type.cast(deserialize(type, serialized));
+		if (entity == null) {
+			statistics.miss();
+		} else {
+			statistics.hit();
+		}
+		return entity;
+	}
+
+	/**
+	 * Caches a copy of an entity in its current state. Entities which cannot be serialized are not cached.
+	 * 
+	 * @param generation the generation of the entity type, as returned by {@link #getGeneration(Class)} before the
+	 *            entity was loaded
+	 */
+	public void put(Class<?> type, Object id, Object entity, long generation) {
+		LruCache<Object, byte[]> region = regions.get(type);
+		if (region == null || id == null || entity == null) {
+			return;
+		}
+		byte[] serialized = serialize(entity);
+		// checked once the copy is taken, so a write which raced with the load is never cached
+		if (serialized != null && generation == getGeneration(type)) {
+			region.put(id, serialized);
+		}
+	}
+
+	/**
+	 * @return the current generation of the given entity type, which changes each time entities of the type are evicted
+	 */
+	public long getGeneration(Class<?> type) {
+		AtomicLong generation = generations.get(type);
+		return generation == null ? 0 : generation.get();
+	}
+
+	public void evict(Class<?> type, Object id) {
+		LruCache<Object, byte[]> region = regions.get(type);
+		if (region != null && id != null) {
+			nextGeneration(type);
+			region.remove(id);
+		}
+	}
+
+	public void evictAll(Class<?> type) {
+		LruCache<Object, byte[]> region = regions.get(type);
+		if (region != null) {
+			nextGeneration(type);
+			region.clear();
+		}
+	}
+
+	public void clear() {
+		for (Map.Entry<Class<?>, LruCache<Object, byte[]>> region : regions.entrySet()) {
+			nextGeneration(region.getKey());
+			region.getValue().clear();
+		}
+	}
+
+	/**
+	 * @return hit and miss counts across all cached entity types. Evictions are counted per entity type.
+	 */
+	public CacheStatistics getStatistics() {
+		return statistics;
+	}
+
+	/**
+	 * @return the statistics for the given entity type, or null if the type is not cached
+	 */
+	public CacheStatistics getStatistics(Class<?> type) {
+		LruCache<Object, byte[]> region = regions.get(type);
+		return region == null ? null : region.getStatistics();
+	}
+
+	private void nextGeneration(Class<?> type) {
+		AtomicLong generation = generations.get(type);
+		if (generation == null) {
+			AtomicLong existing = generations.putIfAbsent(type, generation = new AtomicLong());
+			generation = existing == null ? generation : existing;
+		}
+		generation.incrementAndGet();
+	}
+
+	private static byte[] serialize(Object entity) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			ObjectOutputStream out = new ObjectOutputStream(bytes);
+			out.writeObject(entity);
+			out.close();
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			Logger.warn("Not caching %s, it could not be serialized: %s", entity.getClass().getName(), e.getMessage());
+			return null;
+		}
+	}
+
+	private static Object deserialize(Class<?> type, byte[] serialized) {
+		try {
+			ObjectInputStream in = new EntityInputStream(new ByteArrayInputStream(serialized), type.getClassLoader());
+			try {
+				return in.readObject();
+			} finally {
+				in.close();
+			}
+		} catch (Exception e) {
+			Logger.warn("Ignoring cached %s, it could not be deserialized: %s", type.getName(), e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Resolves classes through the class loader of the cached entity type, which may not be visible to the class loader
+	 * of this class.
+	 */
+	private static class EntityInputStream extends ObjectInputStream {
+		private ClassLoader classLoader;
+
+		private EntityInputStream(InputStream in, ClassLoader classLoader) throws IOException {
+			super(in);
+			this.classLoader = classLoader;
+		}
+
+		@Override
+		protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+			try {
+				return Class.forName(desc.getName(), false, classLoader);
+			} catch (ClassNotFoundException e) {
+				return super.resolveClass(desc);
+			}
+		}
+	}
+}
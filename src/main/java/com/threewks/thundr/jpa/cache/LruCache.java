@@ -0,0 +1,126 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.jpa.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A size bounded, thread safe cache which evicts the least recently used entry once full. Entries may optionally
+ * expire a fixed time after they are put, after which they are treated as missing.
+ */
+public class LruCache<K, V> {
+	private int maxSize;
+	private long timeToLiveNanos;
+	private CacheStatistics statistics;
+	private Map<K, CacheEntry<V>> entries;
+
+	public LruCache(int maxSize) {
+		this(maxSize, new CacheStatistics());
+	}
+
+	/**
+	 * @param maxSize the maximum number of entries to hold
+	 * @param statistics the counters to record hits, misses and evictions against
+	 */
+	public LruCache(int maxSize, CacheStatistics statistics) {
+		this(maxSize, 0, TimeUnit.MILLISECONDS, statistics);
+	}
+
+	/**
+	 * @param maxSize the maximum number of entries to hold
+	 * @param timeToLive how long entries live after being put, or 0 for entries to live until evicted
+	 * @param statistics the counters to record hits, misses and evictions against
+	 */
+	public LruCache(int maxSize, long timeToLive, TimeUnit unit, CacheStatistics statistics) {
+		this.maxSize = maxSize;
+		this.timeToLiveNanos = unit.toNanos(timeToLive);
+		this.statistics = statistics;
+		this.entries = new LinkedHashMap<K, CacheEntry<V>>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, CacheEntry<V>> eldest) {
+				boolean evict = size() > LruCache.this.maxSize;
+				if (evict) {
+					LruCache.this.statistics.evicted();
+				}
+				return evict;
+			}
+		};
+	}
+
+	public synchronized V get(K key) {
+		CacheEntry<V> entry = entries.get(key);
+		if (entry != null && entry.isExpired(System.nanoTime())) {
+			entries.remove(key);
+			statistics.evicted();
+			entry = null;
+		}
+		if (entry == null) {
+			statistics.miss();
+			return null;
+		}
+		statistics.hit();
+		return entry.value;
+	}
+
+	public synchronized void put(K key, V value) {
+		entries.put(key, new CacheEntry<V>(value, timeToLiveNanos == 0 ? 0 : System.nanoTime() + timeToLiveNanos));
+	}
+
+	public synchronized V remove(K key) {
+		CacheEntry<V> entry = entries.remove(key);
+		return entry == null ? null : entry.value;
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public long getTimeToLive(TimeUnit unit) {
+		return unit.convert(timeToLiveNanos, TimeUnit.NANOSECONDS);
+	}
+
+	public CacheStatistics getStatistics() {
+		return statistics;
+	}
+
+	private static class CacheEntry<V> {
+		private V value;
+		private long expiresAt;
+
+		private CacheEntry(V value, long expiresAt) {
+			this.value = value;
+			this.expiresAt = expiresAt;
+		}
+
+		private boolean isExpired(long now) {
+			return expiresAt != 0 && now - expiresAt >= 0;
+		}
+	}
+}
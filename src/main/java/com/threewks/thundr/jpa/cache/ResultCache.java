@@ -0,0 +1,226 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.jpa.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the ids of the entities returned by queries, keyed by the query, its parameters and its result type, so that
+ * repeated queries can be answered by looking up entities by id rather than querying the database.
+ * <p>
+ * The size of the cache is bounded by its weight, the total number of ids it holds, evicting the least recently used
+ * results once full. Results expire after a time to live, and all results of an entity type are invalidated when
+ * entities of that type are written through a {@link com.threewks.thundr.jpa.JpaTemplate}. Invalidation is tracked by
+ * a generation per entity type: callers read the generation before running a query and results stored against an
+ * older generation are discarded, so a write which races with a query cannot leave stale results behind.
+ */
+public class ResultCache {
+	private long maxWeight;
+	private long timeToLiveNanos;
+	private long weight;
+	private CacheStatistics statistics = new CacheStatistics();
+	private ConcurrentMap<Class<?>, AtomicLong> generations = new ConcurrentHashMap<Class<?>, AtomicLong>();
+	private LinkedHashMap<Key, Result> results = new LinkedHashMap<Key, Result>(16, 0.75f, true);
+
+	/**
+	 * @param maxWeight the maximum number of ids to hold across all results
+	 * @param timeToLive how long results are cached for, or 0 to cache them until evicted or invalidated
+	 */
+	public ResultCache(long maxWeight, long timeToLive, TimeUnit unit) {
+		this.maxWeight = maxWeight;
+		this.timeToLiveNanos = unit.toNanos(timeToLive);
+	}
+
+	/**
+	 * @return the ids of the cached result, or null if there is no current result for the key
+	 */
+	public synchronized List<Object> get(Key key) {
+		Result result = results.get(key);
+		if (result != null && (result.generation != getGeneration(key.type) || result.isExpired(System.nanoTime()))) {
+			remove(key);
+			statistics.evicted();
+			result = null;
+		}
+		if (result == null) {
+			statistics.miss();
+			return null;
+		}
+		statistics.hit();
+		return result.ids;
+	}
+
+	/**
+	 * Caches the ids of a result.
+	 * 
+	 * @param generation the generation of the result type, as returned by {@link #getGeneration(Class)} before the
+	 *            query was run
+	 */
+	public synchronized void put(Key key, List<Object> ids, long generation) {
+		long resultWeight = weigh(ids);
+		if (generation != getGeneration(key.type) || resultWeight > maxWeight) {
+			return;
+		}
+		remove(key);
+		results.put(key, new Result(Collections.unmodifiableList(new ArrayList<Object>(ids)), generation, timeToLiveNanos == 0 ? 0 : System.nanoTime() + timeToLiveNanos));
+		weight += resultWeight;
+
+		Iterator<Result> eldest = results.values().iterator();
+		while (weight > maxWeight && eldest.hasNext()) {
+			weight -= weigh(eldest.next().ids);
+			eldest.remove();
+			statistics.evicted();
+		}
+	}
+
+	/**
+	 * @return the current generation of the given entity type, which changes each time the type is invalidated
+	 */
+	public long getGeneration(Class<?> type) {
+		AtomicLong generation = generations.get(type);
+		return generation == null ? 0 : generation.get();
+	}
+
+	/**
+	 * Invalidates all results of the given entity type.
+	 */
+	public void invalidate(Class<?> type) {
+		AtomicLong generation = generations.get(type);
+		if (generation == null) {
+			AtomicLong existing = generations.putIfAbsent(type, generation = new AtomicLong());
+			generation = existing == null ? generation : existing;
+		}
+		generation.incrementAndGet();
+	}
+
+	public synchronized void clear() {
+		results.clear();
+		weight = 0;
+	}
+
+	public synchronized int size() {
+		return results.size();
+	}
+
+	public synchronized long getWeight() {
+		return weight;
+	}
+
+	public long getMaxWeight() {
+		return maxWeight;
+	}
+
+	public CacheStatistics getStatistics() {
+		return statistics;
+	}
+
+	private void remove(Key key) {
+		Result result = results.remove(key);
+		if (result != null) {
+			weight -= weigh(result.ids);
+		}
+	}
+
+	private static long weigh(List<Object> ids) {
+		return ids.size() + 1;
+	}
+
+	/**
+	 * Identifies a query result by its query, parameters and result type.
+	 */
+	public static final class Key {
+		private Class<?> type;
+		private boolean named;
+		private String query;
+		private Object params;
+
+		private Key(Class<?> type, boolean named, String query, Object params) {
+			this.type = type;
+			this.named = named;
+			this.query = query;
+			this.params = params;
+		}
+
+		public static Key query(Class<?> type, String query, Object[] values) {
+			return new Key(type, false, query, values == null ? Collections.emptyList() : Arrays.asList(values.clone()));
+		}
+
+		public static Key query(Class<?> type, String query, Map<String, Object> params) {
+			return new Key(type, false, query, params == null ? Collections.emptyMap() : new HashMap<String, Object>(params));
+		}
+
+		public static Key namedQuery(Class<?> type, String queryName, Object[] values) {
+			return new Key(type, true, queryName, values == null ? Collections.emptyList() : Arrays.asList(values.clone()));
+		}
+
+		public static Key namedQuery(Class<?> type, String queryName, Map<String, Object> params) {
+			return new Key(type, true, queryName, params == null ? Collections.emptyMap() : new HashMap<String, Object>(params));
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return type.equals(other.type) && named == other.named && query.equals(other.query) && params.equals(other.params);
+		}
+
+		@Override
+		public int hashCode() {
+			int result = type.hashCode();
+			result = 31 * result + (named ? 1 : 0);
+			result = 31 * result + query.hashCode();
+			return 31 * result + params.hashCode();
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s%s %s", named ? "named query " : "", query, params);
+		}
+	}
+
+	private static class Result {
+		private List<Object> ids;
+		private long generation;
+		private long expiresAt;
+
+		private Result(List<Object> ids, long generation, long expiresAt) {
+			this.ids = ids;
+			this.generation = generation;
+			this.expiresAt = expiresAt;
+		}
+
+		private boolean isExpired(long now) {
+			return expiresAt != 0 && now - expiresAt >= 0;
+		}
+	}
+}
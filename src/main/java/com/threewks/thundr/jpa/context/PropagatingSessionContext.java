@@ -0,0 +1,143 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.jpa.context;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Binds session state to an explicit {@link Session} rather than to a thread, so that a request can hand its session,
+ * and with it its entity manager, to whichever thread continues its work. Use {@link #capture()} to obtain the
+ * session of the current thread and {@link #wrap(Callable)}, or {@link #attach(Session)} and {@link #detach(Session)},
+ * to continue it on another thread.
+ * <p>
+ * Entity managers are not thread safe, so a session may move between threads but must only be used by one of them at
+ * a time. Threads without an attached session are given a session of their own.
+ */
+public class PropagatingSessionContext implements SessionContext {
+	private ThreadLocal<Session> current = new ThreadLocal<Session>();
+
+	@Override
+	public <T> SessionValue<T> createValue() {
+		return new PropagatingSessionValue<T>();
+	}
+
+	/**
+	 * @return the session attached to the current thread, attaching a new one if there is none
+	 */
+	public Session capture() {
+		Session session = current.get();
+		if (session == null) {
+			session = new Session();
+			current.set(session);
+		}
+		return session;
+	}
+
+	/**
+	 * Attaches the given session to the current thread.
+	 * 
+	 * @return the session previously attached, to be passed to {@link #detach(Session)}
+	 */
+	public Session attach(Session session) {
+		Session previous = current.get();
+		current.set(session);
+		return previous;
+	}
+
+	/**
+	 * Detaches the current session from the current thread, restoring the session which was attached before it.
+	 */
+	public void detach(Session previous) {
+		if (previous == null) {
+			current.remove();
+		} else {
+			current.set(previous);
+		}
+	}
+
+	/**
+	 * @return a callable which runs the given callable in the session of the current thread
+	 */
+	public <T> Callable<T> wrap(final Callable<T> callable) {
+		final Session session = capture();
+		return new Callable<T>() {
+			@Override
+			public T call() throws Exception {
+				Session previous = attach(session);
+				try {
+					return callable.call();
+				} finally {
+					detach(previous);
+				}
+			}
+		};
+	}
+
+	/**
+	 * @return a runnable which runs the given runnable in the session of the current thread
+	 */
+	public Runnable wrap(final Runnable runnable) {
+		final Session session = capture();
+		return new Runnable() {
+			@Override
+			public void run() {
+				Session previous = attach(session);
+				try {
+					runnable.run();
+				} finally {
+					detach(previous);
+				}
+			}
+		};
+	}
+
+	/**
+	 * The state of a single logical session.
+	 */
+	public static class Session {
+		private ConcurrentMap<Object, Object> values = new ConcurrentHashMap<Object, Object>();
+
+		public boolean isEmpty() {
+			return values.isEmpty();
+		}
+	}
+
+	private class PropagatingSessionValue<T> implements SessionValue<T> {
+		@SuppressWarnings("unchecked")
+		@Override
+		public T get() {
+			return (T) capture().values.get(this);
+		}
+
+		@Override
+		public void set(T value) {
+			if (value == null) {
+				remove();
+			} else {
+				capture().values.put(this, value);
+			}
+		}
+
+		@Override
+		public void remove() {
+			capture().values.remove(this);
+		}
+	}
+}
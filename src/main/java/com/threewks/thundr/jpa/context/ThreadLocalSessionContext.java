@@ -0,0 +1,48 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.jpa.context;
+
+/**
+ * Binds session state to the current thread, so a session lasts for as long as its work stays on one thread.
+ */
+public class ThreadLocalSessionContext implements SessionContext {
+
+	@Override
+	public <T> SessionValue<T> createValue() {
+		return new ThreadLocalSessionValue<T>();
+	}
+
+	private static class ThreadLocalSessionValue<T> implements SessionValue<T> {
+		private ThreadLocal<T> threadLocal = new ThreadLocal<T>();
+
+		@Override
+		public T get() {
+			return threadLocal.get();
+		}
+
+		@Override
+		public void set(T value) {
+			threadLocal.set(value);
+		}
+
+		@Override
+		public void remove() {
+			threadLocal.remove();
+		}
+	}
+}
@@ -45,4 +45,20 @@ public @interface JpaSession {
 	 * @see java.sql.Connection for isolation level constants
 	 */
 	int transactionIsolation() default -1;
+
+	/**
+	 * Set to <code>true</code> for actions which only read from the database. The session loads entities read only and
+	 * never flushes, so no time is spent dirty checking loaded entities or flushing them on commit. Changes made to
+	 * entities are not saved. Transactional sessions also mark their connection read only for the duration of the
+	 * transaction. Defaults to <code>false</code>.
+	 */
+	boolean readOnly() default false;
+
+	/**
+	 * Set to <code>true</code> to defer creating the entity manager, configuring the connection and beginning the
+	 * transaction until the database is first used. Actions which never touch the database then do not hold a
+	 * connection at all. Only supported by {@link com.threewks.thundr.jpa.ExtendedPersistenceManager}s, sessions of
+	 * other persistence managers always begin eagerly. Defaults to <code>false</code>.
+	 */
+	boolean lazy() default false;
 }
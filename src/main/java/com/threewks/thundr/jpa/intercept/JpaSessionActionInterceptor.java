@@ -19,15 +19,34 @@ package com.threewks.thundr.jpa.intercept;
 
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.persistence.EntityManager;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.hibernate.FlushMode;
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.jdbc.Work;
+
 import com.threewks.thundr.action.method.ActionInterceptor;
+import com.threewks.thundr.jpa.ExtendedPersistenceManager;
 import com.threewks.thundr.jpa.PersistenceManager;
 import com.threewks.thundr.jpa.PersistenceManagerRegistry;
+import com.threewks.thundr.jpa.VoidAction;
+import com.threewks.thundr.jpa.context.SessionContext;
+import com.threewks.thundr.jpa.context.SessionValue;
+import com.threewks.thundr.jpa.context.ThreadLocalSessionContext;
 import com.threewks.thundr.jpa.exception.JpaException;
+import com.threewks.thundr.jpa.metrics.MetricsInterceptor;
+import com.threewks.thundr.jpa.metrics.MetricsRegistry;
+import com.threewks.thundr.jpa.metrics.NPlusOneDetector;
+import com.threewks.thundr.jpa.metrics.NoopMetricsRegistry;
+import com.threewks.thundr.jpa.metrics.SessionMetrics;
+import com.threewks.thundr.jpa.routing.RoutingPersistenceManager;
 import com.threewks.thundr.logger.Logger;
 
 public class JpaSessionActionInterceptor implements ActionInterceptor<JpaSession> {
@@ -36,27 +55,130 @@ public class JpaSessionActionInterceptor implements ActionInterceptor<JpaSession
 	 */
 	public static int DefaultTransactionIsolation = -1;
 
-	private ThreadLocal<Integer> threadLocalOriginalTransactionIsolation;
+	/**
+	 * Default maximum number of distinct action names sessions are measured against.
+	 */
+	public static final int DefaultMaxActionNames = 200;
+
+	/**
+	 * The action name sessions are measured against once {@link #getMaxActionNames()} distinct names have been seen.
+	 */
+	public static final String OtherActionName = "other";
+
+	private SessionValue<Integer> threadLocalOriginalTransactionIsolation;
+	private SessionValue<Boolean> threadLocalReadOnlyConfigured;
+	private SessionValue<SessionMetrics> threadLocalSessionMetrics;
+	private SessionValue<NPlusOneDetector.Session> threadLocalNPlusOneSession;
+	private SessionValue<MetricsInterceptor> threadLocalMetricsInterceptor;
 	private PersistenceManagerRegistry persistenceManagerRegistry;
+	private MetricsRegistry metricsRegistry = new NoopMetricsRegistry();
+	private NPlusOneDetector nPlusOneDetector;
+	private int maxActionNames = DefaultMaxActionNames;
+	private Set<String> actionNames = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
 	public JpaSessionActionInterceptor(PersistenceManagerRegistry persistenceManagerRegistry) {
+		this(persistenceManagerRegistry, new ThreadLocalSessionContext());
+	}
+
+	/**
+	 * @param sessionContext the context holding session state, which should be the one used by the persistence managers
+	 */
+	public JpaSessionActionInterceptor(PersistenceManagerRegistry persistenceManagerRegistry, SessionContext sessionContext) {
 		this.persistenceManagerRegistry = persistenceManagerRegistry;
-		this.threadLocalOriginalTransactionIsolation = new ThreadLocal<Integer>();
+		this.threadLocalOriginalTransactionIsolation = sessionContext.createValue();
+		this.threadLocalReadOnlyConfigured = sessionContext.createValue();
+		this.threadLocalSessionMetrics = sessionContext.createValue();
+		this.threadLocalNPlusOneSession = sessionContext.createValue();
+		this.threadLocalMetricsInterceptor = sessionContext.createValue();
+	}
+
+	/**
+	 * Sets the registry each session is measured into, see {@link SessionMetrics}. Sessions are not measured unless
+	 * the registry is enabled.
+	 */
+	public void setMetricsRegistry(MetricsRegistry metricsRegistry) {
+		this.metricsRegistry = metricsRegistry;
+	}
+
+	public MetricsRegistry getMetricsRegistry() {
+		return metricsRegistry;
+	}
+
+	/**
+	 * Sets the detector statements executed within each session are checked by, or null to not check for N+1
+	 * queries.
+	 */
+	public void setNPlusOneDetector(NPlusOneDetector nPlusOneDetector) {
+		this.nPlusOneDetector = nPlusOneDetector;
+	}
+
+	public NPlusOneDetector getNPlusOneDetector() {
+		return nPlusOneDetector;
+	}
+
+	/**
+	 * Bounds the number of distinct action names sessions are measured against, so that paths which
+	 * {@link #getActionName(HttpServletRequest)} does not collapse, such as slugs, cannot create an unbounded number of
+	 * metrics. Once the limit is reached, sessions of actions not already seen are measured as
+	 * {@value #OtherActionName}.
+	 */
+	public void setMaxActionNames(int maxActionNames) {
+		this.maxActionNames = maxActionNames;
+	}
+
+	public int getMaxActionNames() {
+		return maxActionNames;
 	}
 
 	@Override
-	public <T> T before(JpaSession annotation, HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse) {
+	public <T> T before(final JpaSession annotation, HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse) {
 		Logger.debug("Initializing entity manager.");
-		PersistenceManager persistenceManager = getPersistenceManager(annotation);
+		final PersistenceManager persistenceManager = getPersistenceManager(annotation);
+		if (persistenceManager instanceof RoutingPersistenceManager) {
+			((RoutingPersistenceManager) persistenceManager).route(annotation.readOnly() || !annotation.transactional());
+		}
+		String actionName = metricsRegistry.isEnabled() || nPlusOneDetector != null ? limitActionName(getActionName(httpServletRequest)) : null;
+		// a previous session which failed to close cleanly must not leave its state behind
+		detachMetrics();
+		threadLocalSessionMetrics.remove();
+		endNPlusOneDetection(false);
+
+		String sessionName = actionName == null ? annotation.persistenceUnit() : annotation.persistenceUnit() + " " + actionName;
+		final NPlusOneDetector.Session nPlusOneSession = nPlusOneDetector == null ? null : nPlusOneDetector.begin(sessionName);
+		if (nPlusOneSession != null) {
+			threadLocalNPlusOneSession.set(nPlusOneSession);
+		}
+		final SessionMetrics sessionMetrics = metricsRegistry.isEnabled() ? new SessionMetrics(metricsRegistry, annotation.persistenceUnit(), actionName) : null;
+		if (sessionMetrics != null) {
+			threadLocalSessionMetrics.set(sessionMetrics);
+		}
 
-		if (annotation.transactional()) {
-			Logger.debug("Configuring transaction isolation level to: %s...", annotation.transactionIsolation());
-			configureTransactionIsolation(persistenceManager, annotation.transactionIsolation());
-			Logger.debug("Transaction isolation level configured.", annotation.transactionIsolation());
+		// only extended persistence managers can defer work until first use, other sessions always begin eagerly
+		ExtendedPersistenceManager extendedPersistenceManager = persistenceManager instanceof ExtendedPersistenceManager ? (ExtendedPersistenceManager) persistenceManager : null;
+		if (sessionMetrics != null || nPlusOneSession != null) {
+			VoidAction attachMetrics = new VoidAction() {
+				@Override
+				public void vrun(EntityManager em) {
+					attachMetrics(em, sessionMetrics, nPlusOneSession);
+				}
+			};
+			if (extendedPersistenceManager == null) {
+				attachMetrics.run(persistenceManager.getEntityManager());
+			} else {
+				extendedPersistenceManager.onFirstUse(attachMetrics);
+			}
+		}
 
-			Logger.debug("Beginning transaction...");
-			persistenceManager.beginTransaction();
-			Logger.debug("Inside transaction.");
+		if (annotation.lazy() && extendedPersistenceManager != null) {
+			Logger.debug("Deferring session initialization until first use.");
+			extendedPersistenceManager.onFirstUse(new VoidAction() {
+				@Override
+				public void vrun(EntityManager em) {
+					beginSession(annotation, persistenceManager);
+				}
+			});
+		} else {
+			beginSession(annotation, persistenceManager);
 		}
 		return null;
 	}
@@ -64,20 +186,37 @@ public class JpaSessionActionInterceptor implements ActionInterceptor<JpaSession
 	@Override
 	public <T> T after(JpaSession annotation, Object view, HttpServletRequest req, HttpServletResponse resp) {
 		PersistenceManager persistenceManager = getPersistenceManager(annotation);
+		SessionMetrics sessionMetrics = threadLocalSessionMetrics.get();
+		if (unused(annotation, persistenceManager)) {
+			return null;
+		}
+		boolean committed = false;
 		try {
+			restoreReadWrite(persistenceManager);
+
 			if (annotation.transactional()) {
 				Logger.debug("Committing transaction...");
+				long start = sessionMetrics == null ? 0 : sessionMetrics.start();
 				persistenceManager.commit();
+				if (sessionMetrics != null) {
+					sessionMetrics.committed(start);
+				}
 				Logger.debug("Transaction committed.");
 			}
+			committed = true;
 		} finally {
 			Logger.debug("Restoring transaction isolation level...");
 			restoreDefaultTransactionIsolation(persistenceManager);
 			Logger.debug("Transaction isolation level restored.");
 
+			// detached before closing, as a pooled entity manager may be handed to another session once closed
+			detachMetrics();
 			Logger.debug("Closing entity manager...");
-			persistenceManager.closeEntityManager();
+			closeEntityManager(persistenceManager, committed);
 			Logger.debug("Entity manager closed.");
+
+			endSessionMetrics(sessionMetrics);
+			endNPlusOneDetection(committed);
 		}
 		return null;
 	}
@@ -85,10 +224,21 @@ public class JpaSessionActionInterceptor implements ActionInterceptor<JpaSession
 	@Override
 	public <T> T exception(JpaSession annotation, Exception e, HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse) {
 		PersistenceManager persistenceManager = getPersistenceManager(annotation);
+		SessionMetrics sessionMetrics = threadLocalSessionMetrics.get();
+		if (unused(annotation, persistenceManager)) {
+			return null;
+		}
+		sessionFailed(persistenceManager, e);
 		try {
+			restoreReadWrite(persistenceManager);
+
 			if (annotation.transactional()) {
 				Logger.error("Unchecked exception, rolling back transaction...");
+				long start = sessionMetrics == null ? 0 : sessionMetrics.start();
 				persistenceManager.rollback();
+				if (sessionMetrics != null) {
+					sessionMetrics.rolledBack(start);
+				}
 				Logger.debug("Transaction rolled back.");
 			}
 		} finally {
@@ -96,13 +246,162 @@ public class JpaSessionActionInterceptor implements ActionInterceptor<JpaSession
 			restoreDefaultTransactionIsolation(persistenceManager);
 			Logger.debug("Transaction isolation level restored.");
 
+			// detached before closing, as a pooled entity manager may be handed to another session once closed
+			detachMetrics();
 			Logger.debug("Closing entity manager...");
-			persistenceManager.closeEntityManager();
+			closeEntityManager(persistenceManager, false);
 			Logger.debug("Entity manager closed.");
+
+			endSessionMetrics(sessionMetrics);
+			endNPlusOneDetection(false);
 		}
 		return null;
 	}
 
+	/**
+	 * Begins the session. A transactional read only session marks its connection read only once its transaction has
+	 * begun, so the flag is set on the connection which the transaction holds, and clears it again before the
+	 * transaction ends. Outside a transaction Hibernate may release the connection after each statement, so the flag
+	 * could leak to its next user or be cleared on another connection; those sessions are only made read only through
+	 * the session itself.
+	 */
+	private void beginSession(JpaSession annotation, PersistenceManager persistenceManager) {
+		try {
+			if (annotation.transactional()) {
+				Logger.debug("Configuring transaction isolation level to: %s...", annotation.transactionIsolation());
+				configureTransactionIsolation(persistenceManager, annotation.transactionIsolation());
+				Logger.debug("Transaction isolation level configured.", annotation.transactionIsolation());
+
+				Logger.debug("Beginning transaction...");
+				persistenceManager.beginTransaction();
+				Logger.debug("Inside transaction.");
+			}
+
+			if (annotation.readOnly()) {
+				Logger.debug("Configuring read only session...");
+				configureReadOnly(persistenceManager, annotation.transactional());
+				Logger.debug("Read only session configured.");
+			}
+		} catch (RuntimeException e) {
+			sessionFailed(persistenceManager, e);
+			throw e;
+		}
+	}
+
+	/**
+	 * Reports a failed session to a routing persistence manager, which ejects the replica it was routed to if the
+	 * database connection failed. Queries run on the entity manager directly, so their failures are only seen here.
+	 */
+	private void sessionFailed(PersistenceManager persistenceManager, Exception e) {
+		if (persistenceManager instanceof RoutingPersistenceManager) {
+			((RoutingPersistenceManager) persistenceManager).sessionFailed(e);
+		}
+	}
+
+	/**
+	 * A lazy session which never used the database has nothing to commit, roll back or close, other than discarding
+	 * its deferred initialization.
+	 */
+	private boolean unused(JpaSession annotation, PersistenceManager persistenceManager) {
+		if (annotation.lazy() && persistenceManager instanceof ExtendedPersistenceManager && !((ExtendedPersistenceManager) persistenceManager).hasEntityManager()) {
+			Logger.debug("Entity manager never used, nothing to close.");
+			persistenceManager.closeEntityManager();
+			endSessionMetrics(threadLocalSessionMetrics.get());
+			endNPlusOneDetection(false);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Closes the entity manager of a session, which may only be recycled if the session succeeded.
+	 */
+	private void closeEntityManager(PersistenceManager persistenceManager, boolean recycle) {
+		if (persistenceManager instanceof ExtendedPersistenceManager) {
+			((ExtendedPersistenceManager) persistenceManager).closeEntityManager(recycle);
+		} else {
+			persistenceManager.closeEntityManager();
+		}
+	}
+
+	/**
+	 * Starts measuring the work done by the entity manager of a session once it is first used, through the
+	 * {@link MetricsInterceptor} of the entity manager if one is installed.
+	 */
+	private void attachMetrics(EntityManager em, SessionMetrics sessionMetrics, NPlusOneDetector.Session nPlusOneSession) {
+		MetricsInterceptor metricsInterceptor = MetricsInterceptor.of(em);
+		if (sessionMetrics != null) {
+			sessionMetrics.firstEntityManager(metricsInterceptor == null ? null : metricsInterceptor.getCounts());
+		}
+		if (metricsInterceptor != null) {
+			threadLocalMetricsInterceptor.set(metricsInterceptor);
+			metricsInterceptor.setNPlusOneSession(nPlusOneSession);
+		}
+	}
+
+	/**
+	 * Stops measuring the work done by the entity manager of the current session.
+	 */
+	private void detachMetrics() {
+		SessionMetrics sessionMetrics = threadLocalSessionMetrics.get();
+		if (sessionMetrics != null) {
+			sessionMetrics.stopCounting();
+		}
+		MetricsInterceptor metricsInterceptor = threadLocalMetricsInterceptor.get();
+		if (metricsInterceptor != null) {
+			threadLocalMetricsInterceptor.remove();
+			metricsInterceptor.setNPlusOneSession(null);
+		}
+	}
+
+	private void endSessionMetrics(SessionMetrics sessionMetrics) {
+		if (sessionMetrics != null) {
+			threadLocalSessionMetrics.remove();
+			sessionMetrics.end();
+		}
+	}
+
+	/**
+	 * @param mayFail false if the action has already failed, in which case N+1 queries are reported but not thrown
+	 */
+	private void endNPlusOneDetection(boolean mayFail) {
+		NPlusOneDetector.Session nPlusOneSession = threadLocalNPlusOneSession.get();
+		if (nPlusOneSession != null) {
+			threadLocalNPlusOneSession.remove();
+			nPlusOneDetector.end(nPlusOneSession, mayFail);
+		}
+	}
+
+	/**
+	 * Names the action a session is measured against, by default the request method and path with any path segment
+	 * containing a digit replaced by <code>*</code>, so that requests for different ids share their metrics. Override
+	 * this to name actions differently, returning null to measure sessions only per persistence manager.
+	 */
+	protected String getActionName(HttpServletRequest httpServletRequest) {
+		if (httpServletRequest == null || httpServletRequest.getRequestURI() == null) {
+			return null;
+		}
+		StringBuilder actionName = new StringBuilder(httpServletRequest.getMethod()).append(" ");
+		String[] segments = httpServletRequest.getRequestURI().split("/", -1);
+		for (int i = 0; i < segments.length; i++) {
+			String segment = segments[i];
+			actionName.append(i == 0 ? "" : "/").append(segment.matches(".*\\d.*") ? "*" : segment);
+		}
+		return actionName.toString();
+	}
+
+	private String limitActionName(String actionName) {
+		if (actionName == null || actionNames.contains(actionName)) {
+			return actionName;
+		}
+		// racing sessions may briefly exceed the limit, which is only meant to keep the number of names bounded
+		if (actionNames.size() < maxActionNames) {
+			actionNames.add(actionName);
+			return actionName;
+		}
+		return OtherActionName;
+	}
+
 	private Connection getConnection(PersistenceManager persistenceManager) {
 		EntityManager entityManager = persistenceManager.getEntityManager();
 		return entityManager.unwrap(Connection.class);
@@ -127,13 +426,58 @@ public class JpaSessionActionInterceptor implements ActionInterceptor<JpaSession
 		}
 	}
 
+	private void configureReadOnly(PersistenceManager persistenceManager, boolean transactional) {
+		Session session = persistenceManager.getEntityManager().unwrap(Session.class);
+		session.setFlushMode(FlushMode.MANUAL);
+		session.setDefaultReadOnly(true);
+		if (!transactional) {
+			return;
+		}
+		try {
+			session.doWork(new Work() {
+				@Override
+				public void execute(Connection connection) throws SQLException {
+					if (!connection.isReadOnly()) {
+						connection.setReadOnly(true);
+						threadLocalReadOnlyConfigured.set(Boolean.TRUE);
+					}
+				}
+			});
+		} catch (HibernateException e) {
+			String message = "Error configuring read only connection: %s";
+			Logger.error(message, e.getMessage());
+			throw new JpaException(e, message, e.getMessage());
+		}
+	}
+
+	/**
+	 * Clears the read only flag set by {@link #configureReadOnly(PersistenceManager, boolean)}, before the transaction ends and
+	 * the connection is released. A driver which refuses to change the flag within a transaction leaves the connection
+	 * to be reset by its pool.
+	 */
+	private void restoreReadWrite(PersistenceManager persistenceManager) {
+		if (threadLocalReadOnlyConfigured.get() != null) {
+			threadLocalReadOnlyConfigured.remove();
+			try {
+				persistenceManager.getEntityManager().unwrap(Session.class).doWork(new Work() {
+					@Override
+					public void execute(Connection connection) throws SQLException {
+						connection.setReadOnly(false);
+					}
+				});
+			} catch (HibernateException e) {
+				Logger.warn("Error restoring read write connection, leaving it to the connection pool to reset: %s", e.getMessage());
+			}
+		}
+	}
+
 	private void restoreDefaultTransactionIsolation(PersistenceManager persistenceManager) {
 		Integer isolationLevel = threadLocalOriginalTransactionIsolation.get();
 		if (isolationLevel != null) {
 			try {
 				Connection connection = getConnection(persistenceManager);
 				connection.setTransactionIsolation(isolationLevel);
-				threadLocalOriginalTransactionIsolation.set(null);
+				threadLocalOriginalTransactionIsolation.remove();
 			} catch (SQLException e) {
 				String message = "Error restoring transaction isolation level: %s";
 				Logger.error(message, e.getMessage());
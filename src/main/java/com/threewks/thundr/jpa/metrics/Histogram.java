@@ -0,0 +1,37 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.jpa.metrics;
+
+/**
+ * Records the distribution of a series of values, such as durations in microseconds or counts per request.
+ */
+public interface Histogram {
+	void record(long value);
+
+	long getCount();
+
+	double getMean();
+
+	long getMax();
+
+	/**
+	 * @param percentile the percentile, between 0 and 100
+	 * @return an estimate of the value below which the given percentage of recorded values fall
+	 */
+	long getPercentile(double percentile);
+}
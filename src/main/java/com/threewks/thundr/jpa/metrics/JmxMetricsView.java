@@ -0,0 +1,157 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.jpa.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.threewks.thundr.jpa.exception.JpaException;
+
+/**
+ * Exposes the histograms of a {@link SimpleMetricsRegistry} over JMX, as read only attributes named
+ * <code>&lt;histogram&gt;.count</code>, <code>.mean</code>, <code>.p50</code>, <code>.p95</code>, <code>.p99</code>
+ * and <code>.max</code>.
+ */
+public class JmxMetricsView implements DynamicMBean {
+	public static final String DefaultObjectName = "com.threewks.thundr.jpa:type=Metrics";
+	private static final String[] Statistics = { "count", "mean", "p50", "p95", "p99", "max" };
+
+	private SimpleMetricsRegistry metricsRegistry;
+	private ObjectName objectName;
+
+	public JmxMetricsView(SimpleMetricsRegistry metricsRegistry) {
+		this.metricsRegistry = metricsRegistry;
+	}
+
+	public void register() {
+		register(ManagementFactory.getPlatformMBeanServer(), DefaultObjectName);
+	}
+
+	public void register(MBeanServer mBeanServer, String name) {
+		try {
+			objectName = new ObjectName(name);
+			if (mBeanServer.isRegistered(objectName)) {
+				mBeanServer.unregisterMBean(objectName);
+			}
+			mBeanServer.registerMBean(this, objectName);
+		} catch (Exception e) {
+			throw new JpaException(e, "Failed to register metrics with JMX as %s: %s", name, e.getMessage());
+		}
+	}
+
+	public void unregister() {
+		unregister(ManagementFactory.getPlatformMBeanServer());
+	}
+
+	public void unregister(MBeanServer mBeanServer) {
+		try {
+			if (objectName != null && mBeanServer.isRegistered(objectName)) {
+				mBeanServer.unregisterMBean(objectName);
+			}
+			objectName = null;
+		} catch (Exception e) {
+			throw new JpaException(e, "Failed to unregister metrics from JMX: %s", e.getMessage());
+		}
+	}
+
+	@Override
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+		int separator = attribute.lastIndexOf('.');
+		Histogram histogram = separator < 0 ? null : metricsRegistry.getHistograms().get(attribute.substring(0, separator));
+		if (histogram == null) {
+			throw new AttributeNotFoundException(attribute);
+		}
+		String statistic = attribute.substring(separator + 1);
+		if ("count".equals(statistic)) {
+			return histogram.getCount();
+		}
+		if ("mean".equals(statistic)) {
+			return histogram.getMean();
+		}
+		if ("max".equals(statistic)) {
+			return histogram.getMax();
+		}
+		if (statistic.startsWith("p")) {
+			try {
+				return histogram.getPercentile(Double.parseDouble(statistic.substring(1)));
+			} catch (NumberFormatException e) {
+				// fall through
+			}
+		}
+		throw new AttributeNotFoundException(attribute);
+	}
+
+	@Override
+	public AttributeList getAttributes(String[] attributes) {
+		AttributeList list = new AttributeList();
+		for (String attribute : attributes) {
+			try {
+				list.add(new Attribute(attribute, getAttribute(attribute)));
+			} catch (AttributeNotFoundException e) {
+				// omitted, as the DynamicMBean contract requires
+			}
+		}
+		return list;
+	}
+
+	@Override
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException(attribute.getName() + " is read only");
+	}
+
+	@Override
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	@Override
+	public Object invoke(String actionName, Object[] params, String[] signature) {
+		if ("reset".equals(actionName)) {
+			metricsRegistry.reset();
+			return null;
+		}
+		throw new UnsupportedOperationException(actionName);
+	}
+
+	@Override
+	public MBeanInfo getMBeanInfo() {
+		List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+		for (Map.Entry<String, Histogram> entry : metricsRegistry.getHistograms().entrySet()) {
+			for (String statistic : Statistics) {
+				String type = "mean".equals(statistic) ? Double.class.getName() : Long.class.getName();
+				attributes.add(new MBeanAttributeInfo(entry.getKey() + "." + statistic, type, statistic + " of " + entry.getKey(), true, false, false));
+			}
+		}
+		MBeanOperationInfo reset = new MBeanOperationInfo("reset", "Discards all recorded metrics", new MBeanParameterInfo[0], "void", MBeanOperationInfo.ACTION);
+		return new MBeanInfo(getClass().getName(), "thundr-jpa persistence metrics", attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null,
+				new MBeanOperationInfo[] { reset }, null);
+	}
+}
@@ -0,0 +1,114 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.jpa.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free histogram of non negative values. Values are counted in buckets which grow exponentially, eight to each
+ * power of two, so percentiles are accurate to within 12.5% whatever the range of values, in a fixed 4KB of memory.
+ */
+public class LogHistogram implements Histogram {
+	private static final int SubBucketBits = 3;
+	private static final int SubBuckets = 1 << SubBucketBits;
+	private static final int Buckets = SubBuckets + (63 - SubBucketBits) * SubBuckets;
+
+	private AtomicLongArray counts = new AtomicLongArray(Buckets);
+	private AtomicLong count = new AtomicLong();
+	private AtomicLong sum = new AtomicLong();
+	private AtomicLong max = new AtomicLong();
+
+	@Override
+	public void record(long value) {
+		value = Math.max(0, value);
+		counts.incrementAndGet(bucket(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long currentMax = max.get();
+		while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+			currentMax = max.get();
+		}
+	}
+
+	@Override
+	public long getCount() {
+		return count.get();
+	}
+
+	@Override
+	public double getMean() {
+		long count = getCount();
+		return count == 0 ? 0 : (double) sum.get() / count;
+	}
+
+	@Override
+	public long getMax() {
+		return max.get();
+	}
+
+	@Override
+	public long getPercentile(double percentile) {
+		long total = getCount();
+		if (total == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+		long seen = 0;
+		for (int bucket = 0; bucket < Buckets; bucket++) {
+			seen += counts.get(bucket);
+			if (seen >= rank) {
+				return Math.min(upperBound(bucket), getMax());
+			}
+		}
+		return getMax();
+	}
+
+	public void reset() {
+		for (int bucket = 0; bucket < Buckets; bucket++) {
+			counts.set(bucket, 0);
+		}
+		count.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("count=%d, mean=%.1f, p50=%d, p99=%d, max=%d", getCount(), getMean(), getPercentile(50), getPercentile(99), getMax());
+	}
+
+	static int bucket(long value) {
+		if (value < SubBuckets) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int) (value >>> (exponent - SubBucketBits)) & (SubBuckets - 1);
+		return SubBuckets + (exponent - SubBucketBits) * SubBuckets + subBucket;
+	}
+
+	static long upperBound(int bucket) {
+		if (bucket < SubBuckets) {
+			return bucket;
+		}
+		int exponent = (bucket - SubBuckets) / SubBuckets + SubBucketBits;
+		long subBucket = (bucket - SubBuckets) % SubBuckets;
+		int shift = exponent - SubBucketBits;
+		return ((SubBuckets + subBucket) << shift) + (1l << shift) - 1;
+	}
+}
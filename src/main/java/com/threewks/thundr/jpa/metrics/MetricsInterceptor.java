@@ -0,0 +1,125 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.jpa.metrics;
+
+import java.io.Serializable;
+
+import javax.persistence.EntityManager;
+
+import org.hibernate.EmptyInterceptor;
+import org.hibernate.Interceptor;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.type.Type;
+
+/**
+ * A Hibernate interceptor counting the statements prepared and entities loaded and flushed by an entity manager, so
+ * {@link SessionMetrics} can attribute them to a session, and reporting statements to the {@link NPlusOneDetector}
+ * session attached to it. Installed by setting <code>hibernate.ejb.interceptor.session_scoped</code> to the name of
+ * this class, which thundr-jpa does when metrics or N+1 query detection are enabled, so that each entity manager has
+ * an interceptor of its own and no state is held per thread.
+ */
+public class MetricsInterceptor extends EmptyInterceptor {
+	private static final long serialVersionUID = 1l;
+
+	private Counts counts = new Counts();
+	private NPlusOneDetector.Session nPlusOneSession;
+
+	/**
+	 * @return the interceptor installed on the given entity manager, or null if metrics are not collected for it
+	 */
+	public static MetricsInterceptor of(EntityManager em) {
+		Object delegate = em.getDelegate();
+		if (!(delegate instanceof SessionImplementor)) {
+			return null;
+		}
+		Interceptor interceptor = ((SessionImplementor) delegate).getInterceptor();
+		return interceptor instanceof MetricsInterceptor ? (MetricsInterceptor) interceptor : null;
+	}
+
+	/**
+	 * @return the running totals for the entity manager
+	 */
+	public Counts getCounts() {
+		return counts;
+	}
+
+	/**
+	 * Sets the session statements are counted against for N+1 query detection, or null to stop counting them.
+	 */
+	public void setNPlusOneSession(NPlusOneDetector.Session nPlusOneSession) {
+		this.nPlusOneSession = nPlusOneSession;
+	}
+
+	public NPlusOneDetector.Session getNPlusOneSession() {
+		return nPlusOneSession;
+	}
+
+	@Override
+	public String onPrepareStatement(String sql) {
+		counts.statements++;
+		NPlusOneDetector.Session session = nPlusOneSession;
+		if (session != null) {
+			session.statementPrepared(sql);
+		}
+		return sql;
+	}
+
+	@Override
+	public boolean onLoad(Object entity, Serializable id, Object[] state, String[] propertyNames, Type[] types) {
+		counts.entitiesLoaded++;
+		return false;
+	}
+
+	@Override
+	public boolean onSave(Object entity, Serializable id, Object[] state, String[] propertyNames, Type[] types) {
+		counts.entitiesFlushed++;
+		return false;
+	}
+
+	@Override
+	public boolean onFlushDirty(Object entity, Serializable id, Object[] currentState, Object[] previousState, String[] propertyNames, Type[] types) {
+		counts.entitiesFlushed++;
+		return false;
+	}
+
+	@Override
+	public void onDelete(Object entity, Serializable id, Object[] state, String[] propertyNames, Type[] types) {
+		counts.entitiesFlushed++;
+	}
+
+	/**
+	 * Totals which only ever increase, sessions take the difference between the totals at their start and end.
+	 */
+	public static class Counts {
+		private long statements;
+		private long entitiesLoaded;
+		private long entitiesFlushed;
+
+		public long getStatements() {
+			return statements;
+		}
+
+		public long getEntitiesLoaded() {
+			return entitiesLoaded;
+		}
+
+		public long getEntitiesFlushed() {
+			return entitiesFlushed;
+		}
+	}
+}
@@ -0,0 +1,34 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.jpa.metrics;
+
+/**
+ * Provides the histograms persistence metrics are recorded in. Implement this to report metrics through another
+ * metrics library.
+ */
+public interface MetricsRegistry {
+	/**
+	 * @return false if metrics are not collected, allowing callers to skip measuring altogether
+	 */
+	boolean isEnabled();
+
+	/**
+	 * @return the histogram with the given name, created if it does not yet exist
+	 */
+	Histogram histogram(String name);
+}
@@ -0,0 +1,168 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.jpa.metrics;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import com.threewks.thundr.jpa.exception.NPlusOneQueryException;
+import com.threewks.thundr.logger.Logger;
+
+/**
+ * Detects N+1 queries, typically lazily loaded associations fetched one at a time in a loop. Statements executed
+ * within a session are grouped by shape, their SQL with literals replaced by <code>?</code>, and any shape executed
+ * more than the threshold number of times is reported along with the call site which executed it, being the first
+ * stack frame outside of Hibernate, thundr-jpa, the JDK and generated proxies.
+ * <p>
+ * Statements are seen through the {@link MetricsInterceptor} of the entity manager the session is attached to, so
+ * only statements executed by that entity manager are counted.
+ */
+public class NPlusOneDetector {
+	public enum Mode {
+		/**
+		 * Log a warning for each repeated statement
+		 */
+		Log,
+		/**
+		 * Log as above, then throw a {@link NPlusOneQueryException} from sessions which end successfully, intended for
+		 * use in tests
+		 */
+		Fail
+	}
+
+	public static final int DefaultThreshold = 10;
+
+	private static final Pattern StringLiteral = Pattern.compile("'(?:[^']|'')*'");
+	private static final Pattern NumericLiteral = Pattern.compile("\\b\\d+(?:\\.\\d+)?\\b");
+	private static final String[] IgnoredPackages = { "org.hibernate.", "com.threewks.thundr.jpa.", "java.", "javax.", "sun.", "com.sun.", "javassist.", "net.sf.cglib.",
+			"org.junit.", "org.mockito." };
+
+	private Mode mode;
+	private int threshold;
+
+	public NPlusOneDetector(Mode mode, int threshold) {
+		this.mode = mode;
+		this.threshold = threshold;
+	}
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	public int getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * Creates a session to count statements against, which counts the statements of an entity manager once attached
+	 * to its {@link MetricsInterceptor}, until passed to {@link #end(Session, boolean)}.
+	 */
+	public Session begin(String name) {
+		return new Session(name, threshold);
+	}
+
+	/**
+	 * Stops counting statements for the given session and reports any executed more than the threshold number of
+	 * times.
+	 * 
+	 * @param mayFail false if the session is already failing, in which case repeated statements are only logged
+	 * @throws NPlusOneQueryException if the mode is {@link Mode#Fail}, the session may fail and a statement was repeated
+	 */
+	public void end(Session session, boolean mayFail) {
+		List<String> reports = new ArrayList<String>();
+		for (Map.Entry<String, Shape> entry : session.shapes.entrySet()) {
+			Shape shape = entry.getValue();
+			if (shape.count > threshold) {
+				String report = String.format("'%s' executed %d times in %s at %s", entry.getKey(), shape.count, session.name, shape.callSite);
+				Logger.warn("Possible N+1 query, %s", report);
+				reports.add(report);
+			}
+		}
+		if (mode == Mode.Fail && mayFail && !reports.isEmpty()) {
+			throw new NPlusOneQueryException("Possible N+1 queries, statements executed more than %d times: %s", threshold, reports);
+		}
+	}
+
+	static String shape(String sql) {
+		String shape = StringLiteral.matcher(sql).replaceAll("?");
+		return NumericLiteral.matcher(shape).replaceAll("?");
+	}
+
+	static String callSite(StackTraceElement[] stackTrace) {
+		for (StackTraceElement element : stackTrace) {
+			if (!ignored(element.getClassName())) {
+				return element.toString();
+			}
+		}
+		return "unknown";
+	}
+
+	private static boolean ignored(String className) {
+		if (className.contains("$$")) {
+			return true;
+		}
+		for (String ignoredPackage : IgnoredPackages) {
+			if (className.startsWith(ignoredPackage)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public static class Session {
+		private String name;
+		private int threshold;
+		private Map<String, Shape> shapes = new LinkedHashMap<String, Shape>();
+
+		private Session(String name, int threshold) {
+			this.name = name;
+			this.threshold = threshold;
+		}
+
+		/**
+		 * @return the number of times statements of each shape were executed, in order of first execution
+		 */
+		public Map<String, Integer> getCounts() {
+			Map<String, Integer> counts = new LinkedHashMap<String, Integer>();
+			for (Map.Entry<String, Shape> entry : shapes.entrySet()) {
+				counts.put(entry.getKey(), entry.getValue().count);
+			}
+			return counts;
+		}
+
+		void statementPrepared(String sql) {
+			String key = shape(sql);
+			Shape shape = shapes.get(key);
+			if (shape == null) {
+				shapes.put(key, shape = new Shape());
+			}
+			// only the first repetition beyond the threshold pays for a stack trace
+			if (++shape.count == threshold + 1) {
+				shape.callSite = callSite(new Throwable().getStackTrace());
+			}
+		}
+	}
+
+	private static class Shape {
+		private int count;
+		private String callSite;
+	}
+}
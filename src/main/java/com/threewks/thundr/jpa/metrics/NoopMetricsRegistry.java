@@ -0,0 +1,59 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.jpa.metrics;
+
+/**
+ * A registry which collects nothing, used when metrics are disabled.
+ */
+public class NoopMetricsRegistry implements MetricsRegistry {
+	private static final Histogram NoopHistogram = new Histogram() {
+		@Override
+		public void record(long value) {
+		}
+
+		@Override
+		public long getCount() {
+			return 0;
+		}
+
+		@Override
+		public double getMean() {
+			return 0;
+		}
+
+		@Override
+		public long getMax() {
+			return 0;
+		}
+
+		@Override
+		public long getPercentile(double percentile) {
+			return 0;
+		}
+	};
+
+	@Override
+	public boolean isEnabled() {
+		return false;
+	}
+
+	@Override
+	public Histogram histogram(String name) {
+		return NoopHistogram;
+	}
+}
@@ -0,0 +1,120 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.jpa.metrics;
+
+import java.util.concurrent.TimeUnit;
+
+import com.threewks.thundr.jpa.metrics.MetricsInterceptor.Counts;
+
+/**
+ * Measures a single session, from the start of an action to its entity manager being closed, recording into the
+ * histograms <code>jpa.&lt;manager&gt;.&lt;metric&gt;</code> and, when the action is known,
+ * <code>jpa.&lt;manager&gt;.&lt;action&gt;.&lt;metric&gt;</code>. Durations are recorded in microseconds.
+ */
+public class SessionMetrics {
+	public static final String Session = "session";
+	public static final String FirstEntityManager = "firstEntityManager";
+	public static final String Commit = "commit";
+	public static final String Rollback = "rollback";
+	public static final String Statements = "statements";
+	public static final String EntitiesLoaded = "entitiesLoaded";
+	public static final String EntitiesFlushed = "entitiesFlushed";
+
+	private MetricsRegistry metricsRegistry;
+	private String[] prefixes;
+	private long started;
+	private Counts counts;
+	private long statements;
+	private long entitiesLoaded;
+	private long entitiesFlushed;
+
+	/**
+	 * @param actionName the name of the action the session belongs to, or null if unknown
+	 */
+	public SessionMetrics(MetricsRegistry metricsRegistry, String persistenceManagerName, String actionName) {
+		this.metricsRegistry = metricsRegistry;
+		String prefix = "jpa." + persistenceManagerName + ".";
+		this.prefixes = actionName == null ? new String[] { prefix } : new String[] { prefix, prefix + actionName + "." };
+		this.started = System.nanoTime();
+	}
+
+	/**
+	 * Records the time taken for the action to first use its entity manager, and starts counting the work done by it.
+	 * 
+	 * @param counts the running totals of the entity manager, or null if they are not collected
+	 */
+	public void firstEntityManager(Counts counts) {
+		record(FirstEntityManager, micros(System.nanoTime() - started));
+		if (counts != null) {
+			this.counts = counts;
+			this.statements = counts.getStatements();
+			this.entitiesLoaded = counts.getEntitiesLoaded();
+			this.entitiesFlushed = counts.getEntitiesFlushed();
+		}
+	}
+
+	/**
+	 * @return the start time of a commit or rollback, to be passed to {@link #committed(long)} or
+	 *         {@link #rolledBack(long)}
+	 */
+	public long start() {
+		return System.nanoTime();
+	}
+
+	public void committed(long start) {
+		record(Commit, micros(System.nanoTime() - start));
+	}
+
+	public void rolledBack(long start) {
+		record(Rollback, micros(System.nanoTime() - start));
+	}
+
+	/**
+	 * Stops counting the work done by the entity manager, before it is closed and possibly reused by another session.
+	 */
+	public void stopCounting() {
+		if (counts != null) {
+			// the totals at the start become the work done since
+			statements = counts.getStatements() - statements;
+			entitiesLoaded = counts.getEntitiesLoaded() - entitiesLoaded;
+			entitiesFlushed = counts.getEntitiesFlushed() - entitiesFlushed;
+			counts = null;
+		}
+	}
+
+	/**
+	 * Records the length of the session and the work done within it, none if it never used its entity manager.
+	 */
+	public void end() {
+		stopCounting();
+		record(Session, micros(System.nanoTime() - started));
+		record(Statements, statements);
+		record(EntitiesLoaded, entitiesLoaded);
+		record(EntitiesFlushed, entitiesFlushed);
+	}
+
+	private void record(String metric, long value) {
+		for (String prefix : prefixes) {
+			metricsRegistry.histogram(prefix + metric).record(value);
+		}
+	}
+
+	private static long micros(long nanos) {
+		return TimeUnit.NANOSECONDS.toMicros(nanos);
+	}
+}
@@ -0,0 +1,72 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.jpa.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Collects metrics in memory in {@link LogHistogram}s.
+ */
+public class SimpleMetricsRegistry implements MetricsRegistry {
+	private ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+
+	@Override
+	public boolean isEnabled() {
+		return true;
+	}
+
+	@Override
+	public Histogram histogram(String name) {
+		Histogram histogram = histograms.get(name);
+		if (histogram == null) {
+			Histogram existing = histograms.putIfAbsent(name, histogram = new LogHistogram());
+			histogram = existing == null ? histogram : existing;
+		}
+		return histogram;
+	}
+
+	/**
+	 * @return all histograms by name, in name order
+	 */
+	public Map<String, Histogram> getHistograms() {
+		return Collections.unmodifiableMap(new TreeMap<String, Histogram>(histograms));
+	}
+
+	/**
+	 * Discards the values recorded by all histograms, keeping the histograms themselves so that those already handed
+	 * out keep recording into this registry.
+	 */
+	public void reset() {
+		for (Histogram histogram : histograms.values()) {
+			if (histogram instanceof LogHistogram) {
+				((LogHistogram) histogram).reset();
+			}
+		}
+	}
+
+	/**
+	 * Removes all histograms. Histograms already handed out keep recording, but are no longer part of this registry.
+	 */
+	public void clear() {
+		histograms.clear();
+	}
+}
@@ -0,0 +1,82 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.jpa.metrics;
+
+/**
+ * A statement which took longer than the slow query threshold. Bound parameters are described by their types only, so
+ * that no data is written to the log.
+ */
+public class SlowQuery {
+	private long timestamp;
+	private String persistenceManagerName;
+	private String statement;
+	private String parameters;
+	private long durationMicros;
+	private int rows;
+
+	public SlowQuery(long timestamp, String persistenceManagerName, String statement, String parameters, long durationMicros, int rows) {
+		this.timestamp = timestamp;
+		this.persistenceManagerName = persistenceManagerName;
+		this.statement = statement;
+		this.parameters = parameters;
+		this.durationMicros = durationMicros;
+		this.rows = rows;
+	}
+
+	/**
+	 * @return the time the statement completed, in milliseconds since the epoch
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public String getPersistenceManagerName() {
+		return persistenceManagerName;
+	}
+
+	/**
+	 * @return the JPQL of the statement, the name of a named query, or the class of a {@link com.threewks.thundr.jpa.JpaAction}
+	 */
+	public String getStatement() {
+		return statement;
+	}
+
+	/**
+	 * @return the types of the bound parameters, or null if there were none
+	 */
+	public String getParameters() {
+		return parameters;
+	}
+
+	public long getDurationMicros() {
+		return durationMicros;
+	}
+
+	/**
+	 * @return the number of rows returned, or -1 if unknown
+	 */
+	public int getRows() {
+		return rows;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("Slow query on %s took %.1fms returning %s rows: %s%s", persistenceManagerName, durationMicros / 1000.0, rows < 0 ? "unknown" : rows, statement,
+				parameters == null ? "" : " with parameters " + parameters);
+	}
+}
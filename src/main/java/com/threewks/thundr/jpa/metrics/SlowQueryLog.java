@@ -0,0 +1,109 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.jpa.metrics;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records statements of a persistence manager which take longer than a threshold, passing them to a
+ * {@link SlowQueryWriter} to be written off the request path.
+ */
+public class SlowQueryLog {
+	private String persistenceManagerName;
+	private long thresholdNanos;
+	private SlowQueryWriter writer;
+
+	public SlowQueryLog(String persistenceManagerName, long threshold, TimeUnit unit, SlowQueryWriter writer) {
+		this.persistenceManagerName = persistenceManagerName;
+		this.thresholdNanos = unit.toNanos(threshold);
+		this.writer = writer;
+	}
+
+	public String getPersistenceManagerName() {
+		return persistenceManagerName;
+	}
+
+	public long getThreshold(TimeUnit unit) {
+		return unit.convert(thresholdNanos, TimeUnit.NANOSECONDS);
+	}
+
+	public SlowQueryWriter getWriter() {
+		return writer;
+	}
+
+	/**
+	 * Records a statement if it took longer than the threshold.
+	 * 
+	 * @param parameters the bound parameters, either an array, a map or a single value, or null if there were none
+	 * @param rows the number of rows returned, or -1 if unknown
+	 * @return true if the statement was slow
+	 */
+	public boolean record(String statement, Object parameters, long durationNanos, int rows) {
+		if (durationNanos < thresholdNanos) {
+			return false;
+		}
+		writer.offer(new SlowQuery(System.currentTimeMillis(), persistenceManagerName, statement, shape(parameters), TimeUnit.NANOSECONDS.toMicros(durationNanos), rows));
+		return true;
+	}
+
+	/**
+	 * Describes bound parameters by their types, for example <code>[String, Long]</code> or
+	 * <code>{name=String, ids=ArrayList(3)}</code>.
+	 */
+	static String shape(Object parameters) {
+		if (parameters == null) {
+			return null;
+		}
+		StringBuilder shape = new StringBuilder();
+		if (parameters instanceof Object[]) {
+			Object[] values = (Object[]) parameters;
+			if (values.length == 0) {
+				return null;
+			}
+			shape.append("[");
+			for (int i = 0; i < values.length; i++) {
+				shape.append(i == 0 ? "" : ", ").append(typeOf(values[i]));
+			}
+			return shape.append("]").toString();
+		}
+		if (parameters instanceof Map) {
+			Map<?, ?> params = (Map<?, ?>) parameters;
+			if (params.isEmpty()) {
+				return null;
+			}
+			shape.append("{");
+			for (Iterator<? extends Map.Entry<?, ?>> iterator = params.entrySet().iterator(); iterator.hasNext();) {
+				Map.Entry<?, ?> entry = iterator.next();
+				shape.append(entry.getKey()).append("=").append(typeOf(entry.getValue())).append(iterator.hasNext() ? ", " : "");
+			}
+			return shape.append("}").toString();
+		}
+		return "[" + typeOf(parameters) + "]";
+	}
+
+	private static String typeOf(Object value) {
+		if (value == null) {
+			return "null";
+		}
+		String type = value.getClass().getSimpleName();
+		return value instanceof Collection ? type + "(" + ((Collection<?>) value).size() + ")" : type;
+	}
+}
@@ -0,0 +1,175 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.jpa.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import com.threewks.thundr.logger.Logger;
+
+/**
+ * Writes slow queries from a background thread, so that recording them never blocks the request path. Slow queries
+ * are placed in a lock free ring buffer which the writer drains periodically. If queries are recorded faster than they
+ * are written, the oldest are overwritten and counted as dropped rather than making callers wait.
+ */
+public class SlowQueryWriter {
+	public static final int DefaultCapacity = 1024;
+	public static final long DefaultIntervalMillis = 100;
+
+	private final AtomicReferenceArray<Slot> ring;
+	private final int mask;
+	private final AtomicLong head = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final long intervalNanos;
+	private final Object drainLock = new Object();
+	private long tail;
+	private volatile boolean running;
+	private Thread thread;
+
+	public SlowQueryWriter() {
+		this(DefaultCapacity, DefaultIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @param capacity the number of slow queries held awaiting the writer, rounded up to a power of two
+	 * @param interval how often the writer wakes to write slow queries
+	 */
+	public SlowQueryWriter(int capacity, long interval, TimeUnit unit) {
+		int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+		this.ring = new AtomicReferenceArray<Slot>(size);
+		this.mask = size - 1;
+		this.intervalNanos = unit.toNanos(interval);
+	}
+
+	public synchronized void start() {
+		if (running) {
+			return;
+		}
+		running = true;
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (running) {
+					drain();
+					LockSupport.parkNanos(intervalNanos);
+				}
+			}
+		}, "thundr-jpa-slow-query-writer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops the writer, first writing any slow queries still held.
+	 */
+	public synchronized void stop() {
+		if (!running) {
+			return;
+		}
+		running = false;
+		LockSupport.unpark(thread);
+		try {
+			thread.join(TimeUnit.NANOSECONDS.toMillis(intervalNanos) * 10);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		thread = null;
+		drain();
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	public int getCapacity() {
+		return ring.length();
+	}
+
+	/**
+	 * @return the number of slow queries overwritten before they could be written
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Adds a slow query to be written, without blocking.
+	 */
+	public void offer(SlowQuery slowQuery) {
+		long sequence = head.getAndIncrement();
+		ring.lazySet((int) sequence & mask, new Slot(sequence, slowQuery));
+	}
+
+	/**
+	 * Writes all slow queries published so far.
+	 * 
+	 * @return the number of slow queries written
+	 */
+	int drain() {
+		synchronized (drainLock) {
+			return drainPublished();
+		}
+	}
+
+	private int drainPublished() {
+		int written = 0;
+		long published = head.get();
+		if (published - tail > ring.length()) {
+			dropped.addAndGet(published - ring.length() - tail);
+			tail = published - ring.length();
+		}
+		while (tail < published) {
+			Slot slot = ring.get((int) tail & mask);
+			if (slot == null || slot.sequence < tail) {
+				// claimed but not yet published, try again next time
+				break;
+			}
+			if (slot.sequence > tail) {
+				dropped.incrementAndGet();
+			} else {
+				try {
+					write(slot.slowQuery);
+					written++;
+				} catch (RuntimeException e) {
+					// a failing write must not stop the writer
+				}
+			}
+			tail++;
+		}
+		return written;
+	}
+
+	/**
+	 * Writes a single slow query, by default as a warning to the log. Override this to write slow queries elsewhere.
+	 */
+	protected void write(SlowQuery slowQuery) {
+		Logger.warn("%s", slowQuery);
+	}
+
+	private static class Slot {
+		private final long sequence;
+		private final SlowQuery slowQuery;
+
+		private Slot(long sequence, SlowQuery slowQuery) {
+			this.sequence = sequence;
+			this.slowQuery = slowQuery;
+		}
+	}
+}
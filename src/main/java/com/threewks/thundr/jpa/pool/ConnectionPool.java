@@ -0,0 +1,453 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.jpa.pool;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.threewks.thundr.jpa.metrics.Histogram;
+import com.threewks.thundr.jpa.metrics.LogHistogram;
+import com.threewks.thundr.logger.Logger;
+
+/**
+ * A pool of JDBC connections. Idle connections are held in a lock free queue and a connection is borrowed without
+ * locking unless the pool is exhausted, in which case callers wait up to the timeout for a connection to be returned.
+ * Closing a borrowed connection returns it to the pool, rolling back any work left uncommitted and restoring the auto
+ * commit, read only and transaction isolation settings the connection was opened with, so the next borrower does not
+ * inherit the state left by the last. Connections which cannot be reset are discarded.
+ * <p>
+ * A background thread keeps at least the minimum number of connections open and, when a leak threshold is set,
+ * reports connections borrowed for longer than the threshold along with the stack trace of the code which borrowed
+ * them. The time callers wait for a connection is recorded in the wait histogram, in microseconds.
+ */
+public class ConnectionPool {
+	public static final int DefaultMaxSize = 10;
+	public static final long DefaultTimeoutMillis = 30000;
+	private static final long ValidationIntervalNanos = TimeUnit.SECONDS.toNanos(30);
+	private static final long HousekeepingIntervalNanos = TimeUnit.SECONDS.toNanos(1);
+
+	private final String name;
+	private final int minSize;
+	private final int maxSize;
+	private final Semaphore permits;
+	private final ConcurrentLinkedQueue<PooledConnection> idle = new ConcurrentLinkedQueue<PooledConnection>();
+	private final ConcurrentMap<Lease, Boolean> borrowed = new ConcurrentHashMap<Lease, Boolean>();
+	private final AtomicInteger size = new AtomicInteger();
+	private final AtomicLong leaks = new AtomicLong();
+	private long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(DefaultTimeoutMillis);
+	private long leakThresholdNanos;
+	private Histogram waitHistogram = new LogHistogram();
+	private ConnectionFactory connectionFactory;
+	private volatile boolean closed;
+	private Thread housekeeper;
+
+	public ConnectionPool(String name, int minSize, int maxSize) {
+		if (maxSize < 1 || minSize < 0 || minSize > maxSize) {
+			throw new IllegalArgumentException(String.format("Invalid sizes for connection pool %s, expected 0 <= min (%d) <= max (%d) and max >= 1", name, minSize, maxSize));
+		}
+		this.name = name;
+		this.minSize = minSize;
+		this.maxSize = maxSize;
+		this.permits = new Semaphore(maxSize);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getMinSize() {
+		return minSize;
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public long getTimeout(TimeUnit unit) {
+		return unit.convert(timeoutNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Sets how long callers wait for a connection when the pool is exhausted before failing.
+	 */
+	public void setTimeout(long timeout, TimeUnit unit) {
+		this.timeoutNanos = unit.toNanos(timeout);
+	}
+
+	public long getLeakThreshold(TimeUnit unit) {
+		return unit.convert(leakThresholdNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Sets how long a connection may be borrowed before it is reported as a possible leak, or 0 to not detect leaks.
+	 * When set, the stack of each caller borrowing a connection is captured so that leaks can be traced.
+	 */
+	public void setLeakThreshold(long leakThreshold, TimeUnit unit) {
+		this.leakThresholdNanos = unit.toNanos(leakThreshold);
+	}
+
+	public Histogram getWaitHistogram() {
+		return waitHistogram;
+	}
+
+	/**
+	 * Sets the histogram the time spent waiting for a connection is recorded in, in microseconds.
+	 */
+	public void setWaitHistogram(Histogram waitHistogram) {
+		this.waitHistogram = waitHistogram;
+	}
+
+	/**
+	 * @return the number of open connections, whether idle or borrowed
+	 */
+	public int getSize() {
+		return size.get();
+	}
+
+	public int getIdle() {
+		return idle.size();
+	}
+
+	public int getActive() {
+		return borrowed.size();
+	}
+
+	/**
+	 * @return the number of connections reported as possible leaks
+	 */
+	public long getLeaks() {
+		return leaks.get();
+	}
+
+	public boolean isStarted() {
+		return connectionFactory != null;
+	}
+
+	/**
+	 * Starts the pool, opening connections with the given factory.
+	 */
+	public synchronized void start(ConnectionFactory connectionFactory) {
+		if (isStarted()) {
+			throw new IllegalStateException(String.format("Connection pool %s is already started", name));
+		}
+		this.connectionFactory = connectionFactory;
+		this.housekeeper = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (!closed) {
+					housekeep();
+					LockSupport.parkNanos(HousekeepingIntervalNanos);
+				}
+			}
+		}, "thundr-jpa-pool-" + name);
+		this.housekeeper.setDaemon(true);
+		this.housekeeper.start();
+	}
+
+	/**
+	 * Borrows a connection, which is returned to the pool when closed.
+	 * 
+	 * @throws SQLException if no connection becomes available within the timeout, or a connection cannot be opened
+	 */
+	public Connection getConnection() throws SQLException {
+		if (closed || !isStarted()) {
+			throw new SQLException(String.format("Connection pool %s is %s", name, closed ? "closed" : "not started"));
+		}
+		long start = System.nanoTime();
+		try {
+			if (!permits.tryAcquire(timeoutNanos, TimeUnit.NANOSECONDS)) {
+				throw new SQLException(String.format("Timed out after %dms waiting for a connection from pool %s, all %d connections are in use", getTimeout(TimeUnit.MILLISECONDS),
+						name, maxSize));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException(String.format("Interrupted waiting for a connection from pool %s", name), e);
+		}
+
+		boolean leased = false;
+		try {
+			PooledConnection pooledConnection = idle.poll();
+			while (pooledConnection != null && !valid(pooledConnection)) {
+				discard(pooledConnection);
+				pooledConnection = idle.poll();
+			}
+			if (pooledConnection == null) {
+				pooledConnection = open();
+			}
+			Connection connection = lease(pooledConnection);
+			waitHistogram.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+			leased = true;
+			return connection;
+		} finally {
+			if (!leased) {
+				permits.release();
+			}
+		}
+	}
+
+	/**
+	 * Closes the pool and all idle connections. Borrowed connections are closed as they are returned.
+	 */
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (housekeeper != null) {
+			LockSupport.unpark(housekeeper);
+			housekeeper = null;
+		}
+		PooledConnection pooledConnection;
+		while ((pooledConnection = idle.poll()) != null) {
+			discard(pooledConnection);
+		}
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s (size=%d, active=%d, idle=%d, max=%d, wait %s)", name, getSize(), getActive(), getIdle(), maxSize, waitHistogram);
+	}
+
+	/**
+	 * Opens connections until the pool holds at least its minimum size, which the pool otherwise does in the background.
+	 * 
+	 * @return the number of connections opened
+	 */
+	public int fill() {
+		int opened = 0;
+		while (!closed && isStarted() && size.get() < minSize && permits.tryAcquire()) {
+			try {
+				idle.offer(open());
+				opened++;
+			} catch (SQLException e) {
+				Logger.warn("Failed to open connection for pool %s: %s", name, e.getMessage());
+				break;
+			} finally {
+				permits.release();
+			}
+		}
+		return opened;
+	}
+
+	void housekeep() {
+		fill();
+
+		if (leakThresholdNanos > 0) {
+			long now = System.nanoTime();
+			for (Lease lease : borrowed.keySet()) {
+				if (!lease.reported && now - lease.borrowed > leakThresholdNanos) {
+					lease.reported = true;
+					leaks.incrementAndGet();
+					Logger.warn("Possible connection leak, a connection from pool %s has been held for %dms, borrowed at: %s", name,
+							TimeUnit.NANOSECONDS.toMillis(now - lease.borrowed), stackTrace(lease.borrower));
+				}
+			}
+		}
+	}
+
+	private PooledConnection open() throws SQLException {
+		size.incrementAndGet();
+		Connection connection = null;
+		try {
+			connection = connectionFactory.open();
+			return new PooledConnection(connection);
+		} catch (SQLException e) {
+			if (connection != null) {
+				connection.close();
+			}
+			size.decrementAndGet();
+			throw e;
+		} catch (RuntimeException e) {
+			size.decrementAndGet();
+			throw e;
+		}
+	}
+
+	private boolean valid(PooledConnection pooledConnection) {
+		try {
+			if (pooledConnection.connection.isClosed()) {
+				return false;
+			}
+			if (System.nanoTime() - pooledConnection.lastUsed < ValidationIntervalNanos) {
+				return true;
+			}
+			return pooledConnection.connection.isValid(5);
+		} catch (SQLException e) {
+			return false;
+		} catch (AbstractMethodError e) {
+			// a driver predating JDBC 4 cannot validate connections
+			return true;
+		}
+	}
+
+	private void discard(PooledConnection pooledConnection) {
+		size.decrementAndGet();
+		try {
+			pooledConnection.connection.close();
+		} catch (SQLException e) {
+			Logger.debug("Failed to close connection from pool %s: %s", name, e.getMessage());
+		}
+	}
+
+	private Connection lease(PooledConnection pooledConnection) {
+		Lease lease = new Lease(pooledConnection, leakThresholdNanos > 0 ? new Throwable() : null);
+		borrowed.put(lease, Boolean.TRUE);
+		return (Connection) Proxy.newProxyInstance(ConnectionPool.class.getClassLoader(), new Class<?>[] { Connection.class }, lease);
+	}
+
+	private void release(Lease lease) {
+		borrowed.remove(lease);
+		PooledConnection pooledConnection = lease.pooledConnection;
+		pooledConnection.lastUsed = System.nanoTime();
+		try {
+			if (closed || size.get() > maxSize || pooledConnection.connection.isClosed() || !reset(pooledConnection)) {
+				discard(pooledConnection);
+			} else {
+				idle.offer(pooledConnection);
+			}
+		} catch (SQLException e) {
+			discard(pooledConnection);
+		} finally {
+			permits.release();
+		}
+	}
+
+	/**
+	 * Rolls back uncommitted work and restores the settings the connection was opened with.
+	 * 
+	 * @return true if the connection was reset, false if it should be discarded
+	 */
+	private boolean reset(PooledConnection pooledConnection) {
+		Connection connection = pooledConnection.connection;
+		try {
+			if (!connection.getAutoCommit()) {
+				connection.rollback();
+			}
+			if (connection.getAutoCommit() != pooledConnection.autoCommit) {
+				connection.setAutoCommit(pooledConnection.autoCommit);
+			}
+			if (connection.isReadOnly() != pooledConnection.readOnly) {
+				connection.setReadOnly(pooledConnection.readOnly);
+			}
+			if (connection.getTransactionIsolation() != pooledConnection.transactionIsolation) {
+				connection.setTransactionIsolation(pooledConnection.transactionIsolation);
+			}
+			return true;
+		} catch (SQLException e) {
+			Logger.warn("Discarding connection from pool %s which could not be reset: %s", name, e.getMessage());
+			return false;
+		}
+	}
+
+	private static String stackTrace(Throwable borrower) {
+		if (borrower == null) {
+			return "unknown";
+		}
+		StringBuilder stackTrace = new StringBuilder();
+		for (StackTraceElement element : borrower.getStackTrace()) {
+			stackTrace.append("\n\tat ").append(element);
+		}
+		return stackTrace.toString();
+	}
+
+	/**
+	 * Opens new connections for a pool.
+	 */
+	public interface ConnectionFactory {
+		Connection open() throws SQLException;
+	}
+
+	private static class PooledConnection {
+		private final Connection connection;
+		private final boolean autoCommit;
+		private final boolean readOnly;
+		private final int transactionIsolation;
+		private volatile long lastUsed = System.nanoTime();
+
+		private PooledConnection(Connection connection) throws SQLException {
+			this.connection = connection;
+			this.autoCommit = connection.getAutoCommit();
+			this.readOnly = connection.isReadOnly();
+			this.transactionIsolation = connection.getTransactionIsolation();
+		}
+	}
+
+	/**
+	 * A single borrowing of a connection, handling the calls made on the connection handed out.
+	 */
+	private class Lease implements InvocationHandler {
+		private final PooledConnection pooledConnection;
+		private final Throwable borrower;
+		private final long borrowed = System.nanoTime();
+		private volatile boolean reported;
+		private volatile boolean returned;
+
+		private Lease(PooledConnection pooledConnection, Throwable borrower) {
+			this.pooledConnection = pooledConnection;
+			this.borrower = borrower;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String methodName = method.getName();
+			if ("close".equals(methodName) && method.getParameterTypes().length == 0) {
+				if (!returned) {
+					returned = true;
+					release(this);
+				}
+				return null;
+			}
+			if ("isClosed".equals(methodName) && method.getParameterTypes().length == 0) {
+				return returned || pooledConnection.connection.isClosed();
+			}
+			if ("equals".equals(methodName) && method.getParameterTypes().length == 1) {
+				return proxy == args[0];
+			}
+			if ("hashCode".equals(methodName) && method.getParameterTypes().length == 0) {
+				return System.identityHashCode(proxy);
+			}
+			if ("toString".equals(methodName) && method.getParameterTypes().length == 0) {
+				return "Pooled connection from " + name + (returned ? " (returned)" : "");
+			}
+			if (returned) {
+				throw new SQLException("Connection has been returned to pool " + name);
+			}
+			try {
+				return method.invoke(pooledConnection.connection, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		}
+	}
+}
@@ -0,0 +1,171 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.jpa.pool;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.lang3.StringUtils;
+import org.hibernate.service.UnknownUnwrapTypeException;
+import org.hibernate.service.jdbc.connections.spi.ConnectionProvider;
+import org.hibernate.service.spi.Configurable;
+import org.hibernate.service.spi.Stoppable;
+
+import com.threewks.thundr.jpa.exception.JpaException;
+import com.threewks.thundr.logger.Logger;
+
+/**
+ * A Hibernate connection provider backed by a {@link ConnectionPool}, installed by setting
+ * <code>hibernate.connection.provider_class</code> to the name of this class. Connections are opened using the
+ * standard <code>hibernate.connection.*</code> or <code>javax.persistence.jdbc.*</code> settings of the persistence
+ * unit.
+ * <p>
+ * As Hibernate creates the provider itself, a pool configured elsewhere is handed over by registering it with
+ * {@link #register(String, ConnectionPool)} and setting <code>thundr.jpa.connectionPool</code> to the same key,
+ * which {@link com.threewks.thundr.jpa.JpaModule} does. Otherwise a pool of {@link ConnectionPool#DefaultMaxSize} is
+ * created.
+ */
+public class PooledConnectionProvider implements ConnectionProvider, Configurable, Stoppable {
+	private static final long serialVersionUID = 1l;
+
+	public static final String ConnectionPoolProperty = "thundr.jpa.connectionPool";
+
+	private static final ConcurrentMap<String, ConnectionPool> registered = new ConcurrentHashMap<String, ConnectionPool>();
+
+	private transient ConnectionPool connectionPool;
+
+	/**
+	 * Registers a pool to be taken by the provider configured with the given key.
+	 */
+	public static void register(String key, ConnectionPool connectionPool) {
+		registered.put(key, connectionPool);
+	}
+
+	/**
+	 * Removes a pool registered with {@link #register(String, ConnectionPool)} which has not been taken by a provider,
+	 * for example because the EntityManagerFactory it was registered for failed to be created.
+	 */
+	public static void unregister(String key) {
+		registered.remove(key);
+	}
+
+	@Override
+	@SuppressWarnings("rawtypes")
+	public void configure(Map configurationValues) {
+		final String url = setting(configurationValues, "hibernate.connection.url", "javax.persistence.jdbc.url");
+		if (url == null) {
+			throw new JpaException("Failed to configure connection pool, no JDBC url was set by hibernate.connection.url or javax.persistence.jdbc.url");
+		}
+		String driver = setting(configurationValues, "hibernate.connection.driver_class", "javax.persistence.jdbc.driver");
+		if (driver != null) {
+			try {
+				Class.forName(driver);
+			} catch (ClassNotFoundException e) {
+				throw new JpaException(e, "Failed to configure connection pool, JDBC driver %s not found", driver);
+			}
+		}
+		final Properties properties = new Properties();
+		String user = setting(configurationValues, "hibernate.connection.username", "javax.persistence.jdbc.user");
+		String password = setting(configurationValues, "hibernate.connection.password", "javax.persistence.jdbc.password");
+		if (user != null) {
+			properties.setProperty("user", user);
+		}
+		if (password != null) {
+			properties.setProperty("password", password);
+		}
+		final boolean autoCommit = Boolean.parseBoolean(setting(configurationValues, "hibernate.connection.autocommit", null));
+		String isolationSetting = setting(configurationValues, "hibernate.connection.isolation", null);
+		final Integer isolation = isolationSetting == null ? null : Integer.valueOf(isolationSetting);
+
+		String key = setting(configurationValues, ConnectionPoolProperty, null);
+		connectionPool = key == null ? null : registered.remove(key);
+		if (connectionPool == null) {
+			connectionPool = new ConnectionPool(url, 0, ConnectionPool.DefaultMaxSize);
+		}
+		connectionPool.start(new ConnectionPool.ConnectionFactory() {
+			@Override
+			public Connection open() throws SQLException {
+				Connection connection = DriverManager.getConnection(url, properties);
+				connection.setAutoCommit(autoCommit);
+				if (isolation != null) {
+					connection.setTransactionIsolation(isolation);
+				}
+				return connection;
+			}
+		});
+		Logger.info("Started connection pool %s with up to %d connections", connectionPool.getName(), connectionPool.getMaxSize());
+	}
+
+	public ConnectionPool getConnectionPool() {
+		return connectionPool;
+	}
+
+	@Override
+	public Connection getConnection() throws SQLException {
+		return connectionPool.getConnection();
+	}
+
+	@Override
+	public void closeConnection(Connection connection) throws SQLException {
+		connection.close();
+	}
+
+	@Override
+	public boolean supportsAggressiveRelease() {
+		return false;
+	}
+
+	@Override
+	public void stop() {
+		if (connectionPool != null) {
+			connectionPool.close();
+			Logger.info("Closed connection pool %s", connectionPool.getName());
+		}
+	}
+
+	@Override
+	@SuppressWarnings("rawtypes")
+	public boolean isUnwrappableAs(Class unwrapType) {
+		return unwrapType.isAssignableFrom(getClass()) || unwrapType.isAssignableFrom(ConnectionPool.class);
+	}
+
+	@Override
+	public <T> T unwrap(Class<T> unwrapType) {
+		if (unwrapType.isAssignableFrom(getClass())) {
+			return unwrapType.cast(this);
+		}
+		if (unwrapType.isAssignableFrom(ConnectionPool.class)) {
+			return unwrapType.cast(connectionPool);
+		}
+		throw new UnknownUnwrapTypeException(unwrapType);
+	}
+
+	@SuppressWarnings("rawtypes")
+	private static String setting(Map configurationValues, String name, String alternateName) {
+		Object value = configurationValues.get(name);
+		if (value == null && alternateName != null) {
+			value = configurationValues.get(alternateName);
+		}
+		return value == null ? null : StringUtils.trimToNull(value.toString());
+	}
+}
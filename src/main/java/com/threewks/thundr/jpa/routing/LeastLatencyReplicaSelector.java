@@ -0,0 +1,46 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.jpa.routing;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Routes sessions to the replica with the lowest average session duration. Replicas which have not yet served a session
+ * are preferred, so that every replica gets measured.
+ * <p>
+ * The duration of a session runs from routing until its entity manager is closed, so it includes the time its action
+ * spends outside the database. It reflects the latency of the replica only when sessions are dominated by database
+ * work, and sessions which happen to do more work skew the average of the replica which served them.
+ */
+public class LeastLatencyReplicaSelector implements ReplicaSelector {
+
+	@Override
+	public Replica select(List<Replica> replicas) {
+		Replica selected = null;
+		long lowest = Long.MAX_VALUE;
+		for (Replica replica : replicas) {
+			long latency = replica.getSessions() == 0 ? -1 : replica.getAverageLatency(TimeUnit.NANOSECONDS);
+			if (latency < lowest) {
+				selected = replica;
+				lowest = latency;
+			}
+		}
+		return selected;
+	}
+}
@@ -0,0 +1,99 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.jpa.routing;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.threewks.thundr.jpa.PersistenceManager;
+
+/**
+ * A replica persistence unit fronted by a {@link RoutingPersistenceManager}, along with its health and the duration of
+ * the sessions routed to it. Session durations include time the action spent outside the database, so are only an
+ * approximation of the latency of the replica.
+ */
+public class Replica {
+	/**
+	 * Weight given to the latest session when updating the moving average latency.
+	 */
+	private static final double LatencyWeight = 0.2;
+
+	private String name;
+	private PersistenceManager persistenceManager;
+	private volatile long ejectedUntil;
+	private AtomicLong averageLatencyNanos = new AtomicLong();
+	private AtomicLong sessions = new AtomicLong();
+	private AtomicLong failures = new AtomicLong();
+
+	public Replica(String name, PersistenceManager persistenceManager) {
+		this.name = name;
+		this.persistenceManager = persistenceManager;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public PersistenceManager getPersistenceManager() {
+		return persistenceManager;
+	}
+
+	/**
+	 * @return false if the replica has been ejected after a failure and the ejection period has not yet passed
+	 */
+	public boolean isHealthy() {
+		return System.currentTimeMillis() >= ejectedUntil;
+	}
+
+	/**
+	 * @return the exponentially weighted moving average duration of sessions routed to this replica, from routing until
+	 *         the entity manager was closed
+	 */
+	public long getAverageLatency(TimeUnit unit) {
+		return unit.convert(averageLatencyNanos.get(), TimeUnit.NANOSECONDS);
+	}
+
+	public long getSessions() {
+		return sessions.get();
+	}
+
+	public long getFailures() {
+		return failures.get();
+	}
+
+	void succeeded(long latencyNanos) {
+		sessions.incrementAndGet();
+		long current;
+		long updated;
+		do {
+			current = averageLatencyNanos.get();
+			updated = current == 0 ? latencyNanos : (long) (current + LatencyWeight * (latencyNanos - current));
+		} while (!averageLatencyNanos.compareAndSet(current, updated));
+	}
+
+	void failed(long ejectionMillis) {
+		failures.incrementAndGet();
+		ejectedUntil = System.currentTimeMillis() + ejectionMillis;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s (%s, sessions=%d, failures=%d, averageLatency=%dms)", name, isHealthy() ? "healthy" : "ejected", getSessions(), getFailures(),
+				getAverageLatency(TimeUnit.MILLISECONDS));
+	}
+}
@@ -0,0 +1,235 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.jpa.routing;
+
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientConnectionException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+
+import org.hibernate.exception.JDBCConnectionException;
+
+import com.threewks.thundr.jpa.DelegatingPersistenceManager;
+import com.threewks.thundr.jpa.PersistenceManager;
+import com.threewks.thundr.jpa.context.SessionContext;
+import com.threewks.thundr.jpa.context.SessionValue;
+import com.threewks.thundr.jpa.context.ThreadLocalSessionContext;
+import com.threewks.thundr.logger.Logger;
+
+/**
+ * Fronts a primary persistence unit and any number of read replicas. Sessions are routed to the primary unless
+ * {@link #route(boolean)} is called with <code>readOnly</code> set, in which case a healthy replica is chosen by the
+ * configured {@link ReplicaSelector}. The {@link com.threewks.thundr.jpa.intercept.JpaSessionActionInterceptor} routes
+ * read only and non-transactional sessions to replicas.
+ * <p>
+ * A replica which fails to provide an entity manager, begin, commit or roll back a transaction is ejected for a period,
+ * during which sessions are routed to the remaining replicas, or to the primary if none remain. Statements are run on
+ * the entity manager directly rather than through this class, so failures of the session as a whole are reported
+ * through {@link #sessionFailed(Throwable)}, which the interceptor does for every failed session; these only eject the
+ * replica if they were caused by its database connection.
+ * <p>
+ * Each replica also records the duration of the sessions it served, from routing until the entity manager is closed.
+ * This includes time the action spends outside the database, see {@link LeastLatencyReplicaSelector}.
+ */
+public class RoutingPersistenceManager extends DelegatingPersistenceManager {
+	public static final long DefaultEjectionMillis = 30000;
+
+	private PersistenceManager primary;
+	private List<Replica> replicas;
+	private ReplicaSelector replicaSelector;
+	private long ejectionMillis = DefaultEjectionMillis;
+	private SessionValue<Route> threadLocalRoute;
+
+	public RoutingPersistenceManager(PersistenceManager primary, List<Replica> replicas, ReplicaSelector replicaSelector) {
+		this(primary, replicas, replicaSelector, new ThreadLocalSessionContext());
+	}
+
+	public RoutingPersistenceManager(PersistenceManager primary, List<Replica> replicas, ReplicaSelector replicaSelector, SessionContext sessionContext) {
+		this.threadLocalRoute = sessionContext.createValue();
+		this.primary = primary;
+		this.replicas = new ArrayList<Replica>(replicas);
+		this.replicaSelector = replicaSelector;
+	}
+
+	/**
+	 * Routes the current session, until its entity manager is closed.
+	 * 
+	 * @param readOnly true to route to a replica, false to route to the primary
+	 */
+	public void route(boolean readOnly) {
+		Replica replica = readOnly ? selectReplica() : null;
+		threadLocalRoute.set(new Route(replica));
+	}
+
+	/**
+	 * @return the replica the current session is routed to, or null if it is routed to the primary
+	 */
+	public Replica getRoutedReplica() {
+		Route route = threadLocalRoute.get();
+		return route == null ? null : route.replica;
+	}
+
+	public PersistenceManager getPrimary() {
+		return primary;
+	}
+
+	public List<Replica> getReplicas() {
+		return Collections.unmodifiableList(replicas);
+	}
+
+	public long getEjectionMillis() {
+		return ejectionMillis;
+	}
+
+	/**
+	 * @param ejectionMillis how long a failed replica is taken out of service for
+	 */
+	public void setEjectionMillis(long ejectionMillis) {
+		this.ejectionMillis = ejectionMillis;
+	}
+
+	@Override
+	protected PersistenceManager delegate() {
+		Replica replica = getRoutedReplica();
+		return replica == null ? primary : replica.getPersistenceManager();
+	}
+
+	@Override
+	public EntityManager getEntityManager() {
+		try {
+			return super.getEntityManager();
+		} catch (RuntimeException e) {
+			throw failed(e);
+		}
+	}
+
+	@Override
+	public void beginTransaction() {
+		try {
+			super.beginTransaction();
+		} catch (RuntimeException e) {
+			throw failed(e);
+		}
+	}
+
+	@Override
+	public void commit() {
+		try {
+			super.commit();
+		} catch (RuntimeException e) {
+			throw failed(e);
+		}
+	}
+
+	@Override
+	public void rollback() {
+		try {
+			super.rollback();
+		} catch (RuntimeException e) {
+			throw failed(e);
+		}
+	}
+
+	/**
+	 * Reports that the current session failed, for example because a query run on its entity manager threw. The replica
+	 * the session is routed to is ejected if the failure was caused by its database connection, failures of the action
+	 * itself such as a missing entity or a constraint violation are ignored.
+	 */
+	public void sessionFailed(Throwable e) {
+		if (isConnectionFailure(e)) {
+			failed(e);
+		}
+	}
+
+	@Override
+	public void closeEntityManager(boolean recycle) {
+		Route route = threadLocalRoute.get();
+		try {
+			super.closeEntityManager(recycle);
+		} finally {
+			threadLocalRoute.remove();
+			if (route != null && route.replica != null && !route.failed) {
+				route.replica.succeeded(System.nanoTime() - route.start);
+			}
+		}
+	}
+
+	@Override
+	public void destroy() {
+		primary.destroy();
+		for (Replica replica : replicas) {
+			replica.getPersistenceManager().destroy();
+		}
+	}
+
+	private Replica selectReplica() {
+		List<Replica> healthy = new ArrayList<Replica>(replicas.size());
+		for (Replica replica : replicas) {
+			if (replica.isHealthy()) {
+				healthy.add(replica);
+			}
+		}
+		if (healthy.isEmpty()) {
+			Logger.debug("No healthy replicas available, routing to primary.");
+			return null;
+		}
+		return replicaSelector.select(healthy);
+	}
+
+	private <E extends Throwable> E failed(E e) {
+		Route route = threadLocalRoute.get();
+		if (route != null && route.replica != null && !route.failed) {
+			route.failed = true;
+			route.replica.failed(ejectionMillis);
+			Logger.warn("Replica %s failed and has been ejected for %dms: %s", route.replica.getName(), ejectionMillis, e.getMessage());
+		}
+		return e;
+	}
+
+	/**
+	 * @return true if the failure, or any of its causes, is a failure to reach the database rather than of the statement
+	 */
+	private static boolean isConnectionFailure(Throwable e) {
+		for (Throwable cause = e; cause != null; cause = cause.getCause() == cause ? null : cause.getCause()) {
+			if (cause instanceof JDBCConnectionException || cause instanceof SQLNonTransientConnectionException || cause instanceof SQLTransientConnectionException
+					|| cause instanceof SQLRecoverableException) {
+				return true;
+			}
+			// SQL state class 08 is a connection exception
+			if (cause instanceof SQLException && ((SQLException) cause).getSQLState() != null && ((SQLException) cause).getSQLState().startsWith("08")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static class Route {
+		private Replica replica;
+		private long start = System.nanoTime();
+		private boolean failed;
+
+		public Route(Replica replica) {
+			this.replica = replica;
+		}
+	}
+}
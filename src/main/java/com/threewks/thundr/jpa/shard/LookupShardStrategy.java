@@ -0,0 +1,49 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.jpa.shard;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Assigns keys to shards through an explicit directory, falling back to another strategy for keys which are not in the
+ * directory. Useful for moving individual tenants or hot keys to a shard of their own.
+ */
+public class LookupShardStrategy implements ShardStrategy {
+	private Map<Object, Integer> directory = new ConcurrentHashMap<Object, Integer>();
+	private ShardStrategy fallback;
+
+	public LookupShardStrategy() {
+		this(new HashShardStrategy());
+	}
+
+	public LookupShardStrategy(ShardStrategy fallback) {
+		this.fallback = fallback;
+	}
+
+	public LookupShardStrategy assign(Object key, int shard) {
+		directory.put(key, shard);
+		return this;
+	}
+
+	@Override
+	public int shardFor(Object key, int shards) {
+		Integer shard = directory.get(key);
+		return shard == null ? fallback.shardFor(key, shards) : shard;
+	}
+}
@@ -0,0 +1,55 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.jpa.shard;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.threewks.thundr.jpa.exception.JpaException;
+
+/**
+ * Assigns keys to shards by range. Given the upper bounds <code>[100, 200]</code>, keys below 100 belong to shard 0,
+ * keys from 100 and below 200 to shard 1, and all other keys to shard 2.
+ */
+public class RangeShardStrategy implements ShardStrategy {
+	private List<Comparable<Object>> upperBounds = new ArrayList<Comparable<Object>>();
+
+	/**
+	 * @param upperBounds the exclusive upper bound of each shard but the last, in ascending order
+	 */
+	@SuppressWarnings("unchecked")
+	public RangeShardStrategy(Comparable<?>... upperBounds) {
+		for (Comparable<?> upperBound : Arrays.asList(upperBounds)) {
+			this.upperBounds.add((Comparable<Object>) upperBound);
+		}
+	}
+
+	@Override
+	public int shardFor(Object key, int shards) {
+		if (upperBounds.size() != shards - 1) {
+			throw new JpaException("Range shard strategy has %d ranges but there are %d shards", upperBounds.size() + 1, shards);
+		}
+		for (int i = 0; i < upperBounds.size(); i++) {
+			if (upperBounds.get(i).compareTo(key) > 0) {
+				return i;
+			}
+		}
+		return upperBounds.size();
+	}
+}
@@ -0,0 +1,167 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.jpa.shard;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import javax.persistence.EntityManager;
+
+import com.threewks.thundr.jpa.JpaAction;
+import com.threewks.thundr.jpa.JpaTemplate;
+import com.threewks.thundr.jpa.PersistenceManager;
+
+/**
+ * A {@link JpaTemplate} over a {@link ShardedPersistenceManager}. Lookups by id go to the shard holding that id, while
+ * queries are scattered to every shard in parallel and their results gathered in shard order.
+ * <p>
+ * Each shard is queried on a worker thread with an entity manager of its own which is closed once the shard has
+ * answered, so entities returned by scattered queries are detached.
+ */
+public class ShardedJpaTemplate<T> {
+	private ShardedPersistenceManager shardedPersistenceManager;
+	private List<JpaTemplate<T>> templates = new ArrayList<JpaTemplate<T>>();
+
+	public ShardedJpaTemplate(ShardedPersistenceManager shardedPersistenceManager, Class<T> type) {
+		this.shardedPersistenceManager = shardedPersistenceManager;
+		for (PersistenceManager shard : shardedPersistenceManager.getShards()) {
+			templates.add(new JpaTemplate<T>(shard, type));
+		}
+	}
+
+	/**
+	 * @return the template for the shard holding the given key, which can be used for any single shard operation
+	 */
+	public JpaTemplate<T> forKey(Object key) {
+		return templates.get(shardedPersistenceManager.shardIndexFor(key));
+	}
+
+	public List<JpaTemplate<T>> getTemplates() {
+		return Collections.unmodifiableList(templates);
+	}
+
+	/**
+	 * Gets an entity from the shard its id maps to.
+	 */
+	public T get(Object id) {
+		return forKey(id).get(id);
+	}
+
+	/**
+	 * Gets an entity from the shard the given shard key maps to, for entities sharded by something other than their id.
+	 */
+	public T get(Object shardKey, Object id) {
+		return forKey(shardKey).get(id);
+	}
+
+	public long count() {
+		long count = 0;
+		for (Long shardCount : scatter(new ShardCall<T, Long>() {
+			@Override
+			public Long call(JpaTemplate<T> template) {
+				return template.count();
+			}
+		})) {
+			count += shardCount;
+		}
+		return count;
+	}
+
+	public List<T> query(final String query, final Object... values) {
+		return gather(scatter(new ShardCall<T, List<T>>() {
+			@Override
+			public List<T> call(JpaTemplate<T> template) {
+				return template.query(query, values);
+			}
+		}));
+	}
+
+	public List<T> query(final String query, final Map<String, Object> params) {
+		return gather(scatter(new ShardCall<T, List<T>>() {
+			@Override
+			public List<T> call(JpaTemplate<T> template) {
+				return template.query(query, params);
+			}
+		}));
+	}
+
+	public List<T> namedQuery(final String queryName, final Object... values) {
+		return gather(scatter(new ShardCall<T, List<T>>() {
+			@Override
+			public List<T> call(JpaTemplate<T> template) {
+				return template.namedQuery(queryName, values);
+			}
+		}));
+	}
+
+	public List<T> namedQuery(final String queryName, final Map<String, Object> params) {
+		return gather(scatter(new ShardCall<T, List<T>>() {
+			@Override
+			public List<T> call(JpaTemplate<T> template) {
+				return template.namedQuery(queryName, params);
+			}
+		}));
+	}
+
+	/**
+	 * Runs the given action against every shard in parallel.
+	 * 
+	 * @return the result from each shard, in shard order
+	 */
+	public <E> List<E> scatter(final JpaAction<E> action) {
+		return scatter(new ShardCall<T, E>() {
+			@Override
+			public E call(JpaTemplate<T> template) {
+				return template.execute(action);
+			}
+		});
+	}
+
+	private <E> List<E> scatter(final ShardCall<T, E> call) {
+		List<Future<E>> futures = new ArrayList<Future<E>>(templates.size());
+		for (int i = 0; i < templates.size(); i++) {
+			final JpaTemplate<T> template = templates.get(i);
+			futures.add(shardedPersistenceManager.getExecutor().submit(shardedPersistenceManager.getShards().get(i), new JpaAction<E>() {
+				@Override
+				public E run(EntityManager em) {
+					return call.call(template);
+				}
+			}, false));
+		}
+		return shardedPersistenceManager.getExecutor().getAll(futures);
+	}
+
+	private List<T> gather(List<List<T>> shardResults) {
+		int size = 0;
+		for (List<T> shardResult : shardResults) {
+			size += shardResult.size();
+		}
+		List<T> results = new ArrayList<T>(size);
+		for (List<T> shardResult : shardResults) {
+			results.addAll(shardResult);
+		}
+		return results;
+	}
+
+	private interface ShardCall<T, E> {
+		E call(JpaTemplate<T> template);
+	}
+}
@@ -0,0 +1,98 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.jpa.shard;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.threewks.thundr.jpa.ParallelJpaExecutor;
+import com.threewks.thundr.jpa.PersistenceManager;
+import com.threewks.thundr.jpa.exception.JpaException;
+
+/**
+ * Spreads data across several persistence units, each holding a shard of it. Each shard is a regular
+ * {@link PersistenceManager}, chosen for a given shard key by a {@link ShardStrategy}. A session only ever spans a
+ * single shard; use {@link ShardedJpaTemplate} to look up entities on the right shard and to query across all of them.
+ */
+public class ShardedPersistenceManager {
+	private List<PersistenceManager> shards;
+	private ShardStrategy shardStrategy;
+	private ParallelJpaExecutor executor;
+
+	public ShardedPersistenceManager(List<PersistenceManager> shards, ShardStrategy shardStrategy) {
+		if (shards.isEmpty()) {
+			throw new JpaException("A sharded persistence manager requires at least one shard");
+		}
+		this.shards = new ArrayList<PersistenceManager>(shards);
+		this.shardStrategy = shardStrategy;
+		this.executor = new ParallelJpaExecutor(shards.size(), ParallelJpaExecutor.DefaultQueueSize);
+	}
+
+	/**
+	 * @return the persistence manager of the shard which holds the given key
+	 */
+	public PersistenceManager shardFor(Object key) {
+		return shards.get(shardIndexFor(key));
+	}
+
+	/**
+	 * @return the index of the shard which holds the given key
+	 */
+	public int shardIndexFor(Object key) {
+		if (key == null) {
+			throw new JpaException("Cannot determine the shard for a null key");
+		}
+		int shard = shardStrategy.shardFor(key, shards.size());
+		if (shard < 0 || shard >= shards.size()) {
+			throw new JpaException("Shard strategy %s mapped key %s to shard %d, but there are only %d shards", shardStrategy.getClass().getSimpleName(), key, shard,
+					shards.size());
+		}
+		return shard;
+	}
+
+	public List<PersistenceManager> getShards() {
+		return Collections.unmodifiableList(shards);
+	}
+
+	public ShardStrategy getShardStrategy() {
+		return shardStrategy;
+	}
+
+	/**
+	 * @return the executor used to query shards in parallel
+	 */
+	public ParallelJpaExecutor getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * Stops the threads used to query shards, leaving the shards themselves to be destroyed by whoever owns them.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	public void destroy() {
+		shutdown();
+		for (PersistenceManager shard : shards) {
+			shard.destroy();
+		}
+	}
+
+}
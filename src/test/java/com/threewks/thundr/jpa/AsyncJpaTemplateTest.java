@@ -0,0 +1,73 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.jpa;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import java.util.concurrent.Future;
+
+import javax.persistence.EntityManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AsyncJpaTemplateTest {
+	private PersistenceManager persistenceManager = mock(PersistenceManager.class);
+	private EntityManager entityManager = mock(EntityManager.class);
+	private ParallelJpaExecutor executor = new ParallelJpaExecutor(2, 10);
+	private AsyncJpaTemplate<String> template;
+
+	@Before
+	public void before() {
+		when(persistenceManager.getEntityManager()).thenReturn(entityManager);
+		template = new AsyncJpaTemplate<String>(executor, persistenceManager, String.class);
+	}
+
+	@After
+	public void after() {
+		executor.shutdown();
+	}
+
+	@Test
+	public void shouldGetEntityWithoutTransaction() throws Exception {
+		when(entityManager.find(String.class, 1l)).thenReturn("entity");
+
+		Future<String> future = template.get(1l);
+		assertThat(future.get(), is("entity"));
+		verify(persistenceManager, never()).beginTransaction();
+		verify(persistenceManager).closeEntityManager();
+	}
+
+	@Test
+	public void shouldExecuteActionInTransaction() throws Exception {
+		Future<String> future = template.execute(new JpaAction<String>() {
+			@Override
+			public String run(EntityManager em) {
+				return em == entityManager ? "executed" : null;
+			}
+		});
+
+		assertThat(future.get(), is("executed"));
+		verify(persistenceManager).beginTransaction();
+		verify(persistenceManager).commit();
+		verify(persistenceManager).closeEntityManager();
+	}
+}
@@ -0,0 +1,131 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.jpa;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.FlushModeType;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class EntityManagerPoolTest {
+	private EntityManagerFactory entityManagerFactory;
+	private EntityManagerPool pool;
+
+	@Before
+	public void before() {
+		entityManagerFactory = mock(EntityManagerFactory.class);
+		when(entityManagerFactory.createEntityManager()).thenAnswer(new Answer<EntityManager>() {
+			@Override
+			public EntityManager answer(InvocationOnMock invocation) {
+				return entityManager();
+			}
+		});
+		pool = new EntityManagerPool(entityManagerFactory, 1);
+	}
+
+	@Test
+	public void shouldCreateEntityManagerWhenPoolEmpty() {
+		EntityManager em = pool.borrow();
+		assertThat(em, is(notNullValue()));
+		assertThat(pool.getBorrows(), is(1l));
+		assertThat(pool.getMisses(), is(1l));
+	}
+
+	@Test
+	public void shouldRecycleReleasedEntityManager() {
+		EntityManager em = pool.borrow();
+		pool.release(em);
+
+		assertThat(pool.getSize(), is(1));
+		verify(em).clear();
+		verify(em).setFlushMode(FlushModeType.AUTO);
+		verify(em, never()).close();
+
+		assertThat(pool.borrow(), is(sameInstance(em)));
+		assertThat(pool.getSize(), is(0));
+		assertThat(pool.getMisses(), is(1l));
+		verify(entityManagerFactory, times(1)).createEntityManager();
+	}
+
+	@Test
+	public void shouldCloseEntityManagerWhenPoolFull() {
+		EntityManager em1 = pool.borrow();
+		EntityManager em2 = pool.borrow();
+		pool.release(em1);
+		pool.release(em2);
+
+		assertThat(pool.getSize(), is(1));
+		verify(em2).close();
+	}
+
+	@Test
+	public void shouldNotRecycleEntityManagerInsideTransaction() {
+		EntityManager em = pool.borrow();
+		when(em.getTransaction().isActive()).thenReturn(true);
+		pool.release(em);
+
+		assertThat(pool.getSize(), is(0));
+		verify(em).close();
+	}
+
+	@Test
+	public void shouldCloseDiscardedEntityManager() {
+		EntityManager em = pool.borrow();
+		pool.discard(em);
+
+		assertThat(pool.getSize(), is(0));
+		verify(em).close();
+		assertThat(pool.borrow(), is(not(sameInstance(em))));
+	}
+
+	@Test
+	public void shouldIgnoreClosedEntityManager() {
+		EntityManager em = pool.borrow();
+		when(em.isOpen()).thenReturn(false);
+		pool.release(em);
+
+		assertThat(pool.getSize(), is(0));
+		verify(em, never()).close();
+	}
+
+	@Test
+	public void shouldCloseIdleEntityManagersOnClear() {
+		EntityManager em = pool.borrow();
+		pool.release(em);
+		pool.clear();
+
+		assertThat(pool.getSize(), is(0));
+		verify(em).close();
+	}
+
+	private EntityManager entityManager() {
+		EntityManager em = mock(EntityManager.class);
+		when(em.isOpen()).thenReturn(true);
+		when(em.getTransaction()).thenReturn(mock(EntityTransaction.class));
+		return em;
+	}
+}
@@ -21,8 +21,12 @@ import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.*;
 import static org.mockito.Mockito.*;
 
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
+import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.Persistence;
 import javax.servlet.ServletContext;
@@ -39,6 +43,21 @@ import org.powermock.modules.junit4.PowerMockRunner;
 import com.threewks.thundr.action.method.ActionInterceptorRegistry;
 import com.threewks.thundr.injection.InjectionContextImpl;
 import com.threewks.thundr.injection.UpdatableInjectionContext;
+import com.threewks.thundr.jpa.cache.EntityCache;
+import com.threewks.thundr.jpa.cache.ResultCache;
+import com.threewks.thundr.jpa.context.PropagatingSessionContext;
+import com.threewks.thundr.jpa.context.ThreadLocalSessionContext;
+import com.threewks.thundr.jpa.exception.JpaException;
+import com.threewks.thundr.jpa.metrics.MetricsRegistry;
+import com.threewks.thundr.jpa.metrics.NPlusOneDetector;
+import com.threewks.thundr.jpa.metrics.NoopMetricsRegistry;
+import com.threewks.thundr.jpa.metrics.SimpleMetricsRegistry;
+import com.threewks.thundr.jpa.metrics.SlowQueryLog;
+import com.threewks.thundr.jpa.pool.ConnectionPool;
+import com.threewks.thundr.jpa.routing.RoutingPersistenceManager;
+import com.threewks.thundr.jpa.shard.HashShardStrategy;
+import com.threewks.thundr.jpa.shard.LookupShardStrategy;
+import com.threewks.thundr.jpa.shard.ShardedPersistenceManager;
 import com.threewks.thundr.jpa.intercept.JpaSession;
 import com.threewks.thundr.jpa.intercept.JpaSessionActionInterceptor;
 
@@ -95,6 +114,309 @@ public class JpaModuleTest {
 		assertThat(results, hasEntry("default", "default"));
 	}
 
+	@Test
+	public void shouldEnableJdbcBatchingWhenBatchSizeConfigured() {
+		injectionContext.inject("30").named(JpaModule.JdbcBatchSizeConfigName).as(String.class);
+
+		Map<String, Object> properties = jpaModule.getPersistenceUnitProperties(injectionContext, "default", "local");
+		assertThat(properties, hasEntry("hibernate.jdbc.batch_size", (Object) "30"));
+		assertThat(properties, hasEntry("hibernate.order_inserts", (Object) "true"));
+		assertThat(properties, hasEntry("hibernate.order_updates", (Object) "true"));
+	}
+
+	@Test
+	public void shouldBoundQueryPlanCacheWhenSizeConfigured() {
+		injectionContext.inject("512").named(JpaModule.QueryPlanCacheSizeConfigName).as(String.class);
+
+		Map<String, Object> properties = jpaModule.getPersistenceUnitProperties(injectionContext, "default", "local");
+		assertThat(properties, hasEntry("hibernate.query.plan_cache_max_size", (Object) "512"));
+	}
+
+	@Test
+	public void shouldNotOverridePersistenceUnitPropertiesByDefault() {
+		Map<String, Object> properties = jpaModule.getPersistenceUnitProperties(injectionContext, "default", "local");
+		assertThat(properties.isEmpty(), is(true));
+	}
+
+	@Test
+	public void shouldPreferPersistenceManagerSpecificConfiguration() {
+		injectionContext.inject("30").named(JpaModule.JdbcBatchSizeConfigName).as(String.class);
+		injectionContext.inject("100").named("reporting." + JpaModule.JdbcBatchSizeConfigName).as(String.class);
+
+		assertThat(jpaModule.getConfiguration(injectionContext, "reporting", JpaModule.JdbcBatchSizeConfigName), is("100"));
+		assertThat(jpaModule.getConfiguration(injectionContext, "default", JpaModule.JdbcBatchSizeConfigName), is("30"));
+		assertThat(jpaModule.getConfiguration(injectionContext, "default", "unknown"), is(nullValue()));
+	}
+
+	@Test(expected = JpaException.class)
+	public void shouldThrowExceptionWhenNumericConfigurationIsNotANumber() {
+		injectionContext.inject("lots").named(JpaModule.JdbcBatchSizeConfigName).as(String.class);
+
+		jpaModule.getConfiguration(injectionContext, "default", JpaModule.JdbcBatchSizeConfigName, 0);
+	}
+
+	@Test
+	public void shouldFrontPersistenceUnitWithRoutingPersistenceManagerWhenReplicasConfigured() {
+		injectionContext.inject("replica1, replica2").named("default." + JpaModule.ReplicasConfigName).as(String.class);
+		injectionContext.inject("leastLatency").named(JpaModule.ReplicaSelectionConfigName).as(String.class);
+
+		PersistenceManager persistenceManager = jpaModule.createPersistenceManager(injectionContext, "default", "local");
+		assertThat(persistenceManager, is(instanceOf(RoutingPersistenceManager.class)));
+
+		RoutingPersistenceManager routingPersistenceManager = (RoutingPersistenceManager) persistenceManager;
+		assertThat(routingPersistenceManager.getReplicas().size(), is(2));
+		assertThat(routingPersistenceManager.getReplicas().get(1).getName(), is("replica2"));
+		assertThat(jpaModule.createPersistenceManager(injectionContext, "other", "local"), is(instanceOf(PersistenceManagerImpl.class)));
+	}
+
+	@Test(expected = JpaException.class)
+	public void shouldThrowExceptionForUnknownReplicaSelection() {
+		injectionContext.inject("random").named(JpaModule.ReplicaSelectionConfigName).as(String.class);
+
+		jpaModule.createReplicaSelector(injectionContext, "default");
+	}
+
+	@Test
+	public void shouldRegisterShardsWhenShardsConfigured() {
+		injectionContext.inject("shard1, shard2").named("default." + JpaModule.ShardsConfigName).as(String.class);
+
+		jpaModule.configure(injectionContext);
+
+		PersistenceManagerRegistry registry = injectionContext.get(PersistenceManagerRegistry.class);
+		ShardedPersistenceManager shardedPersistenceManager = injectionContext.get(ShardedPersistenceManager.class, "default");
+		assertThat(shardedPersistenceManager.getShards().size(), is(3));
+		assertThat(shardedPersistenceManager.getShards().get(0), is(sameInstance(registry.get("default"))));
+		assertThat(shardedPersistenceManager.getShards().get(2), is(sameInstance(registry.get("default-shard2"))));
+		assertThat(shardedPersistenceManager.getShardStrategy(), is(instanceOf(HashShardStrategy.class)));
+	}
+
+	@Test
+	public void shouldCreateConfiguredShardStrategy() {
+		injectionContext.inject(LookupShardStrategy.class.getName()).named(JpaModule.ShardStrategyConfigName).as(String.class);
+
+		assertThat(jpaModule.createShardStrategy(injectionContext, "default"), is(instanceOf(LookupShardStrategy.class)));
+	}
+
+	@Test(expected = JpaException.class)
+	public void shouldThrowExceptionForUnknownShardStrategy() {
+		injectionContext.inject("modulo").named(JpaModule.ShardStrategyConfigName).as(String.class);
+
+		jpaModule.createShardStrategy(injectionContext, "default");
+	}
+
+	@Test
+	public void shouldInjectParallelJpaExecutor() {
+		jpaModule.configure(injectionContext);
+
+		ParallelJpaExecutor parallelJpaExecutor = injectionContext.get(ParallelJpaExecutor.class);
+		assertThat(parallelJpaExecutor, is(notNullValue()));
+
+		jpaModule.stop(injectionContext);
+		assertThat(parallelJpaExecutor.isShutdown(), is(true));
+	}
+
+	@Test
+	public void shouldCreateConfiguredSessionContext() {
+		assertThat(jpaModule.createSessionContext(injectionContext), is(instanceOf(ThreadLocalSessionContext.class)));
+
+		injectionContext.inject("propagating").named(JpaModule.SessionContextConfigName).as(String.class);
+		assertThat(jpaModule.createSessionContext(injectionContext), is(instanceOf(PropagatingSessionContext.class)));
+	}
+
+	@Test
+	public void shouldCreateConfiguredMetricsRegistry() {
+		assertThat(jpaModule.createMetricsRegistry(injectionContext), is(instanceOf(NoopMetricsRegistry.class)));
+
+		injectionContext.inject("on").named(JpaModule.MetricsConfigName).as(String.class);
+		assertThat(jpaModule.createMetricsRegistry(injectionContext), is(instanceOf(SimpleMetricsRegistry.class)));
+	}
+
+	@Test
+	public void shouldNotInstallMetricsInterceptorByDefault() {
+		jpaModule.configure(injectionContext);
+		assertThat(injectionContext.get(MetricsRegistry.class).isEnabled(), is(false));
+		assertThat(jpaModule.getPersistenceUnitProperties(injectionContext, "default", "default").containsKey("hibernate.ejb.interceptor.session_scoped"), is(false));
+	}
+
+	@Test
+	public void shouldInstallMetricsInterceptorWhenMetricsEnabled() {
+		injectionContext.inject("on").named(JpaModule.MetricsConfigName).as(String.class);
+		jpaModule.configure(injectionContext);
+		assertThat(injectionContext.get(MetricsRegistry.class).isEnabled(), is(true));
+		assertThat(jpaModule.getPersistenceUnitProperties(injectionContext, "default", "default").get("hibernate.ejb.interceptor.session_scoped"),
+				is((Object) "com.threewks.thundr.jpa.metrics.MetricsInterceptor"));
+	}
+
+	@Test(expected = JpaException.class)
+	public void shouldThrowExceptionForInvalidMetricsConfiguration() {
+		injectionContext.inject("java.lang.String").named(JpaModule.MetricsConfigName).as(String.class);
+
+		jpaModule.createMetricsRegistry(injectionContext);
+	}
+
+	@Test
+	public void shouldCreateConfiguredNPlusOneDetector() {
+		assertThat(jpaModule.createNPlusOneDetector(injectionContext), is(nullValue()));
+
+		injectionContext.inject("fail").named(JpaModule.NPlusOneDetectionConfigName).as(String.class);
+		injectionContext.inject("5").named(JpaModule.NPlusOneThresholdConfigName).as(String.class);
+		NPlusOneDetector detector = jpaModule.createNPlusOneDetector(injectionContext);
+		assertThat(detector.getMode(), is(NPlusOneDetector.Mode.Fail));
+		assertThat(detector.getThreshold(), is(5));
+	}
+
+	@Test(expected = JpaException.class)
+	public void shouldThrowExceptionForInvalidNPlusOneDetectionConfiguration() {
+		injectionContext.inject("explode").named(JpaModule.NPlusOneDetectionConfigName).as(String.class);
+
+		jpaModule.createNPlusOneDetector(injectionContext);
+	}
+
+	@Test
+	public void shouldCreateSlowQueryLogSharingWriterWhenThresholdConfigured() {
+		assertThat(jpaModule.createSlowQueryLog(injectionContext, "default"), is(nullValue()));
+
+		injectionContext.inject("250").named(JpaModule.SlowQueryThresholdMillisConfigName).as(String.class);
+		SlowQueryLog slowQueryLog = jpaModule.createSlowQueryLog(injectionContext, "default");
+		SlowQueryLog otherSlowQueryLog = jpaModule.createSlowQueryLog(injectionContext, "other");
+		assertThat(slowQueryLog.getThreshold(TimeUnit.MILLISECONDS), is(250l));
+		assertThat(slowQueryLog.getWriter(), is(sameInstance(otherSlowQueryLog.getWriter())));
+		assertThat(slowQueryLog.getWriter().isRunning(), is(true));
+
+		injectionContext.inject(mock(PersistenceManagerRegistry.class)).as(PersistenceManagerRegistry.class);
+		jpaModule.stop(injectionContext);
+		assertThat(slowQueryLog.getWriter().isRunning(), is(false));
+	}
+
+	@Test
+	public void shouldCreateConnectionPoolWhenMaxSizeConfigured() {
+		assertThat(jpaModule.createConnectionPool(injectionContext, "default", "default"), is(nullValue()));
+
+		injectionContext.inject("20").named(JpaModule.ConnectionPoolMaxSizeConfigName).as(String.class);
+		injectionContext.inject("5").named("default." + JpaModule.ConnectionPoolMinSizeConfigName).as(String.class);
+		injectionContext.inject("1000").named(JpaModule.ConnectionTimeoutMillisConfigName).as(String.class);
+		ConnectionPool connectionPool = jpaModule.createConnectionPool(injectionContext, "default", "default");
+		assertThat(connectionPool.getMaxSize(), is(20));
+		assertThat(connectionPool.getMinSize(), is(5));
+		assertThat(connectionPool.getTimeout(TimeUnit.MILLISECONDS), is(1000l));
+		assertThat(connectionPool.getLeakThreshold(TimeUnit.MILLISECONDS), is(0l));
+	}
+
+	@Test(expected = JpaException.class)
+	public void shouldThrowExceptionForInvalidConnectionPoolSizes() {
+		injectionContext.inject("2").named(JpaModule.ConnectionPoolMaxSizeConfigName).as(String.class);
+		injectionContext.inject("5").named(JpaModule.ConnectionPoolMinSizeConfigName).as(String.class);
+
+		jpaModule.createConnectionPool(injectionContext, "default", "default");
+	}
+
+	@Test
+	public void shouldOnlyCreateBootstrapExecutorWhenParallelOrLazy() {
+		assertThat(jpaModule.createBootstrapExecutor(injectionContext), is(nullValue()));
+
+		injectionContext.inject("parallel").named(JpaModule.BootstrapConfigName).as(String.class);
+		ExecutorService bootstrapExecutor = jpaModule.createBootstrapExecutor(injectionContext);
+		assertThat(bootstrapExecutor, is(notNullValue()));
+		bootstrapExecutor.shutdown();
+	}
+
+	@Test(expected = JpaException.class)
+	public void shouldThrowExceptionForInvalidBootstrapConfiguration() {
+		injectionContext.inject("eventually").named(JpaModule.BootstrapConfigName).as(String.class);
+
+		jpaModule.createBootstrapExecutor(injectionContext);
+	}
+
+	@Test
+	public void shouldBootstrapLazilyWithoutWaitingForEntityManagerFactory() {
+		injectionContext.inject("lazy").named(JpaModule.BootstrapConfigName).as(String.class);
+		jpaModule.configure(injectionContext);
+
+		PersistenceManager persistenceManager = injectionContext.get(PersistenceManager.class, PersistenceManager.DefaultName);
+		assertThat(persistenceManager, is(instanceOf(PersistenceManagerImpl.class)));
+		assertThat(((PersistenceManagerImpl) persistenceManager).getEntityManagerFactory(), is(notNullValue()));
+	}
+
+	@Test
+	public void shouldWarmUpPersistenceUnitsOnStartWhenConfigured() {
+		EntityManager em = mock(EntityManager.class);
+		EntityManagerFactory entityManagerFactory = mock(EntityManagerFactory.class);
+		when(entityManagerFactory.isOpen()).thenReturn(true);
+		when(entityManagerFactory.createEntityManager()).thenReturn(em);
+		when(Persistence.createEntityManagerFactory(Mockito.anyString())).thenReturn(entityManagerFactory);
+		injectionContext.inject("on").named(JpaModule.WarmUpConfigName).as(String.class);
+		jpaModule.configure(injectionContext);
+		jpaModule.start(injectionContext);
+		verify(em).getMetamodel();
+		verify(em).close();
+	}
+
+	@Test
+	public void shouldCreateConfiguredWarmUpActions() {
+		assertThat(jpaModule.createWarmUpActions(injectionContext, "default").isEmpty(), is(true));
+
+		injectionContext.inject(WarmUpAction.class.getName()).named("default." + JpaModule.WarmUpActionsConfigName).as(String.class);
+		List<JpaAction<?>> actions = jpaModule.createWarmUpActions(injectionContext, "default");
+		assertThat(actions.size(), is(1));
+		assertThat(actions.get(0), is(instanceOf(WarmUpAction.class)));
+	}
+
+	@Test(expected = JpaException.class)
+	public void shouldThrowExceptionForInvalidWarmUpAction() {
+		injectionContext.inject("java.lang.String").named(JpaModule.WarmUpActionsConfigName).as(String.class);
+
+		jpaModule.createWarmUpActions(injectionContext, "default");
+	}
+
+	@Test
+	public void shouldCreatePersistenceContextGuardWhenSoftLimitConfigured() {
+		assertThat(jpaModule.createPersistenceContextGuard(injectionContext, "default"), is(nullValue()));
+
+		injectionContext.inject("5000").named("default." + JpaModule.PersistenceContextSoftLimitConfigName).as(String.class);
+		PersistenceContextGuard persistenceContextGuard = jpaModule.createPersistenceContextGuard(injectionContext, "default");
+		assertThat(persistenceContextGuard.getSoftLimit(), is(5000));
+		assertThat(persistenceContextGuard.getMode(), is(PersistenceContextGuard.Mode.Warn));
+
+		injectionContext.inject("fail").named(JpaModule.PersistenceContextLimitModeConfigName).as(String.class);
+		assertThat(jpaModule.createPersistenceContextGuard(injectionContext, "default").getMode(), is(PersistenceContextGuard.Mode.Fail));
+	}
+
+	@Test(expected = JpaException.class)
+	public void shouldThrowExceptionForInvalidPersistenceContextLimitMode() {
+		injectionContext.inject("5000").named(JpaModule.PersistenceContextSoftLimitConfigName).as(String.class);
+		injectionContext.inject("ignore").named(JpaModule.PersistenceContextLimitModeConfigName).as(String.class);
+
+		jpaModule.createPersistenceContextGuard(injectionContext, "default");
+	}
+
+	@Test
+	public void shouldCreateEntityCacheForConfiguredEntities() {
+		assertThat(jpaModule.createEntityCache(injectionContext, "default"), is(nullValue()));
+
+		injectionContext.inject("java.lang.String:100:60000, java.lang.Integer:10").named(JpaModule.EntityCacheConfigName).as(String.class);
+		EntityCache entityCache = jpaModule.createEntityCache(injectionContext, "default");
+		assertThat(entityCache.isCached(String.class), is(true));
+		assertThat(entityCache.isCached(Integer.class), is(true));
+		assertThat(entityCache.isCached(Long.class), is(false));
+	}
+
+	@Test(expected = JpaException.class)
+	public void shouldThrowExceptionForInvalidEntityCacheConfiguration() {
+		injectionContext.inject("java.lang.String").named(JpaModule.EntityCacheConfigName).as(String.class);
+
+		jpaModule.createEntityCache(injectionContext, "default");
+	}
+
+	@Test
+	public void shouldCreateResultCacheWhenSizeConfigured() {
+		assertThat(jpaModule.createResultCache(injectionContext, "default"), is(nullValue()));
+
+		injectionContext.inject("1000").named(JpaModule.ResultCacheSizeConfigName).as(String.class);
+		injectionContext.inject("5000").named(JpaModule.ResultCacheTtlMillisConfigName).as(String.class);
+		ResultCache resultCache = jpaModule.createResultCache(injectionContext, "default");
+		assertThat(resultCache.getMaxWeight(), is(1000l));
+	}
+
 	@Test
 	public void shouldClearPersistenceManagerRegistryOnContextDestroyed() {
 		PersistenceManagerRegistry registry = mock(PersistenceManagerRegistry.class);
@@ -105,4 +427,10 @@ public class JpaModuleTest {
 
 		verify(registry).clear();
 	}
+
+	public static class WarmUpAction extends VoidAction {
+		@Override
+		public void vrun(EntityManager em) {
+		}
+	}
 }
@@ -0,0 +1,164 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.jpa;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+
+import org.hamcrest.Matchers;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import com.threewks.thundr.jpa.exception.JpaException;
+
+public class ParallelJpaExecutorTest {
+	@Rule
+	public ExpectedException thrown = ExpectedException.none();
+
+	private PersistenceManager persistenceManager1 = mock(PersistenceManager.class);
+	private PersistenceManager persistenceManager2 = mock(PersistenceManager.class);
+	private EntityManager entityManager1 = mock(EntityManager.class);
+	private EntityManager entityManager2 = mock(EntityManager.class);
+	private ParallelJpaExecutor executor = new ParallelJpaExecutor(2, 1);
+	private CountDownLatch latch = new CountDownLatch(1);
+
+	@Before
+	public void before() {
+		when(persistenceManager1.getEntityManager()).thenReturn(entityManager1);
+		when(persistenceManager2.getEntityManager()).thenReturn(entityManager2);
+	}
+
+	@After
+	public void after() {
+		latch.countDown();
+		executor.shutdown();
+	}
+
+	@Test
+	public void shouldRunActionsInTheirOwnTransactionAndReturnResultsInOrder() {
+		Future<String> first = executor.submit(persistenceManager1, new NameAction());
+		Future<String> second = executor.submit(persistenceManager2, new NameAction());
+
+		List<String> results = executor.getAll(Arrays.asList(first, second), 1, TimeUnit.SECONDS);
+		assertThat(results, contains("first", "second"));
+		verify(persistenceManager1).beginTransaction();
+		verify(persistenceManager1).commit();
+		verify(persistenceManager1).closeEntityManager();
+		verify(persistenceManager2).commit();
+		verify(persistenceManager2).closeEntityManager();
+	}
+
+	@Test
+	public void shouldNotBeginTransactionForNonTransactionalActions() {
+		List<String> results = executor.getAll(Arrays.asList(executor.submit(persistenceManager1, new NameAction(), false)));
+
+		assertThat(results, Matchers.contains("first"));
+		verify(persistenceManager1, never()).beginTransaction();
+		verify(persistenceManager1, never()).commit();
+		verify(persistenceManager1).closeEntityManager();
+	}
+
+	@Test
+	public void shouldRollbackAndRethrowWhenActionFails() {
+		Future<String> future = executor.submit(persistenceManager1, new JpaAction<String>() {
+			@Override
+			public String run(EntityManager em) {
+				throw new IllegalStateException("expected");
+			}
+		});
+
+		thrown.expect(IllegalStateException.class);
+		try {
+			executor.getAll(Arrays.asList(future));
+		} finally {
+			verify(persistenceManager1).rollback();
+			verify(persistenceManager1).closeEntityManager();
+		}
+	}
+
+	@Test
+	public void shouldThrowExceptionWhenActionsDoNotCompleteInTime() {
+		Future<String> future = executor.submit(persistenceManager1, new BlockingAction());
+
+		thrown.expect(JpaException.class);
+		thrown.expectMessage("Timed out");
+		try {
+			executor.getAll(Arrays.asList(future), 10, TimeUnit.MILLISECONDS);
+		} finally {
+			assertThat(future.isCancelled(), is(true));
+		}
+	}
+
+	@Test
+	public void shouldRejectActionsWhenPoolAndQueueAreFull() {
+		executor.submit(persistenceManager1, new BlockingAction());
+		executor.submit(persistenceManager1, new BlockingAction());
+		executor.submit(persistenceManager1, new BlockingAction());
+
+		thrown.expect(JpaException.class);
+		executor.submit(persistenceManager1, new BlockingAction());
+	}
+
+	@Test
+	public void shouldWaitForRoomInQueueWhenQueueTimeoutSet() throws Exception {
+		executor.setQueueTimeout(1, TimeUnit.SECONDS);
+		executor.submit(persistenceManager1, new BlockingAction());
+		executor.submit(persistenceManager1, new BlockingAction());
+		executor.submit(persistenceManager1, new BlockingAction());
+
+		new Thread() {
+			@Override
+			public void run() {
+				latch.countDown();
+			}
+		}.start();
+		Future<String> future = executor.submit(persistenceManager2, new NameAction());
+		assertThat(executor.getAll(Arrays.asList(future), 1, TimeUnit.SECONDS), Matchers.contains("second"));
+	}
+
+	private class NameAction implements JpaAction<String> {
+		@Override
+		public String run(EntityManager em) {
+			return em == entityManager1 ? "first" : "second";
+		}
+	}
+
+	private class BlockingAction implements JpaAction<String> {
+		@Override
+		public String run(EntityManager em) {
+			try {
+				latch.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return null;
+		}
+	}
+}
@@ -0,0 +1,126 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.jpa;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityTransaction;
+
+import org.hibernate.FlushMode;
+import org.hibernate.Session;
+import org.hibernate.stat.SessionStatistics;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import com.threewks.thundr.jpa.context.ThreadLocalSessionContext;
+import com.threewks.thundr.jpa.exception.PersistenceContextLimitException;
+
+public class PersistenceContextGuardTest {
+	@Rule
+	public ExpectedException thrown = ExpectedException.none();
+
+	private EntityManager em = mock(EntityManager.class);
+	private Session session = mock(Session.class);
+	private SessionStatistics statistics = mock(SessionStatistics.class);
+	private EntityTransaction transaction = mock(EntityTransaction.class);
+	private PersistenceContextGuard guard = new PersistenceContextGuard("default", 100, PersistenceContextGuard.Mode.Warn, new ThreadLocalSessionContext());
+
+	@Before
+	public void before() {
+		when(em.unwrap(Session.class)).thenReturn(session);
+		when(em.getTransaction()).thenReturn(transaction);
+		when(session.getStatistics()).thenReturn(statistics);
+		when(session.getFlushMode()).thenReturn(FlushMode.AUTO);
+		when(transaction.isActive()).thenReturn(true);
+	}
+
+	@Test
+	public void shouldLeavePersistenceContextWithinSoftLimit() {
+		when(statistics.getEntityCount()).thenReturn(100);
+
+		assertThat(guard.check(em), is(100));
+		verify(session, never()).flush();
+		verify(session, never()).clear();
+		assertThat(guard.getClears(), is(0l));
+	}
+
+	@Test
+	public void shouldFlushAndClearPersistenceContextPastSoftLimit() {
+		when(statistics.getEntityCount()).thenReturn(101);
+
+		assertThat(guard.check(em), is(0));
+		verify(session).flush();
+		verify(session).clear();
+		assertThat(guard.getClears(), is(1l));
+	}
+
+	@Test
+	public void shouldOnlyWarnForReadOnlySessions() {
+		when(statistics.getEntityCount()).thenReturn(150);
+		when(session.isDefaultReadOnly()).thenReturn(true);
+
+		assertThat(guard.check(em), is(150));
+		assertThat(guard.check(em), is(150));
+		verify(session, never()).flush();
+		verify(session, never()).clear();
+	}
+
+	@Test
+	public void shouldNotFlushOutsideTransaction() {
+		when(statistics.getEntityCount()).thenReturn(150);
+		when(transaction.isActive()).thenReturn(false);
+
+		assertThat(guard.check(em), is(150));
+		verify(session, never()).clear();
+	}
+
+	@Test
+	public void shouldFailForReadOnlySessionsWhenSetToFail() {
+		thrown.expect(PersistenceContextLimitException.class);
+		thrown.expectMessage("The persistence context of default holds 150 entities, more than its soft limit of 100");
+
+		guard = new PersistenceContextGuard("default", 100, PersistenceContextGuard.Mode.Fail, new ThreadLocalSessionContext());
+		when(statistics.getEntityCount()).thenReturn(150);
+		when(session.getFlushMode()).thenReturn(FlushMode.MANUAL);
+		guard.check(em);
+	}
+
+	@Test
+	public void shouldRecordHighWaterMarkOfEachSession() {
+		when(statistics.getEntityCount()).thenReturn(80, 101, 20);
+		guard.check(em);
+		guard.check(em);
+		guard.end(em);
+
+		when(statistics.getEntityCount()).thenReturn(10);
+		guard.end(em);
+
+		assertThat(guard.getSizeHistogram().getCount(), is(2l));
+		assertThat(guard.getSizeHistogram().getMax(), is(101l));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void shouldRejectSoftLimitBelowOne() {
+		new PersistenceContextGuard("default", 0, PersistenceContextGuard.Mode.Warn, new ThreadLocalSessionContext());
+	}
+}
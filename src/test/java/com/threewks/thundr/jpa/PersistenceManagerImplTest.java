@@ -17,6 +17,7 @@
  */
 package com.threewks.thundr.jpa;
 
+import com.threewks.thundr.jpa.context.PropagatingSessionContext;
 import com.threewks.thundr.jpa.exception.JpaException;
 import org.junit.Before;
 import org.junit.Rule;
@@ -28,12 +29,23 @@ import org.powermock.api.mockito.PowerMockito;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+
 import javax.persistence.*;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -74,6 +86,67 @@ public class PersistenceManagerImplTest {
 		assertThat(persistenceManager.getEntityManager(), is(this.entityManager));
 	}
 
+	@Test
+	public void shouldShareEntityManagerAcrossThreadsInPropagatedSession() throws Exception {
+		PropagatingSessionContext sessionContext = new PropagatingSessionContext();
+		final PersistenceManagerImpl persistenceManager = new PersistenceManagerImpl("test", Collections.<String, Object> emptyMap(), sessionContext);
+		EntityManager entityManager = persistenceManager.getEntityManager();
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Callable<EntityManager> getEntityManager = new Callable<EntityManager>() {
+				@Override
+				public EntityManager call() {
+					return persistenceManager.hasEntityManager() ? persistenceManager.getEntityManager() : null;
+				}
+			};
+			assertThat(executor.submit(sessionContext.wrap(getEntityManager)).get(), is(entityManager));
+			assertThat(executor.submit(getEntityManager).get(), is(nullValue()));
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void shouldWaitForEntityManagerFactoryBeingCreatedInBackground() throws Exception {
+		FutureTask<EntityManagerFactory> bootstrap = new FutureTask<EntityManagerFactory>(new Callable<EntityManagerFactory>() {
+			@Override
+			public EntityManagerFactory call() {
+				return entityManagerFactory;
+			}
+		});
+		PersistenceManagerImpl persistenceManager = new PersistenceManagerImpl("test", bootstrap, new PropagatingSessionContext());
+		persistenceManager.setEntityManagerPoolSize(2);
+		assertThat(persistenceManager.isInitialized(), is(false));
+		assertThat(persistenceManager.getEntityManagerPool(), is(nullValue()));
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			executor.submit(bootstrap);
+			assertThat(persistenceManager.getEntityManager(), is(notNullValue()));
+			assertThat(persistenceManager.isInitialized(), is(true));
+			assertThat(persistenceManager.getEntityManagerFactory(), is(entityManagerFactory));
+			assertThat(persistenceManager.getEntityManagerPool(), is(notNullValue()));
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void shouldThrowJpaExceptionWhenEntityManagerFactoryCreatedInBackgroundFails() {
+		thrown.expect(JpaException.class);
+		thrown.expectMessage("Initialization of com.threewks.thundr.jpa.PersistenceManagerImpl failed.");
+
+		FutureTask<EntityManagerFactory> bootstrap = new FutureTask<EntityManagerFactory>(new Callable<EntityManagerFactory>() {
+			@Override
+			public EntityManagerFactory call() {
+				throw new PersistenceException("expected");
+			}
+		});
+		bootstrap.run();
+		new PersistenceManagerImpl("test", bootstrap, new PropagatingSessionContext()).getEntityManager();
+	}
+
 	@Test
 	public void shouldBeginTransaction() {
 		persistenceManager.beginTransaction();
@@ -102,6 +175,46 @@ public class PersistenceManagerImplTest {
 		verify(entityManager).close();
 	}
 
+	@Test
+	public void shouldReturnEntityManagerToPoolInsteadOfClosingWhenPooled() {
+		when(entityManager.isOpen()).thenReturn(true);
+		persistenceManager.setEntityManagerPoolSize(5);
+
+		persistenceManager.closeEntityManager();
+		verify(entityManager, never()).close();
+		verify(entityManager).clear();
+		assertThat(persistenceManager.getEntityManagerPool().getSize(), is(1));
+
+		assertThat(persistenceManager.getEntityManager(), is(entityManager));
+		assertThat(persistenceManager.getEntityManagerPool().getSize(), is(0));
+	}
+
+	@Test
+	public void shouldCloseRolledBackEntityManagerInsteadOfReturningItToPool() {
+		when(entityManager.isOpen()).thenReturn(true);
+		persistenceManager.setEntityManagerPoolSize(5);
+
+		persistenceManager.rollback();
+		persistenceManager.closeEntityManager();
+		verify(entityManager).close();
+		assertThat(persistenceManager.getEntityManagerPool().getSize(), is(0));
+
+		persistenceManager.getEntityManager();
+		verify(entityManagerFactory, times(2)).createEntityManager();
+		persistenceManager.closeEntityManager();
+		assertThat(persistenceManager.getEntityManagerPool().getSize(), is(1));
+	}
+
+	@Test
+	public void shouldCloseEntityManagerOfFailedSessionInsteadOfReturningItToPool() {
+		when(entityManager.isOpen()).thenReturn(true);
+		persistenceManager.setEntityManagerPoolSize(5);
+
+		persistenceManager.closeEntityManager(false);
+		verify(entityManager).close();
+		assertThat(persistenceManager.getEntityManagerPool().getSize(), is(0));
+	}
+
 	@Test
 	public void shouldCloseEntityManagerFactory() {
 		persistenceManager.destroy();
@@ -116,6 +229,16 @@ public class PersistenceManagerImplTest {
 		persistenceManager.getEntityManager();
 	}
 
+	@Test
+	public void shouldCreateEntityManagerFactoryWithPropertyOverrides() {
+		Map<String, Object> properties = new HashMap<String, Object>();
+		properties.put("hibernate.jdbc.batch_size", "50");
+		when(Persistence.createEntityManagerFactory("test", properties)).thenReturn(entityManagerFactory);
+
+		PersistenceManagerImpl persistenceManager = new PersistenceManagerImpl("test", properties);
+		assertThat(persistenceManager.getEntityManager(), is(notNullValue()));
+	}
+
 	@Test
 	@SuppressWarnings("unchecked")
 	public void shouldThrowExceptionIfErrorOnInitialization() {
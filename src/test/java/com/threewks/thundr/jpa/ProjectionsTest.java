@@ -0,0 +1,75 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.jpa;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.threewks.thundr.jpa.exception.JpaException;
+
+public class ProjectionsTest {
+
+	@Test
+	public void shouldMapRowsThroughMatchingConstructor() {
+		List<Summary> summaries = Projections.map(Summary.class, Arrays.asList(new Object[] { "Coffee", 3l }, new Object[] { "Tea", 1l }, new Object[] { "Water" }));
+
+		assertThat(summaries.size(), is(3));
+		assertThat(summaries.get(0).name, is("Coffee"));
+		assertThat(summaries.get(0).count, is(3l));
+		assertThat(summaries.get(2).name, is("Water"));
+		assertThat(summaries.get(2).count, is(0l));
+	}
+
+	@Test
+	public void shouldReturnRowsAsTheyAreForObjectArrays() {
+		Object[] row = new Object[] { "Coffee", 3l };
+		List<Object[]> rows = Projections.map(Object[].class, Arrays.<Object> asList(row, "Tea"));
+
+		assertThat(rows.get(0), is(sameInstance(row)));
+		assertThat(rows.get(1), is(new Object[] { "Tea" }));
+	}
+
+	@Test
+	public void shouldReturnSingleValuesOfProjectionType() {
+		assertThat(Projections.map(String.class, Arrays.asList("Coffee", "Tea")), contains("Coffee", "Tea"));
+	}
+
+	@Test(expected = JpaException.class)
+	public void shouldThrowExceptionWhenNoConstructorMatches() {
+		Projections.map(Summary.class, Arrays.asList(new Object[] { 3l, "Coffee" }));
+	}
+
+	public static class Summary {
+		private String name;
+		private long count;
+
+		public Summary(String name) {
+			this.name = name;
+		}
+
+		public Summary(String name, long count) {
+			this.name = name;
+			this.count = count;
+		}
+	}
+}
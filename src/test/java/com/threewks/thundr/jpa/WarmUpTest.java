@@ -0,0 +1,154 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.jpa;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.persistence.EntityManager;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.Metamodel;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.mockito.InOrder;
+
+import com.threewks.thundr.jpa.exception.JpaException;
+import com.threewks.thundr.jpa.pool.ConnectionPool;
+
+public class WarmUpTest {
+	@Rule
+	public ExpectedException thrown = ExpectedException.none();
+
+	private PersistenceManager persistenceManager = mock(PersistenceManager.class);
+	private EntityManager em = mock(EntityManager.class);
+	private EntityType<Account> accountType;
+
+	@Before
+	@SuppressWarnings("unchecked")
+	public void before() {
+		accountType = mock(EntityType.class);
+		when(accountType.getJavaType()).thenReturn(Account.class);
+		Set<EntityType<?>> entities = new HashSet<EntityType<?>>();
+		entities.add(accountType);
+		Metamodel metamodel = mock(Metamodel.class);
+		when(metamodel.getEntities()).thenReturn(entities);
+		when(em.getMetamodel()).thenReturn(metamodel);
+		when(persistenceManager.getEntityManager()).thenReturn(em);
+	}
+
+	@Test
+	public void shouldCompileNamedQueriesAndTouchEntityMetadata() {
+		WarmUp.Result result = new WarmUp("local", persistenceManager, null, null).run();
+
+		verify(em).createNamedQuery("Account.byName");
+		verify(em).createNamedQuery("Account.byEmail");
+		verify(accountType).getAttributes();
+		verify(persistenceManager).closeEntityManager();
+		verify(persistenceManager, never()).beginTransaction();
+		assertThat(result.getName(), is("local"));
+		assertThat(result.getEntities(), is(1));
+		assertThat(result.getNamedQueries(), is(2));
+		assertThat(result.getConnections(), is(0));
+		assertThat(result.getActions(), is(0));
+	}
+
+	@Test
+	public void shouldFailOnInvalidNamedQueries() {
+		thrown.expect(JpaException.class);
+		thrown.expectMessage("Failed to warm up persistence unit local, invalid named queries: Account.byEmail (unexpected token)");
+
+		when(em.createNamedQuery("Account.byEmail")).thenThrow(new IllegalArgumentException("unexpected token"));
+		try {
+			new WarmUp("local", persistenceManager, null, null).run();
+		} finally {
+			verify(persistenceManager).closeEntityManager();
+		}
+	}
+
+	@Test
+	public void shouldRunActionsInTransactionWhichIsRolledBack() {
+		@SuppressWarnings("unchecked")
+		JpaAction<Object> action = mock(JpaAction.class);
+		WarmUp.Result result = new WarmUp("local", persistenceManager, null, Arrays.<JpaAction<?>> asList(action)).run();
+
+		InOrder inOrder = inOrder(persistenceManager, action);
+		inOrder.verify(persistenceManager).beginTransaction();
+		inOrder.verify(action).run(em);
+		inOrder.verify(persistenceManager).rollback();
+		inOrder.verify(persistenceManager).closeEntityManager();
+		assertThat(result.getActions(), is(1));
+	}
+
+	@Test
+	public void shouldFailWhenActionFails() {
+		thrown.expect(JpaException.class);
+		thrown.expectMessage("Failed to warm up persistence unit local");
+
+		@SuppressWarnings("unchecked")
+		JpaAction<Object> action = mock(JpaAction.class);
+		when(action.run(em)).thenThrow(new IllegalStateException("expected"));
+		try {
+			new WarmUp("local", persistenceManager, null, Collections.<JpaAction<?>> singletonList(action)).run();
+		} finally {
+			verify(persistenceManager).rollback();
+			verify(persistenceManager).closeEntityManager();
+		}
+	}
+
+	@Test
+	public void shouldOpenMinimumPooledConnections() {
+		ConnectionPool connectionPool = new ConnectionPool("local", 2, 4);
+		connectionPool.start(new ConnectionPool.ConnectionFactory() {
+			@Override
+			public Connection open() throws SQLException {
+				return mock(Connection.class);
+			}
+		});
+		try {
+			new WarmUp("local", persistenceManager, connectionPool, null).run();
+			assertThat(connectionPool.getSize(), is(2));
+		} finally {
+			connectionPool.close();
+		}
+	}
+
+	@Test
+	public void shouldFindNamedQueriesDeclaredOnType() {
+		assertThat(WarmUp.namedQueries(Account.class), contains("Account.byName", "Account.byEmail"));
+		assertThat(WarmUp.namedQueries(Object.class).isEmpty(), is(true));
+		assertThat(WarmUp.namedQueries(null).isEmpty(), is(true));
+	}
+
+	@NamedQueries({ @NamedQuery(name = "Account.byName", query = "select a from Account a where a.name = :name"),
+			@NamedQuery(name = "Account.byEmail", query = "select a from Account a where a.email = :email") })
+	private static class Account {
+	}
+}
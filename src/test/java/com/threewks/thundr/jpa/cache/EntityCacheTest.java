@@ -0,0 +1,108 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.jpa.cache;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+public class EntityCacheTest {
+	@Rule
+	public ExpectedException thrown = ExpectedException.none();
+
+	private EntityCache entityCache = new EntityCache().configure(String.class, 2, 0, TimeUnit.MILLISECONDS);
+
+	@Test
+	public void shouldOnlyCacheConfiguredTypes() {
+		entityCache.put(String.class, 1, "one", 0);
+		entityCache.put(Integer.class, 1, 1, 0);
+
+		assertThat(entityCache.get(String.class, 1), is("one"));
+		assertThat(entityCache.get(Integer.class, 1), is(nullValue()));
+		assertThat(entityCache.isCached(Integer.class), is(false));
+		assertThat(entityCache.getStatistics(Integer.class), is(nullValue()));
+	}
+
+	@Test
+	public void shouldRecordHitRatioAcrossTypes() {
+		entityCache.configure(Integer.class, 2, 0, TimeUnit.MILLISECONDS);
+		entityCache.put(String.class, 1, "one", 0);
+
+		entityCache.get(String.class, 1);
+		entityCache.get(String.class, 2);
+		entityCache.get(Integer.class, 1);
+		entityCache.get(Integer.class, 2);
+
+		assertThat(entityCache.getStatistics().getHitRatio(), is(0.25));
+		assertThat(entityCache.getStatistics(String.class).getHitRatio(), is(0.5));
+	}
+
+	@Test
+	public void shouldEvictEntities() {
+		entityCache.put(String.class, 1, "one", 0);
+		entityCache.put(String.class, 2, "two", 0);
+
+		entityCache.evict(String.class, 1);
+		assertThat(entityCache.get(String.class, 1), is(nullValue()));
+		assertThat(entityCache.get(String.class, 2), is("two"));
+
+		entityCache.evictAll(String.class);
+		assertThat(entityCache.get(String.class, 2), is(nullValue()));
+	}
+
+	@Test
+	public void shouldReturnDetachedCopiesOfCachedEntities() {
+		entityCache.configure(ArrayList.class, 2, 0, TimeUnit.MILLISECONDS);
+		List<String> entity = new ArrayList<String>(Arrays.asList("one"));
+		entityCache.put(ArrayList.class, 1, entity, 0);
+		entity.add("two");
+
+		Object first = entityCache.get(ArrayList.class, 1);
+		Object second = entityCache.get(ArrayList.class, 1);
+		assertThat(first, is((Object) Arrays.asList("one")));
+		assertThat(first, not(sameInstance(second)));
+	}
+
+	@Test
+	public void shouldNotCacheEntitiesLoadedBeforeAnEviction() {
+		long generation = entityCache.getGeneration(String.class);
+		entityCache.evict(String.class, 1);
+
+		entityCache.put(String.class, 1, "one", generation);
+		assertThat(entityCache.get(String.class, 1), is(nullValue()));
+
+		entityCache.put(String.class, 1, "one", entityCache.getGeneration(String.class));
+		assertThat(entityCache.get(String.class, 1), is("one"));
+	}
+
+	@Test
+	public void shouldNotCacheEntitiesWhichCannotBeSerialized() {
+		thrown.expect(IllegalArgumentException.class);
+		thrown.expectMessage("Cannot cache java.lang.Object, cached entities must be serializable");
+
+		entityCache.configure(Object.class, 2, 0, TimeUnit.MILLISECONDS);
+	}
+}
@@ -0,0 +1,96 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.jpa.cache;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class LruCacheTest {
+	private LruCache<String, String> cache;
+
+	@Before
+	public void before() {
+		cache = new LruCache<String, String>(2);
+	}
+
+	@Test
+	public void shouldReturnCachedValue() {
+		cache.put("a", "A");
+		assertThat(cache.get("a"), is("A"));
+		assertThat(cache.get("b"), is(nullValue()));
+		assertThat(cache.getStatistics().getHits(), is(1l));
+		assertThat(cache.getStatistics().getMisses(), is(1l));
+	}
+
+	@Test
+	public void shouldEvictLeastRecentlyUsedEntryWhenFull() {
+		cache.put("a", "A");
+		cache.put("b", "B");
+		cache.get("a");
+		cache.put("c", "C");
+
+		assertThat(cache.size(), is(2));
+		assertThat(cache.get("a"), is("A"));
+		assertThat(cache.get("b"), is(nullValue()));
+		assertThat(cache.get("c"), is("C"));
+		assertThat(cache.getStatistics().getEvictions(), is(1l));
+	}
+
+	@Test
+	public void shouldExpireEntriesAfterTimeToLive() throws InterruptedException {
+		cache = new LruCache<String, String>(2, 10, TimeUnit.MILLISECONDS, new CacheStatistics());
+		cache.put("a", "A");
+		assertThat(cache.get("a"), is("A"));
+
+		Thread.sleep(20);
+		assertThat(cache.get("a"), is(nullValue()));
+		assertThat(cache.size(), is(0));
+		assertThat(cache.getStatistics().getEvictions(), is(1l));
+	}
+
+	@Test
+	public void shouldRemoveAndClearEntries() {
+		cache.put("a", "A");
+		cache.put("b", "B");
+
+		assertThat(cache.remove("a"), is("A"));
+		assertThat(cache.size(), is(1));
+
+		cache.clear();
+		assertThat(cache.size(), is(0));
+	}
+
+	@Test
+	public void shouldShareStatisticsBetweenCaches() {
+		CacheStatistics statistics = new CacheStatistics();
+		LruCache<String, String> cache1 = new LruCache<String, String>(2, statistics);
+		LruCache<String, String> cache2 = new LruCache<String, String>(2, statistics);
+		cache1.put("a", "A");
+
+		cache1.get("a");
+		cache2.get("a");
+		assertThat(statistics.getHits(), is(1l));
+		assertThat(statistics.getMisses(), is(1l));
+		assertThat(statistics.getHitRatio(), is(0.5));
+	}
+}
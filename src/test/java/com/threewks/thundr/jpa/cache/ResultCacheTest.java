@@ -0,0 +1,89 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.jpa.cache;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.threewks.thundr.jpa.cache.ResultCache.Key;
+
+public class ResultCacheTest {
+	private ResultCache resultCache = new ResultCache(10, 0, TimeUnit.MILLISECONDS);
+
+	@Test
+	public void shouldReturnCachedIdsForSameQueryAndParameters() {
+		resultCache.put(Key.query(String.class, "from String where a = ?", new Object[] { 1 }), Arrays.<Object> asList(1, 2), 0);
+
+		assertThat(resultCache.get(Key.query(String.class, "from String where a = ?", new Object[] { 1 })), contains((Object) 1, 2));
+		assertThat(resultCache.get(Key.query(String.class, "from String where a = ?", new Object[] { 2 })), is(nullValue()));
+		assertThat(resultCache.get(Key.namedQuery(String.class, "from String where a = ?", new Object[] { 1 })), is(nullValue()));
+		assertThat(resultCache.get(Key.query(Integer.class, "from String where a = ?", new Object[] { 1 })), is(nullValue()));
+		assertThat(resultCache.getStatistics().getHits(), is(1l));
+		assertThat(resultCache.getStatistics().getMisses(), is(3l));
+	}
+
+	@Test
+	public void shouldDiscardResultsOfInvalidatedType() {
+		Key key = Key.query(String.class, "from String", (Object[]) null);
+		resultCache.put(key, Arrays.<Object> asList(1, 2), resultCache.getGeneration(String.class));
+
+		resultCache.invalidate(String.class);
+		assertThat(resultCache.get(key), is(nullValue()));
+		assertThat(resultCache.getWeight(), is(0l));
+	}
+
+	@Test
+	public void shouldTreatNullParametersAsEmpty() {
+		resultCache.put(Key.query(String.class, "from String", (Map<String, Object>) null), Arrays.<Object> asList(1), 0);
+		assertThat(resultCache.get(Key.query(String.class, "from String", Collections.<String, Object> emptyMap())), contains((Object) 1));
+
+		resultCache.put(Key.namedQuery(String.class, "String.all", (Map<String, Object>) null), Arrays.<Object> asList(2), 0);
+		assertThat(resultCache.get(Key.namedQuery(String.class, "String.all", Collections.<String, Object> emptyMap())), contains((Object) 2));
+	}
+
+	@Test
+	public void shouldNotCacheResultsOfQueriesWhichRacedWithInvalidation() {
+		Key key = Key.query(String.class, "from String", Collections.<String, Object> emptyMap());
+		long generation = resultCache.getGeneration(String.class);
+		resultCache.invalidate(String.class);
+
+		resultCache.put(key, Arrays.<Object> asList(1, 2), generation);
+		assertThat(resultCache.size(), is(0));
+	}
+
+	@Test
+	public void shouldEvictLeastRecentlyUsedResultsWhenTooHeavy() {
+		Key first = Key.query(String.class, "first", (Object[]) null);
+		Key second = Key.query(String.class, "second", (Object[]) null);
+		resultCache.put(first, Arrays.<Object> asList(1, 2, 3, 4), 0);
+		resultCache.put(second, Arrays.<Object> asList(1, 2, 3, 4), 0);
+		assertThat(resultCache.getWeight(), is(10l));
+
+		resultCache.put(Key.query(String.class, "third", (Object[]) null), Arrays.<Object> asList(1), 0);
+		assertThat(resultCache.get(first), is(nullValue()));
+		assertThat(resultCache.get(second), is(notNullValue()));
+		assertThat(resultCache.getWeight(), is(7l));
+	}
+}
@@ -0,0 +1,90 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.jpa.context;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.threewks.thundr.jpa.context.PropagatingSessionContext.Session;
+
+public class PropagatingSessionContextTest {
+	private PropagatingSessionContext sessionContext = new PropagatingSessionContext();
+	private SessionValue<String> value = sessionContext.createValue();
+	private ExecutorService executor = Executors.newSingleThreadExecutor();
+
+	@After
+	public void after() {
+		executor.shutdown();
+	}
+
+	@Test
+	public void shouldHoldValueForCurrentSession() {
+		value.set("value");
+		assertThat(value.get(), is("value"));
+
+		value.remove();
+		assertThat(value.get(), is(nullValue()));
+		assertThat(sessionContext.capture().isEmpty(), is(true));
+	}
+
+	@Test
+	public void shouldCarryValuesToWrappedCallables() throws Exception {
+		value.set("value");
+
+		assertThat(executor.submit(sessionContext.wrap(new GetValue())).get(), is("value"));
+		assertThat(executor.submit(new GetValue()).get(), is(nullValue()));
+	}
+
+	@Test
+	public void shouldSeeChangesMadeOnOtherThreads() throws Exception {
+		executor.submit(sessionContext.wrap(new Runnable() {
+			@Override
+			public void run() {
+				value.set("changed");
+			}
+		})).get();
+
+		assertThat(value.get(), is("changed"));
+	}
+
+	@Test
+	public void shouldRestorePreviousSessionOnDetach() {
+		value.set("original");
+		Session other = new Session();
+
+		Session previous = sessionContext.attach(other);
+		assertThat(value.get(), is(nullValue()));
+		sessionContext.detach(previous);
+
+		assertThat(value.get(), is("original"));
+	}
+
+	private class GetValue implements Callable<String> {
+		@Override
+		public String call() {
+			return value.get();
+		}
+	}
+}
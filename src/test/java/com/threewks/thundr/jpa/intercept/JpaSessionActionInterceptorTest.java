@@ -24,20 +24,30 @@ import static org.mockito.Mockito.*;
 
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.Arrays;
 import java.util.List;
 
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.EntityTransaction;
 import javax.persistence.Persistence;
+import javax.servlet.http.HttpServletRequest;
 
+import org.hibernate.FlushMode;
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.jdbc.Work;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.powermock.api.mockito.PowerMockito;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
@@ -46,7 +56,12 @@ import com.threewks.thundr.jpa.PersistenceManager;
 import com.threewks.thundr.jpa.PersistenceManagerImpl;
 import com.threewks.thundr.jpa.PersistenceManagerRegistry;
 import com.threewks.thundr.jpa.PersistenceManagerRegistryImpl;
+import com.threewks.thundr.jpa.exception.NPlusOneQueryException;
 import com.threewks.thundr.jpa.exception.PersistenceManagerDoesNotExistException;
+import com.threewks.thundr.jpa.metrics.MetricsInterceptor;
+import com.threewks.thundr.jpa.metrics.NPlusOneDetector;
+import com.threewks.thundr.jpa.metrics.SimpleMetricsRegistry;
+import com.threewks.thundr.jpa.routing.RoutingPersistenceManager;
 
 @RunWith(PowerMockRunner.class)
 @PrepareForTest(Persistence.class)
@@ -55,8 +70,10 @@ public class JpaSessionActionInterceptorTest {
 	public ExpectedException thrown = ExpectedException.none();
 
 	private Connection connection;
+	private EntityManager entityManager;
 	private JpaSession annotation;
-	private PersistenceManager persistenceManager;
+	private PersistenceManagerImpl persistenceManager;
+	private MetricsInterceptor metricsInterceptor;
 	private JpaSessionActionInterceptor interceptor;
 
 	@SuppressWarnings("unchecked")
@@ -64,12 +81,17 @@ public class JpaSessionActionInterceptorTest {
 	public void before() {
 		annotation = spy(new MockJpaSessionAnnotation());
 
-		EntityManager entityManager = mock(EntityManager.class);
+		entityManager = mock(EntityManager.class);
 		when(entityManager.getTransaction()).thenReturn(mock(EntityTransaction.class));
 
 		connection = mock(Connection.class);
 		doReturn(connection).when(entityManager).unwrap(any(Class.class));
 
+		metricsInterceptor = new MetricsInterceptor();
+		SessionImplementor sessionImplementor = mock(SessionImplementor.class);
+		when(sessionImplementor.getInterceptor()).thenReturn(metricsInterceptor);
+		when(entityManager.getDelegate()).thenReturn(sessionImplementor);
+
 		EntityManagerFactory entityManagerFactory = mock(EntityManagerFactory.class);
 		when(entityManagerFactory.isOpen()).thenReturn(true);
 		when(entityManagerFactory.createEntityManager()).thenReturn(entityManager);
@@ -106,7 +128,7 @@ public class JpaSessionActionInterceptorTest {
 
 		interceptor.after(annotation, null, null, null);
 		verify(persistenceManager).commit();
-		verify(persistenceManager).closeEntityManager();
+		verify(persistenceManager).closeEntityManager(true);
 	}
 
 	@Test
@@ -115,7 +137,7 @@ public class JpaSessionActionInterceptorTest {
 
 		interceptor.after(annotation, null, null, null);
 		verify(persistenceManager, times(0)).commit();
-		verify(persistenceManager).closeEntityManager();
+		verify(persistenceManager).closeEntityManager(true);
 	}
 
 	@Test
@@ -130,7 +152,7 @@ public class JpaSessionActionInterceptorTest {
 			assertThat(e.getMessage(), is("expected"));
 		}
 
-		verify(persistenceManager).closeEntityManager();
+		verify(persistenceManager).closeEntityManager(false);
 	}
 
 	@Test
@@ -140,7 +162,7 @@ public class JpaSessionActionInterceptorTest {
 		Object view = interceptor.exception(annotation, new Exception("Intentional"), null, null);
 		assertThat(view, is(nullValue()));
 		verify(persistenceManager).rollback();
-		verify(persistenceManager).closeEntityManager();
+		verify(persistenceManager).closeEntityManager(false);
 	}
 
 	@Test
@@ -156,7 +178,134 @@ public class JpaSessionActionInterceptorTest {
 			assertThat(e.getMessage(), is("expected"));
 		}
 
-		verify(persistenceManager).closeEntityManager();
+		verify(persistenceManager).closeEntityManager(false);
+	}
+
+	@Test
+	public void shouldDeferTransactionUntilEntityManagerFirstUsedWhenLazy() {
+		when(annotation.transactional()).thenReturn(true);
+		when(annotation.lazy()).thenReturn(true);
+
+		interceptor.before(annotation, null, null);
+		verify(persistenceManager, times(0)).beginTransaction();
+		assertThat(persistenceManager.hasEntityManager(), is(false));
+
+		persistenceManager.getEntityManager();
+		verify(persistenceManager).beginTransaction();
+
+		interceptor.after(annotation, null, null, null);
+		verify(persistenceManager).commit();
+		verify(persistenceManager).closeEntityManager(true);
+	}
+
+	@Test
+	public void shouldNotCommitOrRollbackWhenLazyEntityManagerNeverUsed() {
+		when(annotation.transactional()).thenReturn(true);
+		when(annotation.lazy()).thenReturn(true);
+
+		interceptor.before(annotation, null, null);
+		interceptor.after(annotation, null, null, null);
+		interceptor.before(annotation, null, null);
+		interceptor.exception(annotation, new Exception("Intentional"), null, null);
+
+		verify(persistenceManager, times(0)).getEntityManager();
+		verify(persistenceManager, times(0)).commit();
+		verify(persistenceManager, times(0)).rollback();
+		assertThat(persistenceManager.hasEntityManager(), is(false));
+
+		persistenceManager.getEntityManager();
+		verify(persistenceManager, times(0)).beginTransaction();
+	}
+
+	@Test
+	public void shouldConfigureReadOnlySessionThenRestoreReadWriteConnectionWithinTransaction() throws SQLException {
+		Session session = mockSession();
+		when(annotation.transactional()).thenReturn(true);
+		when(annotation.readOnly()).thenReturn(true);
+
+		interceptor.before(annotation, null, null);
+		InOrder inOrder = inOrder(persistenceManager, session, connection);
+		inOrder.verify(persistenceManager).beginTransaction();
+		inOrder.verify(session).setFlushMode(FlushMode.MANUAL);
+		inOrder.verify(session).setDefaultReadOnly(true);
+		inOrder.verify(connection).setReadOnly(true);
+
+		interceptor.after(annotation, null, null, null);
+		inOrder.verify(connection).setReadOnly(false);
+		inOrder.verify(persistenceManager).commit();
+		inOrder.verify(persistenceManager).closeEntityManager(true);
+	}
+
+	@Test
+	public void shouldNotFailActionWhenReadWriteConnectionCannotBeRestored() throws SQLException {
+		mockSession();
+		when(annotation.transactional()).thenReturn(true);
+		when(annotation.readOnly()).thenReturn(true);
+		doThrow(new SQLException("expected")).when(connection).setReadOnly(false);
+
+		interceptor.before(annotation, null, null);
+		interceptor.after(annotation, null, null, null);
+		verify(persistenceManager).closeEntityManager(true);
+	}
+
+	@Test
+	public void shouldNotRestoreReadWriteConnectionWhichWasAlreadyReadOnly() throws SQLException {
+		mockSession();
+		when(connection.isReadOnly()).thenReturn(true);
+		when(annotation.transactional()).thenReturn(true);
+		when(annotation.readOnly()).thenReturn(true);
+
+		interceptor.before(annotation, null, null);
+		interceptor.exception(annotation, new Exception("Intentional"), null, null);
+
+		verify(connection, times(0)).setReadOnly(anyBoolean());
+	}
+
+	@Test
+	public void shouldConfigureNonTransactionalReadOnlySessionWithoutMarkingConnectionReadOnly() throws SQLException {
+		Session session = mockSession();
+		when(annotation.readOnly()).thenReturn(true);
+
+		interceptor.before(annotation, null, null);
+		verify(session).setFlushMode(FlushMode.MANUAL);
+		verify(session).setDefaultReadOnly(true);
+
+		interceptor.after(annotation, null, null, null);
+		verify(session, never()).doWork(any(Work.class));
+		verify(connection, never()).setReadOnly(anyBoolean());
+		verify(persistenceManager, never()).commit();
+	}
+
+	@Test
+	public void shouldRouteReadOnlySessionsToReplicas() {
+		RoutingPersistenceManager routingPersistenceManager = mock(RoutingPersistenceManager.class);
+		PersistenceManagerRegistry persistenceManagerRegistry = new PersistenceManagerRegistryImpl();
+		persistenceManagerRegistry.register("default", routingPersistenceManager);
+		interceptor = new JpaSessionActionInterceptor(persistenceManagerRegistry);
+
+		when(annotation.transactional()).thenReturn(true);
+		interceptor.before(annotation, null, null);
+		verify(routingPersistenceManager).route(false);
+
+		when(annotation.transactional()).thenReturn(false);
+		interceptor.before(annotation, null, null);
+		verify(routingPersistenceManager).route(true);
+	}
+
+	@Test
+	public void shouldReportFailedSessionsToRoutingPersistenceManager() {
+		RoutingPersistenceManager routingPersistenceManager = mock(RoutingPersistenceManager.class);
+		PersistenceManagerRegistry persistenceManagerRegistry = new PersistenceManagerRegistryImpl();
+		persistenceManagerRegistry.register("default", routingPersistenceManager);
+		interceptor = new JpaSessionActionInterceptor(persistenceManagerRegistry);
+
+		Exception e = new Exception("Intentional");
+		interceptor.before(annotation, null, null);
+		interceptor.exception(annotation, e, null, null);
+
+		InOrder inOrder = inOrder(routingPersistenceManager);
+		inOrder.verify(routingPersistenceManager).sessionFailed(e);
+		inOrder.verify(routingPersistenceManager).closeEntityManager(false);
 	}
 
 	@Test
@@ -207,4 +356,113 @@ public class JpaSessionActionInterceptorTest {
 		assertThat(values.get(0), is(temporaryIsolationLevel));
 		assertThat(values.get(1), is(defaultIsolationLevel));
 	}
+
+	@Test
+	public void shouldRecordSessionMetricsPerPersistenceManagerAndAction() {
+		SimpleMetricsRegistry metricsRegistry = new SimpleMetricsRegistry();
+		interceptor.setMetricsRegistry(metricsRegistry);
+		HttpServletRequest request = mock(HttpServletRequest.class);
+		when(request.getMethod()).thenReturn("GET");
+		when(request.getRequestURI()).thenReturn("/users/123/orders");
+		when(annotation.transactional()).thenReturn(true);
+
+		interceptor.before(annotation, request, null);
+		persistenceManager.getEntityManager();
+		metricsInterceptor.onPrepareStatement("select 1");
+		metricsInterceptor.onLoad(new Object(), 1l, null, null, null);
+		interceptor.after(annotation, null, request, null);
+
+		assertThat(metricsRegistry.histogram("jpa.default.session").getCount(), is(1l));
+		assertThat(metricsRegistry.histogram("jpa.default.firstEntityManager").getCount(), is(1l));
+		assertThat(metricsRegistry.histogram("jpa.default.commit").getCount(), is(1l));
+		assertThat(metricsRegistry.histogram("jpa.default.rollback").getCount(), is(0l));
+		assertThat(metricsRegistry.histogram("jpa.default.statements").getMax(), is(1l));
+		assertThat(metricsRegistry.histogram("jpa.default.entitiesLoaded").getMax(), is(1l));
+		assertThat(metricsRegistry.histogram("jpa.default.GET /users/*/orders.session").getCount(), is(1l));
+
+		interceptor.before(annotation, request, null);
+		interceptor.exception(annotation, new Exception("Intentional"), request, null);
+		assertThat(metricsRegistry.histogram("jpa.default.session").getCount(), is(2l));
+		assertThat(metricsRegistry.histogram("jpa.default.rollback").getCount(), is(1l));
+		assertThat(metricsRegistry.histogram("jpa.default.statements").getCount(), is(2l));
+	}
+
+	@Test
+	public void shouldMeasureActionsBeyondMaxActionNamesAsOther() {
+		SimpleMetricsRegistry metricsRegistry = new SimpleMetricsRegistry();
+		interceptor.setMetricsRegistry(metricsRegistry);
+		interceptor.setMaxActionNames(1);
+		HttpServletRequest request = mock(HttpServletRequest.class);
+		when(request.getMethod()).thenReturn("GET");
+
+		for (String path : Arrays.asList("/posts/first", "/posts/second", "/posts/first")) {
+			when(request.getRequestURI()).thenReturn(path);
+			interceptor.before(annotation, request, null);
+			interceptor.after(annotation, null, request, null);
+		}
+
+		assertThat(metricsRegistry.histogram("jpa.default.GET /posts/first.session").getCount(), is(2l));
+		assertThat(metricsRegistry.histogram("jpa.default.other.session").getCount(), is(1l));
+		assertThat(metricsRegistry.getHistograms().containsKey("jpa.default.GET /posts/second.session"), is(false));
+	}
+
+	@Test
+	public void shouldNotRecordMetricsByDefault() {
+		assertThat(interceptor.getMetricsRegistry().isEnabled(), is(false));
+	}
+
+	@Test
+	public void shouldFailActionWhichRepeatsStatementWhenDetectingNPlusOneQueries() {
+		interceptor.setNPlusOneDetector(new NPlusOneDetector(NPlusOneDetector.Mode.Fail, 2));
+		when(annotation.transactional()).thenReturn(true);
+
+		interceptor.before(annotation, null, null);
+		for (int i = 0; i < 3; i++) {
+			metricsInterceptor.onPrepareStatement("select * from beverage where id = " + i);
+		}
+		try {
+			interceptor.after(annotation, null, null, null);
+			fail("Expected exception");
+		} catch (NPlusOneQueryException e) {
+			assertThat(e.getMessage(), containsString("executed 3 times in default"));
+		}
+		verify(persistenceManager).commit();
+		verify(persistenceManager).closeEntityManager(true);
+		assertThat(metricsInterceptor.getNPlusOneSession(), is(nullValue()));
+	}
+
+	@Test
+	public void shouldNotFailActionAlreadyFailingWhenDetectingNPlusOneQueries() {
+		interceptor.setNPlusOneDetector(new NPlusOneDetector(NPlusOneDetector.Mode.Fail, 2));
+		when(annotation.transactional()).thenReturn(true);
+
+		interceptor.before(annotation, null, null);
+		for (int i = 0; i < 3; i++) {
+			metricsInterceptor.onPrepareStatement("select * from beverage where id = " + i);
+		}
+		Object view = interceptor.exception(annotation, new Exception("Intentional"), null, null);
+		assertThat(view, is(nullValue()));
+		verify(persistenceManager).rollback();
+		assertThat(metricsInterceptor.getNPlusOneSession(), is(nullValue()));
+	}
+
+	/**
+	 * Mocks the Hibernate session of the entity manager, running work against the mock connection.
+	 */
+	private Session mockSession() {
+		Session session = mock(Session.class);
+		doReturn(session).when(entityManager).unwrap(Session.class);
+		doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(InvocationOnMock invocation) throws Throwable {
+				try {
+					((Work) invocation.getArguments()[0]).execute(connection);
+				} catch (SQLException e) {
+					throw new HibernateException(e.getMessage(), e);
+				}
+				return null;
+			}
+		}).when(session).doWork(any(Work.class));
+		return session;
+	}
 }
@@ -47,6 +47,26 @@ public class MockJpaSessionAnnotation implements Annotation, JpaSession {
 		return JpaSessionActionInterceptor.DefaultTransactionIsolation;
 	}
 
+	@Override
+	public boolean readOnly() {
+		try {
+			return (Boolean) JpaSession.class.getMethod("readOnly").getDefaultValue();
+		} catch (NoSuchMethodException e) {
+			Logger.error(e.getMessage());
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public boolean lazy() {
+		try {
+			return (Boolean) JpaSession.class.getMethod("lazy").getDefaultValue();
+		} catch (NoSuchMethodException e) {
+			Logger.error(e.getMessage());
+			throw new RuntimeException(e);
+		}
+	}
+
 	@Override
 	public Class<? extends Annotation> annotationType() {
 		return JpaSession.class;
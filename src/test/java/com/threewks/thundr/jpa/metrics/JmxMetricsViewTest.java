@@ -0,0 +1,78 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.jpa.metrics;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.AttributeNotFoundException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class JmxMetricsViewTest {
+	private SimpleMetricsRegistry metricsRegistry;
+	private JmxMetricsView view;
+
+	@Before
+	public void before() {
+		metricsRegistry = new SimpleMetricsRegistry();
+		metricsRegistry.histogram("jpa.default.commit").record(100);
+		view = new JmxMetricsView(metricsRegistry);
+	}
+
+	@Test
+	public void shouldExposeHistogramStatisticsAsAttributes() throws Exception {
+		assertThat(view.getAttribute("jpa.default.commit.count"), is((Object) 1l));
+		assertThat(view.getAttribute("jpa.default.commit.max"), is((Object) 100l));
+		assertThat(view.getAttribute("jpa.default.commit.mean"), is((Object) 100.0));
+		assertThat(view.getAttribute("jpa.default.commit.p99"), is((Object) 100l));
+		assertThat(view.getMBeanInfo().getAttributes().length, is(6));
+	}
+
+	@Test
+	public void shouldResetValuesWithoutDiscardingHistograms() throws Exception {
+		Histogram histogram = metricsRegistry.histogram("jpa.default.commit");
+
+		view.invoke("reset", new Object[0], new String[0]);
+		assertThat(view.getAttribute("jpa.default.commit.count"), is((Object) 0l));
+
+		histogram.record(50);
+		assertThat(view.getAttribute("jpa.default.commit.count"), is((Object) 1l));
+		assertThat(metricsRegistry.histogram("jpa.default.commit"), is(sameInstance(histogram)));
+	}
+
+	@Test(expected = AttributeNotFoundException.class)
+	public void shouldThrowExceptionForUnknownAttribute() throws Exception {
+		view.getAttribute("jpa.default.rollback.count");
+	}
+
+	@Test
+	public void shouldRegisterWithMBeanServer() throws Exception {
+		MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+		view.register(mBeanServer, "com.threewks.thundr.jpa:type=MetricsTest");
+		assertThat(mBeanServer.getAttribute(new ObjectName("com.threewks.thundr.jpa:type=MetricsTest"), "jpa.default.commit.count"), is((Object) 1l));
+
+		view.unregister(mBeanServer);
+		assertThat(mBeanServer.isRegistered(new ObjectName("com.threewks.thundr.jpa:type=MetricsTest")), is(false));
+	}
+}
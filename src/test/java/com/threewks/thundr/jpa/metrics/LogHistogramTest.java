@@ -0,0 +1,99 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.jpa.metrics;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class LogHistogramTest {
+	private LogHistogram histogram;
+
+	@Before
+	public void before() {
+		histogram = new LogHistogram();
+	}
+
+	@Test
+	public void shouldRecordCountMeanAndMax() {
+		histogram.record(10);
+		histogram.record(20);
+		histogram.record(30);
+
+		assertThat(histogram.getCount(), is(3l));
+		assertThat(histogram.getMean(), is(20.0));
+		assertThat(histogram.getMax(), is(30l));
+	}
+
+	@Test
+	public void shouldEstimatePercentilesWithinBucketPrecision() {
+		for (int i = 1; i <= 1000; i++) {
+			histogram.record(i);
+		}
+
+		assertThat((double) histogram.getPercentile(50), is(closeTo(500, 500 * 0.125)));
+		assertThat((double) histogram.getPercentile(99), is(closeTo(990, 990 * 0.125)));
+		assertThat(histogram.getPercentile(100), is(1000l));
+	}
+
+	@Test
+	public void shouldBeExactForSmallValues() {
+		histogram.record(0);
+		histogram.record(3);
+		histogram.record(7);
+
+		assertThat(histogram.getPercentile(0), is(0l));
+		assertThat(histogram.getPercentile(50), is(3l));
+		assertThat(histogram.getPercentile(100), is(7l));
+	}
+
+	@Test
+	public void shouldHandleExtremeValues() {
+		histogram.record(-5);
+		histogram.record(Long.MAX_VALUE);
+
+		assertThat(histogram.getPercentile(1), is(0l));
+		assertThat(histogram.getPercentile(100), is(Long.MAX_VALUE));
+	}
+
+	@Test
+	public void shouldReturnZeroWhenEmpty() {
+		assertThat(histogram.getPercentile(99), is(0l));
+		assertThat(histogram.getMean(), is(0.0));
+	}
+
+	@Test
+	public void shouldReset() {
+		histogram.record(100);
+		histogram.reset();
+
+		assertThat(histogram.getCount(), is(0l));
+		assertThat(histogram.getMax(), is(0l));
+		assertThat(histogram.getPercentile(50), is(0l));
+	}
+
+	@Test
+	public void shouldPlaceEveryValueWithinItsBucket() {
+		for (long value : new long[] { 0, 1, 7, 8, 9, 15, 16, 1000, 123456789, Long.MAX_VALUE }) {
+			assertThat(LogHistogram.upperBound(LogHistogram.bucket(value)), is(greaterThanOrEqualTo(value)));
+			assertThat(LogHistogram.bucket(value) == 0 || LogHistogram.upperBound(LogHistogram.bucket(value) - 1) < value, is(true));
+		}
+	}
+}
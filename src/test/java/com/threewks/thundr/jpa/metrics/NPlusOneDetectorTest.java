@@ -0,0 +1,112 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.jpa.metrics;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import com.threewks.thundr.jpa.exception.NPlusOneQueryException;
+import com.threewks.thundr.jpa.metrics.NPlusOneDetector.Mode;
+import com.threewks.thundr.jpa.metrics.NPlusOneDetector.Session;
+
+public class NPlusOneDetectorTest {
+	@Rule
+	public ExpectedException thrown = ExpectedException.none();
+
+	private MetricsInterceptor metricsInterceptor = new MetricsInterceptor();
+
+	@Test
+	public void shouldGroupStatementsByShape() {
+		NPlusOneDetector detector = new NPlusOneDetector(Mode.Log, 2);
+		Session session = detector.begin("test");
+		metricsInterceptor.setNPlusOneSession(session);
+		metricsInterceptor.onPrepareStatement("select * from beverage where id = 1");
+		metricsInterceptor.onPrepareStatement("select * from beverage where id = 2");
+		metricsInterceptor.onPrepareStatement("select * from beverage where name = 'Beer'");
+		metricsInterceptor.onPrepareStatement("select * from beverage b0_ where b0_.id = ?");
+		detector.end(session, true);
+
+		assertThat(session.getCounts().get("select * from beverage where id = ?"), is(2));
+		assertThat(session.getCounts().get("select * from beverage where name = ?"), is(1));
+		assertThat(session.getCounts().get("select * from beverage b0_ where b0_.id = ?"), is(1));
+	}
+
+	@Test
+	public void shouldFailWhenStatementRepeatedMoreThanThreshold() {
+		thrown.expect(NPlusOneQueryException.class);
+		thrown.expectMessage("'select * from beverage where id = ?' executed 3 times in test");
+
+		NPlusOneDetector detector = new NPlusOneDetector(Mode.Fail, 2);
+		Session session = detector.begin("test");
+		metricsInterceptor.setNPlusOneSession(session);
+		for (int i = 0; i < 3; i++) {
+			metricsInterceptor.onPrepareStatement("select * from beverage where id = " + i);
+		}
+		detector.end(session, true);
+	}
+
+	@Test
+	public void shouldNotFailWhenStatementsWithinThresholdOrSessionAlreadyFailing() {
+		NPlusOneDetector detector = new NPlusOneDetector(Mode.Fail, 2);
+		Session session = detector.begin("test");
+		metricsInterceptor.setNPlusOneSession(session);
+		metricsInterceptor.onPrepareStatement("select 1");
+		metricsInterceptor.onPrepareStatement("select 1");
+		detector.end(session, true);
+
+		session = detector.begin("test");
+		metricsInterceptor.setNPlusOneSession(session);
+		for (int i = 0; i < 3; i++) {
+			metricsInterceptor.onPrepareStatement("select 1");
+		}
+		detector.end(session, false);
+	}
+
+	@Test
+	public void shouldOnlyCountStatementsOfTheEntityManagerTheSessionIsAttachedTo() {
+		NPlusOneDetector detector = new NPlusOneDetector(Mode.Log, 2);
+		Session session = detector.begin("test");
+		MetricsInterceptor otherMetricsInterceptor = new MetricsInterceptor();
+		metricsInterceptor.onPrepareStatement("select 1");
+		metricsInterceptor.setNPlusOneSession(session);
+		metricsInterceptor.onPrepareStatement("select 2");
+		otherMetricsInterceptor.onPrepareStatement("select 3");
+		metricsInterceptor.setNPlusOneSession(null);
+		metricsInterceptor.onPrepareStatement("select 4");
+		detector.end(session, true);
+
+		assertThat(session.getCounts().get("select ?"), is(1));
+		assertThat(metricsInterceptor.getCounts().getStatements(), is(3l));
+		assertThat(otherMetricsInterceptor.getCounts().getStatements(), is(1l));
+	}
+
+	@Test
+	public void shouldFindCallSiteOutsideOfPersistenceCode() {
+		StackTraceElement[] stackTrace = {
+				new StackTraceElement("org.hibernate.loader.Loader", "doQuery", "Loader.java", 1),
+				new StackTraceElement("com.threewks.thundr.jpa.JpaTemplate", "get", "JpaTemplate.java", 2),
+				new StackTraceElement("com.example.Beverage_$$_javassist_1", "getName", null, -1),
+				new StackTraceElement("com.example.BeverageController", "list", "BeverageController.java", 42) };
+
+		assertThat(NPlusOneDetector.callSite(stackTrace), is("com.example.BeverageController.list(BeverageController.java:42)"));
+	}
+}
@@ -0,0 +1,78 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.jpa.metrics;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class SlowQueryLogTest {
+	private List<SlowQuery> written;
+	private SlowQueryWriter writer;
+	private SlowQueryLog slowQueryLog;
+
+	@Before
+	public void before() {
+		written = new ArrayList<SlowQuery>();
+		writer = new SlowQueryWriter(16, 10, TimeUnit.MILLISECONDS) {
+			@Override
+			protected void write(SlowQuery slowQuery) {
+				written.add(slowQuery);
+			}
+		};
+		slowQueryLog = new SlowQueryLog("default", 100, TimeUnit.MILLISECONDS, writer);
+	}
+
+	@Test
+	public void shouldOnlyRecordStatementsSlowerThanThreshold() {
+		assertThat(slowQueryLog.record("select fast", null, TimeUnit.MILLISECONDS.toNanos(99), 1), is(false));
+		assertThat(slowQueryLog.record("select slow", new Object[] { "Beer", 3l }, TimeUnit.MILLISECONDS.toNanos(150), 12), is(true));
+		writer.drain();
+
+		assertThat(written.size(), is(1));
+		SlowQuery slowQuery = written.get(0);
+		assertThat(slowQuery.getPersistenceManagerName(), is("default"));
+		assertThat(slowQuery.getStatement(), is("select slow"));
+		assertThat(slowQuery.getParameters(), is("[String, Long]"));
+		assertThat(slowQuery.getDurationMicros(), is(150000l));
+		assertThat(slowQuery.getRows(), is(12));
+		assertThat(slowQuery.toString(), is("Slow query on default took 150.0ms returning 12 rows: select slow with parameters [String, Long]"));
+	}
+
+	@Test
+	public void shouldDescribeParametersByTypeOnly() {
+		Map<String, Object> params = new LinkedHashMap<String, Object>();
+		params.put("name", "Beer");
+		params.put("ids", new ArrayList<Object>(Arrays.asList(1, 2, 3)));
+		params.put("missing", null);
+
+		assertThat(SlowQueryLog.shape(params), is("{name=String, ids=ArrayList(3), missing=null}"));
+		assertThat(SlowQueryLog.shape(5), is("[Integer]"));
+		assertThat(SlowQueryLog.shape(new Object[0]), is(nullValue()));
+		assertThat(SlowQueryLog.shape(null), is(nullValue()));
+	}
+}
@@ -0,0 +1,108 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.jpa.metrics;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class SlowQueryWriterTest {
+	private List<SlowQuery> written;
+	private SlowQueryWriter writer;
+
+	@Before
+	public void before() {
+		written = Collections.synchronizedList(new ArrayList<SlowQuery>());
+		writer = new SlowQueryWriter(4, 10, TimeUnit.MILLISECONDS) {
+			@Override
+			protected void write(SlowQuery slowQuery) {
+				written.add(slowQuery);
+			}
+		};
+	}
+
+	@Test
+	public void shouldWriteSlowQueriesInOrder() {
+		writer.offer(slowQuery("a"));
+		writer.offer(slowQuery("b"));
+
+		assertThat(writer.drain(), is(2));
+		assertThat(written.get(0).getStatement(), is("a"));
+		assertThat(written.get(1).getStatement(), is("b"));
+		assertThat(writer.drain(), is(0));
+	}
+
+	@Test
+	public void shouldDropOldestSlowQueriesWhenFull() {
+		for (int i = 0; i < 6; i++) {
+			writer.offer(slowQuery(String.valueOf(i)));
+		}
+
+		assertThat(writer.drain(), is(4));
+		assertThat(writer.getDropped(), is(2l));
+		assertThat(written.get(0).getStatement(), is("2"));
+		assertThat(written.get(3).getStatement(), is("5"));
+	}
+
+	@Test
+	public void shouldRoundCapacityUpToPowerOfTwo() {
+		assertThat(new SlowQueryWriter(1000, 10, TimeUnit.MILLISECONDS).getCapacity(), is(1024));
+		assertThat(new SlowQueryWriter(1024, 10, TimeUnit.MILLISECONDS).getCapacity(), is(1024));
+	}
+
+	@Test
+	public void shouldWriteInBackgroundAndDrainOnStop() throws InterruptedException {
+		writer.start();
+		writer.offer(slowQuery("a"));
+		long deadline = System.currentTimeMillis() + 5000;
+		while (written.isEmpty() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		assertThat(written.size(), is(1));
+
+		writer.offer(slowQuery("b"));
+		writer.stop();
+		assertThat(writer.isRunning(), is(false));
+		assertThat(written.size(), is(2));
+	}
+
+	@Test
+	public void shouldSurviveFailingWrites() {
+		SlowQueryWriter failingWriter = new SlowQueryWriter(4, 10, TimeUnit.MILLISECONDS) {
+			@Override
+			protected void write(SlowQuery slowQuery) {
+				throw new RuntimeException("expected");
+			}
+		};
+		failingWriter.offer(slowQuery("a"));
+
+		assertThat(failingWriter.drain(), is(0));
+		assertThat(failingWriter.drain(), is(0));
+	}
+
+	private SlowQuery slowQuery(String statement) {
+		return new SlowQuery(System.currentTimeMillis(), "default", statement, null, 1000, 1);
+	}
+}
@@ -0,0 +1,191 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.jpa.pool;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+public class ConnectionPoolTest {
+	@Rule
+	public ExpectedException thrown = ExpectedException.none();
+
+	private ConnectionPool connectionPool;
+	private int opened;
+	private Connection lastOpened;
+
+	@Before
+	public void before() {
+		connectionPool = new ConnectionPool("test", 0, 2);
+		connectionPool.setTimeout(50, TimeUnit.MILLISECONDS);
+		connectionPool.start(new ConnectionPool.ConnectionFactory() {
+			@Override
+			public Connection open() throws SQLException {
+				opened++;
+				return lastOpened = mock(Connection.class);
+			}
+		});
+	}
+
+	@After
+	public void after() {
+		connectionPool.close();
+	}
+
+	@Test
+	public void shouldReuseReturnedConnections() throws SQLException {
+		Connection connection = connectionPool.getConnection();
+		assertThat(connectionPool.getActive(), is(1));
+		connection.close();
+		assertThat(connection.isClosed(), is(true));
+		assertThat(connectionPool.getIdle(), is(1));
+
+		connectionPool.getConnection().close();
+		assertThat(opened, is(1));
+		assertThat(connectionPool.getSize(), is(1));
+		assertThat(connectionPool.getWaitHistogram().getCount(), is(2l));
+	}
+
+	@Test
+	public void shouldTimeOutWhenExhausted() throws SQLException {
+		thrown.expect(SQLException.class);
+		thrown.expectMessage("Timed out after 50ms waiting for a connection from pool test");
+
+		connectionPool.getConnection();
+		connectionPool.getConnection();
+		connectionPool.getConnection();
+	}
+
+	@Test
+	public void shouldNotAllowUseOfReturnedConnection() throws SQLException {
+		thrown.expect(SQLException.class);
+		thrown.expectMessage("Connection has been returned to pool test");
+
+		Connection connection = connectionPool.getConnection();
+		connection.close();
+		connection.close();
+		connection.createStatement();
+	}
+
+	@Test
+	public void shouldDiscardBrokenConnections() throws SQLException {
+		Connection connection = connectionPool.getConnection();
+		when(lastOpened.isClosed()).thenReturn(true);
+		connection.close();
+
+		assertThat(connectionPool.getSize(), is(0));
+		assertThat(connectionPool.getIdle(), is(0));
+	}
+
+	@Test
+	public void shouldResetConnectionsWhenReturned() throws SQLException {
+		Connection connection = connectionPool.getConnection();
+		when(lastOpened.isReadOnly()).thenReturn(true);
+		when(lastOpened.getTransactionIsolation()).thenReturn(Connection.TRANSACTION_SERIALIZABLE);
+		connection.close();
+
+		verify(lastOpened).rollback();
+		verify(lastOpened).setReadOnly(false);
+		verify(lastOpened).setTransactionIsolation(0);
+		assertThat(connectionPool.getIdle(), is(1));
+	}
+
+	@Test
+	public void shouldDiscardConnectionsWhichCannotBeReset() throws SQLException {
+		Connection connection = connectionPool.getConnection();
+		doThrow(new SQLException("expected")).when(lastOpened).rollback();
+		connection.close();
+
+		assertThat(connectionPool.getSize(), is(0));
+		assertThat(connectionPool.getIdle(), is(0));
+		verify(lastOpened).close();
+	}
+
+	@Test
+	public void shouldOpenMinimumConnectionsWhenHousekeeping() {
+		ConnectionPool minimumPool = new ConnectionPool("minimum", 2, 4);
+		minimumPool.start(new ConnectionPool.ConnectionFactory() {
+			@Override
+			public Connection open() throws SQLException {
+				return mock(Connection.class);
+			}
+		});
+		minimumPool.housekeep();
+
+		assertThat(minimumPool.getSize(), is(2));
+		assertThat(minimumPool.getIdle(), is(2));
+		minimumPool.close();
+		assertThat(minimumPool.getSize(), is(0));
+	}
+
+	@Test
+	public void shouldFillToMinimumSize() {
+		ConnectionPool minimumPool = new ConnectionPool("minimum", 2, 4);
+		assertThat(minimumPool.fill(), is(0));
+		minimumPool.start(new ConnectionPool.ConnectionFactory() {
+			@Override
+			public Connection open() throws SQLException {
+				return mock(Connection.class);
+			}
+		});
+		minimumPool.fill();
+
+		assertThat(minimumPool.getSize(), is(2));
+		assertThat(minimumPool.fill(), is(0));
+		minimumPool.close();
+	}
+
+	@Test
+	public void shouldReportConnectionsHeldPastLeakThreshold() throws SQLException, InterruptedException {
+		connectionPool.setLeakThreshold(1, TimeUnit.MILLISECONDS);
+		Connection connection = connectionPool.getConnection();
+		Thread.sleep(5);
+
+		connectionPool.housekeep();
+		connectionPool.housekeep();
+		assertThat(connectionPool.getLeaks(), is(1l));
+
+		connection.close();
+		connectionPool.housekeep();
+		assertThat(connectionPool.getLeaks(), is(1l));
+	}
+
+	@Test
+	public void shouldRejectRequestsOnceClosed() throws SQLException {
+		thrown.expect(SQLException.class);
+		thrown.expectMessage("Connection pool test is closed");
+
+		connectionPool.close();
+		connectionPool.getConnection();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void shouldRejectMinSizeGreaterThanMaxSize() {
+		new ConnectionPool("invalid", 5, 2);
+	}
+}
@@ -0,0 +1,90 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.jpa.pool;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.threewks.thundr.jpa.exception.JpaException;
+
+public class PooledConnectionProviderTest {
+	@Test
+	public void shouldTakeRegisteredPoolAndConnectUsingPersistenceUnitSettings() throws SQLException {
+		ConnectionPool connectionPool = new ConnectionPool("test", 0, 3);
+		PooledConnectionProvider.register("test:test", connectionPool);
+		Map<String, Object> settings = new HashMap<String, Object>();
+		settings.put("hibernate.connection.url", "jdbc:hsqldb:mem:pooltest");
+		settings.put("hibernate.connection.driver_class", "org.hsqldb.jdbcDriver");
+		settings.put("hibernate.connection.username", "sa");
+		settings.put(PooledConnectionProvider.ConnectionPoolProperty, "test:test");
+
+		PooledConnectionProvider provider = new PooledConnectionProvider();
+		provider.configure(settings);
+		assertThat(provider.getConnectionPool(), is(sameInstance(connectionPool)));
+		assertThat(provider.unwrap(ConnectionPool.class), is(sameInstance(connectionPool)));
+
+		Connection connection = provider.getConnection();
+		assertThat(connection.getAutoCommit(), is(false));
+		assertThat(connection.createStatement().execute("SELECT 1 FROM INFORMATION_SCHEMA.SYSTEM_USERS"), is(true));
+		provider.closeConnection(connection);
+		assertThat(connectionPool.getIdle(), is(1));
+
+		provider.stop();
+		assertThat(connectionPool.isClosed(), is(true));
+	}
+
+	@Test
+	public void shouldCreateDefaultPoolWhenNoneRegistered() {
+		Map<String, Object> settings = new HashMap<String, Object>();
+		settings.put("javax.persistence.jdbc.url", "jdbc:hsqldb:mem:pooltest");
+		settings.put("javax.persistence.jdbc.user", "sa");
+
+		PooledConnectionProvider provider = new PooledConnectionProvider();
+		provider.configure(settings);
+		assertThat(provider.getConnectionPool().getMaxSize(), is(ConnectionPool.DefaultMaxSize));
+		provider.stop();
+	}
+
+	@Test
+	public void shouldNotTakeUnregisteredPool() {
+		ConnectionPool connectionPool = new ConnectionPool("test", 0, 3);
+		PooledConnectionProvider.register("test:unregistered", connectionPool);
+		PooledConnectionProvider.unregister("test:unregistered");
+		Map<String, Object> settings = new HashMap<String, Object>();
+		settings.put("javax.persistence.jdbc.url", "jdbc:hsqldb:mem:pooltest");
+		settings.put("javax.persistence.jdbc.user", "sa");
+		settings.put(PooledConnectionProvider.ConnectionPoolProperty, "test:unregistered");
+
+		PooledConnectionProvider provider = new PooledConnectionProvider();
+		provider.configure(settings);
+		assertThat(provider.getConnectionPool(), is(not(sameInstance(connectionPool))));
+		provider.stop();
+	}
+
+	@Test(expected = JpaException.class)
+	public void shouldThrowExceptionWhenNoUrlConfigured() {
+		new PooledConnectionProvider().configure(new HashMap<String, Object>());
+	}
+}
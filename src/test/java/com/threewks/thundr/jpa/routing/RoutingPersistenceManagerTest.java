@@ -0,0 +1,200 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.jpa.routing;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+
+import javax.persistence.EntityManager;
+import javax.persistence.NoResultException;
+import javax.persistence.PersistenceException;
+
+import org.hibernate.exception.JDBCConnectionException;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.threewks.thundr.jpa.PersistenceManager;
+import com.threewks.thundr.jpa.exception.JpaException;
+
+public class RoutingPersistenceManagerTest {
+	private PersistenceManager primary;
+	private PersistenceManager replica1;
+	private PersistenceManager replica2;
+	private RoutingPersistenceManager routingPersistenceManager;
+
+	@Before
+	public void before() {
+		primary = persistenceManager();
+		replica1 = persistenceManager();
+		replica2 = persistenceManager();
+		routingPersistenceManager = new RoutingPersistenceManager(primary, Arrays.asList(new Replica("replica1", replica1), new Replica("replica2", replica2)),
+				new RoundRobinReplicaSelector());
+	}
+
+	@Test
+	public void shouldRouteToPrimaryByDefault() {
+		assertThat(routingPersistenceManager.getEntityManager(), is(primary.getEntityManager()));
+	}
+
+	@Test
+	public void shouldRouteReadOnlySessionsToReplicasInTurn() {
+		routingPersistenceManager.route(true);
+		assertThat(routingPersistenceManager.getEntityManager(), is(replica1.getEntityManager()));
+		routingPersistenceManager.closeEntityManager();
+		verify(replica1).closeEntityManager();
+
+		routingPersistenceManager.route(true);
+		assertThat(routingPersistenceManager.getEntityManager(), is(replica2.getEntityManager()));
+		routingPersistenceManager.closeEntityManager();
+
+		assertThat(routingPersistenceManager.getReplicas().get(0).getSessions(), is(1l));
+		assertThat(routingPersistenceManager.getReplicas().get(1).getSessions(), is(1l));
+	}
+
+	@Test
+	public void shouldRouteReadWriteSessionsToPrimary() {
+		routingPersistenceManager.route(false);
+		routingPersistenceManager.beginTransaction();
+		routingPersistenceManager.commit();
+
+		verify(primary).beginTransaction();
+		verify(primary).commit();
+		verify(replica1, never()).beginTransaction();
+	}
+
+	@Test
+	public void shouldRevertToPrimaryOnceSessionClosed() {
+		routingPersistenceManager.route(true);
+		routingPersistenceManager.closeEntityManager();
+
+		assertThat(routingPersistenceManager.getRoutedReplica(), is(nullValue()));
+		assertThat(routingPersistenceManager.getEntityManager(), is(primary.getEntityManager()));
+	}
+
+	@Test
+	public void shouldEjectFailedReplica() {
+		when(replica1.getEntityManager()).thenThrow(new JpaException("expected"));
+
+		routingPersistenceManager.route(true);
+		try {
+			routingPersistenceManager.getEntityManager();
+		} catch (JpaException e) {
+			assertThat(e.getMessage(), is("expected"));
+		}
+		routingPersistenceManager.closeEntityManager();
+
+		Replica replica = routingPersistenceManager.getReplicas().get(0);
+		assertThat(replica.isHealthy(), is(false));
+		assertThat(replica.getFailures(), is(1l));
+		assertThat(replica.getSessions(), is(0l));
+
+		routingPersistenceManager.route(true);
+		assertThat(routingPersistenceManager.getRoutedReplica().getName(), is("replica2"));
+		routingPersistenceManager.closeEntityManager();
+		routingPersistenceManager.route(true);
+		assertThat(routingPersistenceManager.getRoutedReplica().getName(), is("replica2"));
+	}
+
+	@Test
+	public void shouldEjectReplicaWhichFailsToRollback() {
+		doThrow(new JpaException("expected")).when(replica1).rollback();
+
+		routingPersistenceManager.route(true);
+		try {
+			routingPersistenceManager.rollback();
+		} catch (JpaException e) {
+			assertThat(e.getMessage(), is("expected"));
+		}
+		routingPersistenceManager.closeEntityManager();
+
+		assertThat(routingPersistenceManager.getReplicas().get(0).isHealthy(), is(false));
+	}
+
+	@Test
+	public void shouldEjectReplicaWhenSessionFailsToReachDatabase() {
+		SQLException cause = new SQLException("Connection refused", "08001");
+		routingPersistenceManager.route(true);
+		routingPersistenceManager.sessionFailed(new PersistenceException(new JDBCConnectionException("could not connect", cause)));
+		routingPersistenceManager.closeEntityManager();
+
+		Replica replica = routingPersistenceManager.getReplicas().get(0);
+		assertThat(replica.isHealthy(), is(false));
+		assertThat(replica.getSessions(), is(0l));
+
+		routingPersistenceManager.route(true);
+		routingPersistenceManager.sessionFailed(new PersistenceException(new SQLException("Connection reset", "08S01")));
+		routingPersistenceManager.closeEntityManager();
+		assertThat(routingPersistenceManager.getReplicas().get(1).isHealthy(), is(false));
+	}
+
+	@Test
+	public void shouldNotEjectReplicaWhenSessionFailsForOtherReasons() {
+		routingPersistenceManager.route(true);
+		routingPersistenceManager.sessionFailed(new IllegalStateException("expected"));
+		routingPersistenceManager.sessionFailed(new NoResultException("expected"));
+		routingPersistenceManager.sessionFailed(new PersistenceException(new SQLException("Unique constraint violated", "23505")));
+		routingPersistenceManager.closeEntityManager();
+
+		Replica replica = routingPersistenceManager.getReplicas().get(0);
+		assertThat(replica.isHealthy(), is(true));
+		assertThat(replica.getSessions(), is(1l));
+	}
+
+	@Test
+	public void shouldRouteToPrimaryWhenNoHealthyReplicas() {
+		routingPersistenceManager.getReplicas().get(0).failed(60000);
+		routingPersistenceManager.getReplicas().get(1).failed(60000);
+
+		routingPersistenceManager.route(true);
+		assertThat(routingPersistenceManager.getRoutedReplica(), is(nullValue()));
+		assertThat(routingPersistenceManager.getEntityManager(), is(primary.getEntityManager()));
+	}
+
+	@Test
+	public void shouldDestroyPrimaryAndReplicas() {
+		routingPersistenceManager.destroy();
+
+		verify(primary).destroy();
+		verify(replica1).destroy();
+		verify(replica2).destroy();
+	}
+
+	@Test
+	public void shouldSelectReplicaWithLowestLatency() {
+		Replica fast = new Replica("fast", replica1);
+		Replica slow = new Replica("slow", replica2);
+		Replica unmeasured = new Replica("unmeasured", replica2);
+		fast.succeeded(1000);
+		slow.succeeded(5000);
+
+		LeastLatencyReplicaSelector selector = new LeastLatencyReplicaSelector();
+		assertThat(selector.select(Arrays.asList(slow, fast)), is(fast));
+		assertThat(selector.select(Arrays.asList(slow, fast, unmeasured)), is(unmeasured));
+	}
+
+	private PersistenceManager persistenceManager() {
+		PersistenceManager persistenceManager = mock(PersistenceManager.class);
+		EntityManager entityManager = mock(EntityManager.class);
+		when(persistenceManager.getEntityManager()).thenReturn(entityManager);
+		return persistenceManager;
+	}
+}
@@ -0,0 +1,38 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.jpa.shard;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import org.junit.Test;
+
+public class LookupShardStrategyTest {
+	private LookupShardStrategy shardStrategy = new LookupShardStrategy(new RangeShardStrategy(100)).assign(5, 1);
+
+	@Test
+	public void shouldAssignKeysInDirectoryToTheirShard() {
+		assertThat(shardStrategy.shardFor(5, 2), is(1));
+	}
+
+	@Test
+	public void shouldFallBackForKeysNotInDirectory() {
+		assertThat(shardStrategy.shardFor(6, 2), is(0));
+		assertThat(shardStrategy.shardFor(150, 2), is(1));
+	}
+}
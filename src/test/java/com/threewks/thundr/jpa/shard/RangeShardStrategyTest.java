@@ -0,0 +1,42 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.jpa.shard;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import org.junit.Test;
+
+import com.threewks.thundr.jpa.exception.JpaException;
+
+public class RangeShardStrategyTest {
+	private RangeShardStrategy shardStrategy = new RangeShardStrategy("g", "p");
+
+	@Test
+	public void shouldAssignKeysToShardByRange() {
+		assertThat(shardStrategy.shardFor("apple", 3), is(0));
+		assertThat(shardStrategy.shardFor("g", 3), is(1));
+		assertThat(shardStrategy.shardFor("orange", 3), is(1));
+		assertThat(shardStrategy.shardFor("pear", 3), is(2));
+	}
+
+	@Test(expected = JpaException.class)
+	public void shouldThrowExceptionWhenRangesDoNotMatchShards() {
+		shardStrategy.shardFor("apple", 2);
+	}
+}
@@ -0,0 +1,97 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.jpa.shard;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.threewks.thundr.jpa.JpaAction;
+import com.threewks.thundr.jpa.PersistenceManager;
+
+public class ShardedJpaTemplateTest {
+	private EntityManager entityManager0 = mock(EntityManager.class);
+	private EntityManager entityManager1 = mock(EntityManager.class);
+	private PersistenceManager shard0 = mock(PersistenceManager.class);
+	private PersistenceManager shard1 = mock(PersistenceManager.class);
+	private ShardedPersistenceManager shardedPersistenceManager;
+	private ShardedJpaTemplate<String> template;
+
+	@Before
+	public void before() {
+		when(shard0.getEntityManager()).thenReturn(entityManager0);
+		when(shard1.getEntityManager()).thenReturn(entityManager1);
+		shardedPersistenceManager = new ShardedPersistenceManager(Arrays.asList(shard0, shard1), new RangeShardStrategy(100l));
+		template = new ShardedJpaTemplate<String>(shardedPersistenceManager, String.class);
+	}
+
+	@After
+	public void after() {
+		shardedPersistenceManager.shutdown();
+	}
+
+	@Test
+	public void shouldGetEntityFromShardHoldingId() {
+		when(entityManager1.find(String.class, 150l)).thenReturn("entity");
+
+		assertThat(template.get(150l), is("entity"));
+		verify(entityManager0, never()).find(String.class, 150l);
+	}
+
+	@Test
+	public void shouldReturnTemplateForShardKey() {
+		assertThat(template.forKey(1l), is(template.getTemplates().get(0)));
+		assertThat(template.forKey(100l), is(template.getTemplates().get(1)));
+	}
+
+	@Test
+	public void shouldScatterActionToAllShardsAndGatherResultsInShardOrder() {
+		List<String> results = template.scatter(new JpaAction<String>() {
+			@Override
+			public String run(EntityManager em) {
+				return em == entityManager0 ? "shard0" : "shard1";
+			}
+		});
+
+		assertThat(results, contains("shard0", "shard1"));
+		verify(shard0).closeEntityManager();
+		verify(shard1).closeEntityManager();
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void shouldRethrowFailureFromShard() {
+		template.scatter(new JpaAction<String>() {
+			@Override
+			public String run(EntityManager em) {
+				if (em == entityManager1) {
+					throw new IllegalStateException("expected");
+				}
+				return "shard0";
+			}
+		});
+	}
+}
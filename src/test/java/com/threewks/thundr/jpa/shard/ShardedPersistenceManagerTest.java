@@ -0,0 +1,90 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.jpa.shard;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.threewks.thundr.jpa.PersistenceManager;
+import com.threewks.thundr.jpa.exception.JpaException;
+
+public class ShardedPersistenceManagerTest {
+	private PersistenceManager shard0 = mock(PersistenceManager.class);
+	private PersistenceManager shard1 = mock(PersistenceManager.class);
+	private ShardedPersistenceManager shardedPersistenceManager;
+
+	@Before
+	public void before() {
+		shardedPersistenceManager = new ShardedPersistenceManager(Arrays.asList(shard0, shard1), new RangeShardStrategy(100));
+	}
+
+	@After
+	public void after() {
+		shardedPersistenceManager.shutdown();
+	}
+
+	@Test
+	public void shouldReturnShardForKey() {
+		assertThat(shardedPersistenceManager.shardFor(5), is(shard0));
+		assertThat(shardedPersistenceManager.shardFor(100), is(shard1));
+		assertThat(shardedPersistenceManager.shardIndexFor(500), is(1));
+	}
+
+	@Test(expected = JpaException.class)
+	public void shouldThrowExceptionForNullKey() {
+		shardedPersistenceManager.shardFor(null);
+	}
+
+	@Test(expected = JpaException.class)
+	public void shouldThrowExceptionWhenStrategyReturnsUnknownShard() {
+		ShardStrategy shardStrategy = mock(ShardStrategy.class);
+		when(shardStrategy.shardFor(1, 2)).thenReturn(2);
+
+		new ShardedPersistenceManager(Arrays.asList(shard0, shard1), shardStrategy).shardFor(1);
+	}
+
+	@Test(expected = JpaException.class)
+	public void shouldRequireAtLeastOneShard() {
+		new ShardedPersistenceManager(Collections.<PersistenceManager> emptyList(), new HashShardStrategy());
+	}
+
+	@Test
+	public void shouldDestroyAllShards() {
+		shardedPersistenceManager.destroy();
+
+		verify(shard0).destroy();
+		verify(shard1).destroy();
+		assertThat(shardedPersistenceManager.getExecutor().isShutdown(), is(true));
+	}
+
+	@Test
+	public void shouldOnlyStopExecutorOnShutdown() {
+		shardedPersistenceManager.shutdown();
+
+		verify(shard0, never()).destroy();
+		assertThat(shardedPersistenceManager.getExecutor().isShutdown(), is(true));
+	}
+}